@@ -19,6 +19,7 @@
 #include "tensorflow/lite/nnapi/nnapi_implementation.h"
 
 #include <jni.h>
+#include <cstdint>
 #include <string>
 #include <iomanip>
 #include <sstream>
@@ -28,6 +29,7 @@
 #include <android/log.h>
 #include <android/sharedmem.h>
 #include <sys/mman.h>
+#include <time.h>
 #include "tensorflow/lite/nnapi/nnapi_implementation.h"
 
 extern "C" JNIEXPORT jboolean JNICALL
@@ -58,6 +60,16 @@ Java_com_android_nn_benchmark_core_NNTestBase_hasNnApiDevice(
   return foundDevice;
 }
 
+static void throwNnApiDelegationFailure(JNIEnv *env, int nnapiErrno) {
+    jclass nnapiFailureClass = env->FindClass(
+        "com/android/nn/benchmark/core/NnApiDelegationFailure");
+    jmethodID constructor =
+        env->GetMethodID(nnapiFailureClass, "<init>", "(I)V");
+    jobject exception =
+        env->NewObject(nnapiFailureClass, constructor, nnapiErrno);
+    env->Throw(static_cast<jthrowable>(exception));
+}
+
 extern "C"
 JNIEXPORT jlong
 JNICALL
@@ -89,13 +101,51 @@ Java_com_android_nn_benchmark_core_NNTestBase_initModel(
     }
 
     if (_tfliteBackend == TFLITE_NNAPI && nnapiErrno != 0) {
-      jclass nnapiFailureClass = env->FindClass(
-          "com/android/nn/benchmark/core/NnApiDelegationFailure");
-      jmethodID constructor =
-          env->GetMethodID(nnapiFailureClass, "<init>", "(I)V");
-      jobject exception =
-          env->NewObject(nnapiFailureClass, constructor, nnapiErrno);
-      env->Throw(static_cast<jthrowable>(exception));
+        throwNnApiDelegationFailure(env, nnapiErrno);
+    }
+
+    return (jlong)(uintptr_t)handle;
+}
+
+extern "C"
+JNIEXPORT jlong
+JNICALL
+Java_com_android_nn_benchmark_core_NNTestBase_initModelFromFd(
+        JNIEnv *env,
+        jobject /* this */,
+        jstring _modelName,
+        jint _modelFd,
+        jlong _modelOffset,
+        jlong _modelLength,
+        jint _tfliteBackend,
+        jboolean _enableIntermediateTensorsDump,
+        jstring _nnApiDeviceName,
+        jboolean _mmapModel,
+        jstring _nnApiCacheDir) {
+    const char *modelName = env->GetStringUTFChars(_modelName, NULL);
+    const char *nnApiDeviceName =
+        _nnApiDeviceName == NULL
+            ? NULL
+            : env->GetStringUTFChars(_nnApiDeviceName, NULL);
+    const char *nnApiCacheDir =
+        _nnApiCacheDir == NULL
+            ? NULL
+            : env->GetStringUTFChars(_nnApiCacheDir, NULL);
+    int nnapiErrno = 0;
+    void *handle = BenchmarkModel::createFromFd(
+        modelName, _modelFd, _modelOffset, _modelLength, _tfliteBackend,
+        _enableIntermediateTensorsDump, &nnapiErrno, nnApiDeviceName, _mmapModel,
+        nnApiCacheDir);
+    env->ReleaseStringUTFChars(_modelName, modelName);
+    if (_nnApiDeviceName != NULL) {
+        env->ReleaseStringUTFChars(_nnApiDeviceName, nnApiDeviceName);
+    }
+    if (_nnApiCacheDir != NULL) {
+        env->ReleaseStringUTFChars(_nnApiCacheDir, nnApiCacheDir);
+    }
+
+    if (_tfliteBackend == TFLITE_NNAPI && nnapiErrno != 0) {
+        throwNnApiDelegationFailure(env, nnapiErrno);
     }
 
     return (jlong)(uintptr_t)handle;
@@ -119,22 +169,104 @@ Java_com_android_nn_benchmark_core_NNTestBase_resizeInputTensors(
         JNIEnv *env,
         jobject /* this */,
         jlong _modelHandle,
-        jintArray _inputShape) {
+        jintArray _inputShape,
+        jint _batchSize) {
     BenchmarkModel* model = (BenchmarkModel *) _modelHandle;
     jint* shapePtr = env->GetIntArrayElements(_inputShape, nullptr);
     jsize shapeLen = env->GetArrayLength(_inputShape);
 
     std::vector<int> shape(shapePtr, shapePtr + shapeLen);
-    return model->resizeInputTensors(std::move(shape));
+    env->ReleaseIntArrayElements(_inputShape, shapePtr, JNI_ABORT);
+    return model->resizeInputTensors(std::move(shape), _batchSize);
 }
 
-/** RAII container for a list of InferenceInOutSequence to handle JNI data release in destructor. */
+/**
+ * Native side of a DatasetInputPrefetcher: copies the inputs prepared by the prefetcher
+ * threads, calling back into Java once per batch of ready inputs.
+ */
+class PrefetchedInputs {
+public:
+    PrefetchedInputs(JNIEnv *env, jobject prefetcher) : mEnv(env), mPrefetcher(prefetcher) {
+        jclass prefetcher_class = env->GetObjectClass(prefetcher);
+        mStartMethod = env->GetMethodID(prefetcher_class, "start", "(I)[Ljava/nio/ByteBuffer;");
+        if (mStartMethod == nullptr) { return; }
+        mNextBatchMethod = env->GetMethodID(prefetcher_class, "nextBatch", "(I)I");
+    }
+
+    bool isValid() const { return mNextBatchMethod != nullptr; }
+
+    // Inputs are taken in the order of the Java prefetcher, which is the order
+    // the benchmark loop calls the input creators in.
+    bool createInput(uint8_t* buffer, size_t length);
+
+private:
+    bool start(size_t length);
+
+    JNIEnv *mEnv;  // not owned.
+    jobject mPrefetcher;
+    jmethodID mStartMethod = nullptr;
+    jmethodID mNextBatchMethod = nullptr;
+
+    // Ring of input buffers, kept reachable by the Java prefetcher.
+    std::vector<InferenceOutput> mSlots;
+    size_t mNextSlot = 0;
+    jint mReadyCount = 0;
+    jint mConsumedCount = 0;
+};
+
+bool PrefetchedInputs::start(size_t length) {
+    jobjectArray slots = static_cast<jobjectArray>(
+            mEnv->CallObjectMethod(mPrefetcher, mStartMethod, static_cast<jint>(length)));
+    if (mEnv->ExceptionCheck() || slots == nullptr) { return false; }
+    jsize slotCount = mEnv->GetArrayLength(slots);
+    mSlots.reserve(slotCount);
+    for (jsize i = 0; i < slotCount; ++i) {
+        jobject slot = mEnv->GetObjectArrayElement(slots, i);
+        if (mEnv->ExceptionCheck()) { return false; }
+        mSlots.push_back({reinterpret_cast<uint8_t*>(mEnv->GetDirectBufferAddress(slot)),
+                          static_cast<size_t>(mEnv->GetDirectBufferCapacity(slot))});
+        mEnv->DeleteLocalRef(slot);
+    }
+    mEnv->DeleteLocalRef(slots);
+    return !mSlots.empty();
+}
+
+bool PrefetchedInputs::createInput(uint8_t* buffer, size_t length) {
+    if (mSlots.empty() && !start(length)) {
+        return false;
+    }
+    if (mReadyCount == 0) {
+        mReadyCount = mEnv->CallIntMethod(mPrefetcher, mNextBatchMethod, mConsumedCount);
+        if (mEnv->ExceptionCheck() || mReadyCount <= 0) { return false; }
+        mConsumedCount = 0;
+    }
+    const InferenceOutput& slot = mSlots[mNextSlot];
+    if (slot.ptr == nullptr || slot.size != length) {
+        jclass iaeClass = mEnv->FindClass("java/lang/IllegalArgumentException");
+        mEnv->ThrowNew(iaeClass, "Prefetched input size does not match the input tensor");
+        return false;
+    }
+    memcpy(buffer, slot.ptr, length);
+    mNextSlot = (mNextSlot + 1) % mSlots.size();
+    mReadyCount--;
+    mConsumedCount++;
+    return true;
+}
+
+/**
+ * Native view of a list of InferenceInOutSequence. Inputs and expected outputs are direct
+ * buffers read in place, they must stay reachable from Java while the list is used. Buffer
+ * slices are supported: the address and capacity of a direct buffer are those of its view.
+ *
+ * If an inputPrefetcher is given, the inputs of the input creators are taken from it instead
+ * of calling each creator.
+ */
 class InferenceInOutSequenceList {
 public:
     InferenceInOutSequenceList(JNIEnv *env,
                                const jobject& inOutDataList,
-                               bool expectGoldenOutputs);
-    ~InferenceInOutSequenceList();
+                               bool expectGoldenOutputs,
+                               jobject inputPrefetcher = nullptr);
 
     bool isValid() const { return mValid; }
 
@@ -144,16 +276,21 @@ private:
     JNIEnv *mEnv;  // not owned.
 
     std::vector<InferenceInOutSequence> mData;
-    std::vector<jbyteArray> mInputArrays;
-    std::vector<jobjectArray> mOutputArrays;
+    std::unique_ptr<PrefetchedInputs> mPrefetchedInputs;
     bool mValid;
 };
 
 InferenceInOutSequenceList::InferenceInOutSequenceList(JNIEnv *env,
                                                        const jobject& inOutDataList,
-                                                       bool expectGoldenOutputs)
+                                                       bool expectGoldenOutputs,
+                                                       jobject inputPrefetcher)
     : mEnv(env), mValid(false) {
 
+    if (inputPrefetcher != nullptr) {
+        mPrefetchedInputs = std::make_unique<PrefetchedInputs>(env, inputPrefetcher);
+        if (!mPrefetchedInputs->isValid()) { return; }
+    }
+
     jclass list_class = env->FindClass("java/util/List");
     if (list_class == nullptr) { return; }
     jmethodID list_size = env->GetMethodID(list_class, "size", "()I");
@@ -173,9 +310,10 @@ InferenceInOutSequenceList::InferenceInOutSequenceList(JNIEnv *env,
 
     jclass inout_class = env->FindClass("com/android/nn/benchmark/core/InferenceInOut");
     if (inout_class == nullptr) { return; }
-    jfieldID inout_input = env->GetFieldID(inout_class, "mInput", "[B");
+    jfieldID inout_input = env->GetFieldID(inout_class, "mInput", "Ljava/nio/ByteBuffer;");
     if (inout_input == nullptr) { return; }
-    jfieldID inout_expectedOutputs = env->GetFieldID(inout_class, "mExpectedOutputs", "[[B");
+    jfieldID inout_expectedOutputs = env->GetFieldID(inout_class, "mExpectedOutputs",
+                                                     "[Ljava/nio/ByteBuffer;");
     if (inout_expectedOutputs == nullptr) { return; }
     jfieldID inout_inputCreator = env->GetFieldID(inout_class, "mInputCreator",
             "Lcom/android/nn/benchmark/core/InferenceInOut$InputCreatorInterface;");
@@ -210,13 +348,20 @@ InferenceInOutSequenceList::InferenceInOutSequenceList(JNIEnv *env,
             uint8_t* input_data = nullptr;
             size_t input_len = 0;
             std::function<bool(uint8_t*, size_t)> inputCreator;
-            jbyteArray input = static_cast<jbyteArray>(
-                    mEnv->GetObjectField(inout, inout_input));
-            mInputArrays.push_back(input);
+            jobject input = mEnv->GetObjectField(inout, inout_input);
             if (input != nullptr) {
-                input_data = reinterpret_cast<uint8_t*>(
-                        mEnv->GetByteArrayElements(input, NULL));
-                input_len = mEnv->GetArrayLength(input);
+                input_data = reinterpret_cast<uint8_t*>(mEnv->GetDirectBufferAddress(input));
+                input_len = mEnv->GetDirectBufferCapacity(input);
+                if (input_data == nullptr) {
+                    jclass iaeClass = mEnv->FindClass("java/lang/IllegalArgumentException");
+                    mEnv->ThrowNew(iaeClass, "Input is not a direct buffer");
+                    return;
+                }
+            } else if (mPrefetchedInputs) {
+                PrefetchedInputs* prefetchedInputs = mPrefetchedInputs.get();
+                inputCreator = [prefetchedInputs](uint8_t* buffer, size_t length) {
+                    return prefetchedInputs->createInput(buffer, length);
+                };
             } else {
                 inputCreator = [env, inout, inout_inputCreator, createInput_method](
                         uint8_t* buffer, size_t length) {
@@ -232,7 +377,6 @@ InferenceInOutSequenceList::InferenceInOutSequenceList(JNIEnv *env,
 
             jobjectArray expectedOutputs = static_cast<jobjectArray>(
                     mEnv->GetObjectField(inout, inout_expectedOutputs));
-            mOutputArrays.push_back(expectedOutputs);
             seq.push_back({input_data, input_len, {}, inputCreator});
 
             // Add expected output to sequence added above
@@ -242,20 +386,24 @@ InferenceInOutSequenceList::InferenceInOutSequenceList(JNIEnv *env,
                 outputs.reserve(expectedOutputsLength);
 
                 for (jsize j = 0;j < expectedOutputsLength; ++j) {
-                    jbyteArray expectedOutput =
-                            static_cast<jbyteArray>(mEnv->GetObjectArrayElement(expectedOutputs, j));
+                    jobject expectedOutput = mEnv->GetObjectArrayElement(expectedOutputs, j);
                     if (env->ExceptionCheck()) {
                         return;
                     }
                     if (expectedOutput == nullptr) {
                         jclass iaeClass = mEnv->FindClass("java/lang/IllegalArgumentException");
-                        mEnv->ThrowNew(iaeClass, "Null expected output array");
+                        mEnv->ThrowNew(iaeClass, "Null expected output buffer");
                         return;
                     }
 
                     uint8_t *expectedOutput_data = reinterpret_cast<uint8_t*>(
-                                        mEnv->GetByteArrayElements(expectedOutput, NULL));
-                    size_t expectedOutput_len = mEnv->GetArrayLength(expectedOutput);
+                                        mEnv->GetDirectBufferAddress(expectedOutput));
+                    size_t expectedOutput_len = mEnv->GetDirectBufferCapacity(expectedOutput);
+                    if (expectedOutput_data == nullptr) {
+                        jclass iaeClass = mEnv->FindClass("java/lang/IllegalArgumentException");
+                        mEnv->ThrowNew(iaeClass, "Expected output is not a direct buffer");
+                        return;
+                    }
                     outputs.push_back({ expectedOutput_data, expectedOutput_len});
                 }
             } else {
@@ -270,144 +418,317 @@ InferenceInOutSequenceList::InferenceInOutSequenceList(JNIEnv *env,
     mValid = true;
 }
 
-InferenceInOutSequenceList::~InferenceInOutSequenceList() {
-    // Note that we may land here with a pending JNI exception so cannot call
-    // java objects.
-    int arrayIndex = 0;
-    for (int seq_index = 0; seq_index < mData.size(); ++seq_index) {
-        for (int i = 0; i < mData[seq_index].size(); ++i) {
-            jbyteArray input = mInputArrays[arrayIndex];
-            if (input != nullptr) {
-                mEnv->ReleaseByteArrayElements(
-                        input, reinterpret_cast<jbyte*>(mData[seq_index][i].input), JNI_ABORT);
-            }
-            jobjectArray expectedOutputs = mOutputArrays[arrayIndex];
-            if (expectedOutputs != nullptr) {
-                jsize expectedOutputsLength = mEnv->GetArrayLength(expectedOutputs);
-                if (expectedOutputsLength != mData[seq_index][i].outputs.size()) {
-                    // Should not happen? :)
-                    jclass iaeClass = mEnv->FindClass("java/lang/IllegalStateException");
-                    mEnv->ThrowNew(iaeClass, "Mismatch of the size of expected outputs jni array "
-                                   "and internal array of its bufers");
-                    return;
-                }
+namespace {
 
-                for (jsize j = 0;j < expectedOutputsLength; ++j) {
-                    jbyteArray expectedOutput = static_cast<jbyteArray>(mEnv->GetObjectArrayElement(expectedOutputs, j));
-                    mEnv->ReleaseByteArrayElements(
-                        expectedOutput, reinterpret_cast<jbyte*>(mData[seq_index][i].outputs[j].ptr),
-                        JNI_ABORT);
+double monotonicTimeSec() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1000000000.0;
+}
+
+jfloatArray toJavaArray(JNIEnv *env, const std::vector<float>& values) {
+    jfloatArray array = env->NewFloatArray(values.size());
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetFloatArrayRegion(array, 0, values.size(), values.data());
+    return array;
+}
+
+jintArray toJavaArray(JNIEnv *env, const std::vector<jint>& values) {
+    jintArray array = env->NewIntArray(values.size());
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetIntArrayRegion(array, 0, values.size(), values.data());
+    return array;
+}
+
+/** Converts results to a Java InferenceResultBatch, one Java array per column. */
+class InferenceResultBatchConverter {
+public:
+    InferenceResultBatchConverter(JNIEnv *env) : mEnv(env) {
+        mBatchClass = env->FindClass("com/android/nn/benchmark/core/InferenceResultBatch");
+        if (mBatchClass == nullptr) { return; }
+        mBatchCtor = env->GetMethodID(mBatchClass, "<init>",
+                                      "(II[F[F[F[F[FF[I[I[F[F[[B)V");
+    }
+
+    bool isValid() const { return mBatchCtor != nullptr; }
+
+    // Returns nullptr with a pending exception on failure. Only the returned
+    // batch is left as a local reference.
+    jobject convert(const std::vector<InferenceResult>& result, int flags) const {
+        if (mEnv->PushLocalFrame(kLocalReferenceCount) != JNI_OK) { return nullptr; }
+        return mEnv->PopLocalFrame(convertInLocalFrame(result, flags));
+    }
+
+private:
+    static constexpr jint kLocalReferenceCount = 16;
+
+    jobject convertInLocalFrame(const std::vector<InferenceResult>& result, int flags) const;
+
+    JNIEnv *mEnv;  // not owned.
+    jclass mBatchClass = nullptr;
+    jmethodID mBatchCtor = nullptr;
+};
+
+jobject InferenceResultBatchConverter::convertInLocalFrame(
+        const std::vector<InferenceResult>& result, int flags) const {
+    JNIEnv *env = mEnv;
+    const bool expectGoldenOutputs = (flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0;
+    const double conversionStartTimeSec = monotonicTimeSec();
+    const size_t count = result.size();
+    const size_t outputCount = count > 0 ? result[0].inferenceOutputs.size() : 0;
+    std::vector<float> computeTimesSec(count);
+    std::vector<float> startTimesSec(count);
+    std::vector<float> inputTimesSec(count);
+    std::vector<float> outputErrorTimesSec(count);
+    std::vector<float> outputSaveTimesSec(count);
+    std::vector<jint> sequenceIndices(count);
+    std::vector<jint> inOutIndices(count);
+    std::vector<float> meanSquareErrors;
+    std::vector<float> maxSingleErrors;
+    if (expectGoldenOutputs) {
+        meanSquareErrors.reserve(count * outputCount);
+        maxSingleErrors.reserve(count * outputCount);
+    }
+    for (size_t i = 0; i < count; ++i) {
+        const InferenceResult& rentry = result[i];
+        computeTimesSec[i] = rentry.computeTimeSec;
+        startTimesSec[i] = rentry.startTimeSec;
+        inputTimesSec[i] = rentry.phaseTimesSec[PHASE_INPUT];
+        outputErrorTimesSec[i] = rentry.phaseTimesSec[PHASE_OUTPUT_ERROR];
+        outputSaveTimesSec[i] = rentry.phaseTimesSec[PHASE_OUTPUT_SAVE];
+        sequenceIndices[i] = rentry.inputOutputSequenceIndex;
+        inOutIndices[i] = rentry.inputOutputIndex;
+        if (expectGoldenOutputs) {
+            meanSquareErrors.insert(meanSquareErrors.end(), rentry.meanSquareErrors.begin(),
+                                    rentry.meanSquareErrors.end());
+            maxSingleErrors.insert(maxSingleErrors.end(), rentry.maxSingleErrors.begin(),
+                                   rentry.maxSingleErrors.end());
+        }
+    }
+
+    jfloatArray computeTimesArray = toJavaArray(env, computeTimesSec);
+    if (computeTimesArray == nullptr) { return nullptr; }
+    jfloatArray startTimesArray = toJavaArray(env, startTimesSec);
+    if (startTimesArray == nullptr) { return nullptr; }
+    jfloatArray inputTimesArray = toJavaArray(env, inputTimesSec);
+    if (inputTimesArray == nullptr) { return nullptr; }
+    jfloatArray outputErrorTimesArray = toJavaArray(env, outputErrorTimesSec);
+    if (outputErrorTimesArray == nullptr) { return nullptr; }
+    jfloatArray outputSaveTimesArray = toJavaArray(env, outputSaveTimesSec);
+    if (outputSaveTimesArray == nullptr) { return nullptr; }
+    jintArray sequenceIndicesArray = toJavaArray(env, sequenceIndices);
+    if (sequenceIndicesArray == nullptr) { return nullptr; }
+    jintArray inOutIndicesArray = toJavaArray(env, inOutIndices);
+    if (inOutIndicesArray == nullptr) { return nullptr; }
+
+    jfloatArray meanSquareErrorArray = nullptr;
+    jfloatArray maxSingleErrorArray = nullptr;
+    if (expectGoldenOutputs) {
+        meanSquareErrorArray = toJavaArray(env, meanSquareErrors);
+        if (meanSquareErrorArray == nullptr) { return nullptr; }
+        maxSingleErrorArray = toJavaArray(env, maxSingleErrors);
+        if (maxSingleErrorArray == nullptr) { return nullptr; }
+    }
+
+    // Each output is packed in a single array, all inferences have the same output sizes.
+    jobjectArray inferenceOutputs = nullptr;
+    if ((flags & FLAG_DISCARD_INFERENCE_OUTPUT) == 0) {
+        jclass byteArrayClass = env->FindClass("[B");
+        if (byteArrayClass == nullptr) { return nullptr; }
+        inferenceOutputs = env->NewObjectArray(outputCount, byteArrayClass, nullptr);
+        if (env->ExceptionCheck()) { return nullptr; }
+        for (size_t j = 0; j < outputCount; ++j) {
+            const size_t outputSize = result[0].inferenceOutputs[j].size();
+            // Java arrays are indexed by jint, larger outputs can't be packed.
+            if (outputSize != 0 && count > static_cast<size_t>(INT32_MAX) / outputSize) {
+                jclass oomClass = env->FindClass("java/lang/OutOfMemoryError");
+                env->ThrowNew(oomClass, "Inference outputs too large for a Java array");
+                return nullptr;
+            }
+            jbyteArray inferenceOutput = env->NewByteArray(static_cast<jsize>(count * outputSize));
+            if (env->ExceptionCheck()) { return nullptr; }
+            for (size_t i = 0; i < count; ++i) {
+                const std::vector<uint8_t>& output = result[i].inferenceOutputs[j];
+                if (output.size() != outputSize) {
+                    jclass iseClass = env->FindClass("java/lang/IllegalStateException");
+                    env->ThrowNew(iseClass, "Inference output size changed during benchmark");
+                    return nullptr;
                 }
+                env->SetByteArrayRegion(inferenceOutput, i * outputSize, outputSize,
+                                        reinterpret_cast<const jbyte*>(output.data()));
             }
-            arrayIndex++;
+            env->SetObjectArrayElement(inferenceOutputs, j, inferenceOutput);
+            if (env->ExceptionCheck()) { return nullptr; }
+            env->DeleteLocalRef(inferenceOutput);
         }
     }
+
+    // Does not include the creation of the batch object itself.
+    const float conversionTimeSec =
+            static_cast<float>(monotonicTimeSec() - conversionStartTimeSec);
+    jobject object = env->NewObject(
+        mBatchClass, mBatchCtor, static_cast<jint>(count), static_cast<jint>(outputCount),
+        computeTimesArray, startTimesArray, inputTimesArray, outputErrorTimesArray,
+        outputSaveTimesArray, conversionTimeSec, sequenceIndicesArray, inOutIndicesArray,
+        meanSquareErrorArray, maxSingleErrorArray, inferenceOutputs);
+    if (env->ExceptionCheck()) { return nullptr; }
+    return object;
 }
 
+}  // namespace
+
 extern "C"
-JNIEXPORT jboolean
+JNIEXPORT jobject
 JNICALL
 Java_com_android_nn_benchmark_core_NNTestBase_runBenchmark(
         JNIEnv *env,
         jobject /* this */,
         jlong _modelHandle,
         jobject inOutDataList,
-        jobject resultList,
         jint inferencesSeqMaxCount,
         jfloat timeoutSec,
-        jint flags) {
+        jint flags,
+        jobject inputPrefetcher) {
 
     BenchmarkModel* model = reinterpret_cast<BenchmarkModel*>(_modelHandle);
 
-    jclass list_class = env->FindClass("java/util/List");
-    if (list_class == nullptr) { return false; }
-    jmethodID list_add = env->GetMethodID(list_class, "add", "(Ljava/lang/Object;)Z");
-    if (list_add == nullptr) { return false; }
-
-    jclass result_class = env->FindClass("com/android/nn/benchmark/core/InferenceResult");
-    if (result_class == nullptr) { return false; }
-    jmethodID result_ctor = env->GetMethodID(result_class, "<init>", "(F[F[F[[BII)V");
-    if (result_ctor == nullptr) { return false; }
+    InferenceResultBatchConverter converter(env);
+    if (!converter.isValid()) { return nullptr; }
 
     std::vector<InferenceResult> result;
 
     const bool expectGoldenOutputs = (flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0;
-    InferenceInOutSequenceList data(env, inOutDataList, expectGoldenOutputs);
+    InferenceInOutSequenceList data(env, inOutDataList, expectGoldenOutputs,
+                                    inputPrefetcher);
+    if (!data.isValid()) {
+        return nullptr;
+    }
+
+    if (!model->benchmark(data.data(), inferencesSeqMaxCount, timeoutSec, flags, &result)) {
+        return nullptr;
+    }
+    return converter.convert(result, flags);
+}
+
+extern "C"
+JNIEXPORT jboolean
+JNICALL
+Java_com_android_nn_benchmark_core_NNTestBase_runBenchmarkInChunks(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong _modelHandle,
+        jobject inOutDataList,
+        jint inferencesSeqMaxCount,
+        jfloat timeoutSec,
+        jint flags,
+        jobject inputPrefetcher,
+        jint chunkSize,
+        jobject consumer) {
+
+    BenchmarkModel* model = reinterpret_cast<BenchmarkModel*>(_modelHandle);
+
+    InferenceResultBatchConverter converter(env);
+    if (!converter.isValid()) { return false; }
+
+    jclass consumer_class = env->FindClass(
+            "com/android/nn/benchmark/core/NNTestBase$InferenceResultBatchConsumer");
+    if (consumer_class == nullptr) { return false; }
+    jmethodID consumer_accept = env->GetMethodID(
+            consumer_class, "accept", "(Lcom/android/nn/benchmark/core/InferenceResultBatch;)V");
+    if (consumer_accept == nullptr) { return false; }
+
+    const bool expectGoldenOutputs = (flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0;
+    InferenceInOutSequenceList data(env, inOutDataList, expectGoldenOutputs,
+                                    inputPrefetcher);
     if (!data.isValid()) {
         return false;
     }
 
-    // TODO: Remove success boolean from this method and throw an exception in case of problems
-    bool success = model->benchmark(data.data(), inferencesSeqMaxCount, timeoutSec, flags, &result);
-
-    // Generate results
-    if (success) {
-        for (const InferenceResult &rentry : result) {
-            jobjectArray inferenceOutputs = nullptr;
-            jfloatArray meanSquareErrorArray = nullptr;
-            jfloatArray maxSingleErrorArray = nullptr;
-
-            if ((flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0) {
-                meanSquareErrorArray = env->NewFloatArray(rentry.meanSquareErrors.size());
-                if (env->ExceptionCheck()) { return false; }
-                maxSingleErrorArray = env->NewFloatArray(rentry.maxSingleErrors.size());
-                if (env->ExceptionCheck()) { return false; }
-                {
-                    jfloat *bytes = env->GetFloatArrayElements(meanSquareErrorArray, nullptr);
-                    memcpy(bytes,
-                           &rentry.meanSquareErrors[0],
-                           rentry.meanSquareErrors.size() * sizeof(float));
-                    env->ReleaseFloatArrayElements(meanSquareErrorArray, bytes, 0);
-                }
-                {
-                    jfloat *bytes = env->GetFloatArrayElements(maxSingleErrorArray, nullptr);
-                    memcpy(bytes,
-                           &rentry.maxSingleErrors[0],
-                           rentry.maxSingleErrors.size() * sizeof(float));
-                    env->ReleaseFloatArrayElements(maxSingleErrorArray, bytes, 0);
-                }
-            }
+    // The consumer keeps what it needs of each chunk, the native results and
+    // the Java batch are released right after.
+    auto chunkCallback = [env, &converter, consumer, consumer_accept, flags](
+            const std::vector<InferenceResult>& chunk) {
+        jobject batch = converter.convert(chunk, flags);
+        if (batch == nullptr) { return false; }
+        env->CallVoidMethod(consumer, consumer_accept, batch);
+        env->DeleteLocalRef(batch);
+        return !env->ExceptionCheck();
+    };
 
-            if ((flags & FLAG_DISCARD_INFERENCE_OUTPUT) == 0) {
-                jclass byteArrayClass = env->FindClass("[B");
+    std::vector<InferenceResult> result;
+    return model->benchmark(data.data(), inferencesSeqMaxCount, timeoutSec, flags, &result,
+                            nullptr, chunkSize, chunkCallback);
+}
 
-                inferenceOutputs = env->NewObjectArray(
-                    rentry.inferenceOutputs.size(),
-                    byteArrayClass, nullptr);
+extern "C"
+JNIEXPORT jobject
+JNICALL
+Java_com_android_nn_benchmark_core_NNTestBase_runBenchmarkStreaming(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong _modelHandle,
+        jobject inOutDataList,
+        jint inferencesSeqMaxCount,
+        jfloat timeoutSec,
+        jint flags,
+        jobject inputPrefetcher) {
 
-                for (int i = 0;i < rentry.inferenceOutputs.size();++i) {
-                    jbyteArray inferenceOutput = nullptr;
-                    inferenceOutput = env->NewByteArray(rentry.inferenceOutputs[i].size());
-                    if (env->ExceptionCheck()) { return false; }
-                    jbyte *bytes = env->GetByteArrayElements(inferenceOutput, nullptr);
-                    memcpy(bytes, &rentry.inferenceOutputs[i][0], rentry.inferenceOutputs[i].size());
-                    env->ReleaseByteArrayElements(inferenceOutput, bytes, 0);
-                    env->SetObjectArrayElement(inferenceOutputs, i, inferenceOutput);
-                }
-            }
+    BenchmarkModel* model = reinterpret_cast<BenchmarkModel*>(_modelHandle);
 
-            jobject object = env->NewObject(
-                result_class, result_ctor, rentry.computeTimeSec,
-                meanSquareErrorArray, maxSingleErrorArray, inferenceOutputs,
-                rentry.inputOutputSequenceIndex, rentry.inputOutputIndex);
-            if (env->ExceptionCheck() || object == NULL) { return false; }
+    jclass result_class =
+            env->FindClass("com/android/nn/benchmark/core/StreamingInferenceResult");
+    if (result_class == nullptr) { return nullptr; }
+    jmethodID result_ctor = env->GetMethodID(result_class, "<init>", "(JDDDJJ[JFFF[J[D[F[D[F)V");
+    if (result_ctor == nullptr) { return nullptr; }
 
-            env->CallBooleanMethod(resultList, list_add, object);
-            if (env->ExceptionCheck()) { return false; }
+    const bool expectGoldenOutputs = (flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0;
+    InferenceInOutSequenceList data(env, inOutDataList, expectGoldenOutputs,
+                                    inputPrefetcher);
+    if (!data.isValid()) {
+        return nullptr;
+    }
 
-            // Releasing local references to objects to avoid local reference table overflow
-            // if tests is set to run for long time.
-            if (meanSquareErrorArray) {
-                env->DeleteLocalRef(meanSquareErrorArray);
-            }
-            if (maxSingleErrorArray) {
-                env->DeleteLocalRef(maxSingleErrorArray);
-            }
-            env->DeleteLocalRef(object);
-        }
+    LatencyAccumulator accumulator;
+    if (!model->benchmark(data.data(), inferencesSeqMaxCount, timeoutSec,
+                          flags | FLAG_STREAM_BENCHMARK_RESULTS, nullptr, &accumulator)) {
+        return nullptr;
     }
 
-    return success;
+    jlongArray histogram = env->NewLongArray(accumulator.histogram.size());
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetLongArrayRegion(histogram, 0, accumulator.histogram.size(),
+                            reinterpret_cast<const jlong*>(accumulator.histogram.data()));
+
+    const LatencyTimeSeries& timeSeries = accumulator.timeSeries;
+    const jsize windowCount = timeSeries.counts.size();
+    jlongArray windowCounts = env->NewLongArray(windowCount);
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetLongArrayRegion(windowCounts, 0, windowCount,
+                            reinterpret_cast<const jlong*>(timeSeries.counts.data()));
+    jdoubleArray windowSums = env->NewDoubleArray(windowCount);
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetDoubleArrayRegion(windowSums, 0, windowCount, timeSeries.sumsSec.data());
+    jfloatArray windowMaxes = env->NewFloatArray(windowCount);
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetFloatArrayRegion(windowMaxes, 0, windowCount, timeSeries.maxesSec.data());
+
+    const InferencePhaseTotals& phaseTotals = accumulator.phaseTotals;
+    jdoubleArray phaseTotalsSec = env->NewDoubleArray(PHASE_COUNT);
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetDoubleArrayRegion(phaseTotalsSec, 0, PHASE_COUNT, phaseTotals.totalsSec);
+    jfloatArray phaseMaxesSec = env->NewFloatArray(PHASE_COUNT);
+    if (env->ExceptionCheck()) { return nullptr; }
+    env->SetFloatArrayRegion(phaseMaxesSec, 0, PHASE_COUNT, phaseTotals.maxesSec);
+
+    jobject object = env->NewObject(
+        result_class, result_ctor, static_cast<jlong>(accumulator.count),
+        accumulator.totalTimeSec, accumulator.meanTimeSec, accumulator.m2,
+        static_cast<jlong>(accumulator.minMicros), static_cast<jlong>(accumulator.maxMicros),
+        histogram, static_cast<jfloat>(accumulator.sumOfMeanSquareErrors),
+        accumulator.maxSingleError, timeSeries.windowSec, windowCounts, windowSums,
+        windowMaxes, phaseTotalsSec, phaseMaxesSec);
+    if (env->ExceptionCheck()) { return nullptr; }
+    return object;
 }
 
 extern "C"
@@ -21,10 +21,14 @@
 #include <dlfcn.h>
 #include <fcntl.h>
 #include <ftw.h>
+#include <sys/mman.h>
 #include <sys/time.h>
 #include <unistd.h>
 
+#include <algorithm>
+#include <cerrno>
 #include <cstdio>
+#include <cstring>
 #include <fstream>
 
 #include "tensorflow/lite/delegates/nnapi/nnapi_delegate.h"
@@ -75,8 +79,9 @@ BenchmarkModel* BenchmarkModel::create(const char* modelfile, int tfliteBackend,
                                        const char* nnapi_device_name, bool mmapModel,
                                        const char* nnapi_cache_dir) {
   BenchmarkModel* model = new BenchmarkModel();
-  if (!model->init(modelfile, tfliteBackend, enable_intermediate_tensors_dump, nnapiErrno,
-                   nnapi_device_name, mmapModel, nnapi_cache_dir)) {
+  if (!model->loadModel(modelfile, mmapModel) ||
+      !model->init(modelfile, tfliteBackend, enable_intermediate_tensors_dump, nnapiErrno,
+                   nnapi_device_name, nnapi_cache_dir)) {
     __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to init model %s", modelfile);
     delete model;
     return nullptr;
@@ -84,20 +89,24 @@ BenchmarkModel* BenchmarkModel::create(const char* modelfile, int tfliteBackend,
   return model;
 }
 
-bool BenchmarkModel::init(const char* modelfile, int tfliteBackend,
-                          bool enable_intermediate_tensors_dump, int* nnapiErrno,
-                          const char* nnapi_device_name, bool mmapModel,
-                          const char* nnapi_cache_dir) {
-  __android_log_print(ANDROID_LOG_INFO, LOG_TAG, "BenchmarkModel %s",
-                      modelfile);
-  mModelFile = modelfile;
-  if (nnapi_cache_dir) {
-    mCacheDir = nnapi_cache_dir;
-  }
-  if (nnapi_device_name) {
-    mNnApiDeviceName = nnapi_device_name;
+BenchmarkModel* BenchmarkModel::createFromFd(const char* modelName, int modelFd,
+                                             int64_t modelOffset, int64_t modelLength,
+                                             int tfliteBackend,
+                                             bool enable_intermediate_tensors_dump,
+                                             int* nnapiErrno, const char* nnapi_device_name,
+                                             bool mmapModel, const char* nnapi_cache_dir) {
+  BenchmarkModel* model = new BenchmarkModel();
+  if (!model->loadModelFromFd(modelFd, modelOffset, modelLength, mmapModel) ||
+      !model->init(modelName, tfliteBackend, enable_intermediate_tensors_dump, nnapiErrno,
+                   nnapi_device_name, nnapi_cache_dir)) {
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to init model %s", modelName);
+    delete model;
+    return nullptr;
   }
+  return model;
+}
 
+bool BenchmarkModel::loadModel(const char* modelfile, bool mmapModel) {
   if (mmapModel) {
     // Memory map the model. NOTE this needs lifetime greater than or equal
     // to interpreter context.
@@ -112,6 +121,77 @@ bool BenchmarkModel::init(const char* modelfile, int tfliteBackend,
                         modelfile);
     return false;
   }
+  return true;
+}
+
+bool BenchmarkModel::loadModelFromFd(int modelFd, int64_t modelOffset, int64_t modelLength,
+                                     bool mmapModel) {
+  if (modelOffset < 0 || modelLength <= 0) {
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                        "Invalid model range, offset %lld length %lld",
+                        static_cast<long long>(modelOffset), static_cast<long long>(modelLength));
+    return false;
+  }
+  const size_t length = static_cast<size_t>(modelLength);
+  if (mmapModel) {
+    // The model rarely starts on a page boundary inside the APK, map from the
+    // page containing its first byte. The mapping outlives the fd.
+    const int64_t pageSize = sysconf(_SC_PAGESIZE);
+    const int64_t pageOffset = modelOffset % pageSize;
+    void* address = mmap(nullptr, length + pageOffset, PROT_READ, MAP_PRIVATE, modelFd,
+                         modelOffset - pageOffset);
+    if (address == MAP_FAILED) {
+      __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to map model: %s",
+                          strerror(errno));
+      return false;
+    }
+    mModelMapping.address = address;
+    mModelMapping.length = length + pageOffset;
+    mTfliteModel = tflite::FlatBufferModel::BuildFromBuffer(
+        static_cast<const char*>(address) + pageOffset, length);
+  } else {
+    mModelBuffer.resize(length);
+    size_t readBytes = 0;
+    while (readBytes < length) {
+      ssize_t result = pread(modelFd, &mModelBuffer[readBytes], length - readBytes,
+                             modelOffset + readBytes);
+      if (result <= 0) {
+        if (result < 0 && errno == EINTR) {
+          continue;
+        }
+        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to read model: %s",
+                            result < 0 ? strerror(errno) : "unexpected end of file");
+        return false;
+      }
+      readBytes += result;
+    }
+    mTfliteModel = tflite::FlatBufferModel::BuildFromBuffer(mModelBuffer.c_str(), mModelBuffer.size());
+  }
+  if (!mTfliteModel) {
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to load model from fd");
+    return false;
+  }
+  return true;
+}
+
+BenchmarkModel::ModelMapping::~ModelMapping() {
+  if (address != nullptr) {
+    munmap(address, length);
+  }
+}
+
+bool BenchmarkModel::init(const char* modelName, int tfliteBackend,
+                          bool enable_intermediate_tensors_dump, int* nnapiErrno,
+                          const char* nnapi_device_name, const char* nnapi_cache_dir) {
+  __android_log_print(ANDROID_LOG_INFO, LOG_TAG, "BenchmarkModel %s",
+                      modelName);
+  mModelFile = modelName;
+  if (nnapi_cache_dir) {
+    mCacheDir = nnapi_cache_dir;
+  }
+  if (nnapi_device_name) {
+    mNnApiDeviceName = nnapi_device_name;
+  }
 
   tflite::ops::builtin::BuiltinOpResolver resolver;
   tflite::InterpreterBuilder(*mTfliteModel, resolver)(&mTfliteInterpreter);
@@ -150,7 +230,7 @@ bool BenchmarkModel::init(const char* modelfile, int tfliteBackend,
         __android_log_print(
             ANDROID_LOG_ERROR, LOG_TAG,
             "Failed to initialize NNAPI Delegate for model %s, nnapi_errno is %d",
-            modelfile, *nnapiErrno);
+            modelName, *nnapiErrno);
         return false;
       }
     } break;
@@ -207,31 +287,35 @@ bool BenchmarkModel::setInput(const uint8_t* dataPtr, size_t length) {
   return true;
 }
 void BenchmarkModel::saveInferenceOutput(InferenceResult* result,
-                                         int output_index) {
+                                         int output_index, int batchIndex) {
   int output = mTfliteInterpreter->outputs()[output_index];
   auto* output_tensor = mTfliteInterpreter->tensor(output);
+  const size_t itemBytes = output_tensor->bytes / mBatchSize;
+  const uint8_t* itemData = output_tensor->data.uint8 + batchIndex * itemBytes;
   auto& sink = result->inferenceOutputs[output_index];
-  sink.insert(sink.end(), output_tensor->data.uint8,
-              output_tensor->data.uint8 + output_tensor->bytes);
+  sink.insert(sink.end(), itemData, itemData + itemBytes);
 }
 
 void BenchmarkModel::getOutputError(const uint8_t* expected_data, size_t length,
-                                    InferenceResult* result, int output_index) {
+                                    InferenceResult* result, int output_index,
+                                    int batchIndex) {
   int output = mTfliteInterpreter->outputs()[output_index];
   auto* output_tensor = mTfliteInterpreter->tensor(output);
-  if (output_tensor->bytes != length) {
+  const size_t itemBytes = output_tensor->bytes / mBatchSize;
+  if (itemBytes != length) {
     FATAL("Wrong size of output tensor, expected %zu, is %zu",
-          output_tensor->bytes, length);
+          itemBytes, length);
   }
+  const uint8_t* itemData = output_tensor->data.uint8 + batchIndex * itemBytes;
 
   size_t elements_count = 0;
   float err_sum = 0.0;
   float max_error = 0.0;
   switch (output_tensor->type) {
     case kTfLiteUInt8: {
-      uint8_t* output_raw = mTfliteInterpreter->typed_tensor<uint8_t>(output);
-      elements_count = output_tensor->bytes;
-      for (size_t i = 0; i < output_tensor->bytes; ++i) {
+      const uint8_t* output_raw = itemData;
+      elements_count = itemBytes;
+      for (size_t i = 0; i < itemBytes; ++i) {
         float err = ((float)output_raw[i]) - ((float)expected_data[i]);
         if (err > max_error) max_error = err;
         err_sum += err * err;
@@ -240,9 +324,9 @@ void BenchmarkModel::getOutputError(const uint8_t* expected_data, size_t length,
     }
     case kTfLiteFloat32: {
       const float* expected = reinterpret_cast<const float*>(expected_data);
-      float* output_raw = mTfliteInterpreter->typed_tensor<float>(output);
-      elements_count = output_tensor->bytes / sizeof(float);
-      for (size_t i = 0; i < output_tensor->bytes / sizeof(float); ++i) {
+      const float* output_raw = reinterpret_cast<const float*>(itemData);
+      elements_count = itemBytes / sizeof(float);
+      for (size_t i = 0; i < elements_count; ++i) {
         float err = output_raw[i] - expected[i];
         if (err > max_error) max_error = err;
         err_sum += err * err;
@@ -256,7 +340,12 @@ void BenchmarkModel::getOutputError(const uint8_t* expected_data, size_t length,
   result->maxSingleErrors[output_index] = max_error;
 }
 
-bool BenchmarkModel::resizeInputTensors(std::vector<int> shape) {
+bool BenchmarkModel::resizeInputTensors(std::vector<int> shape, int batchSize) {
+  if (batchSize < 1 || shape.empty() || shape[0] % batchSize != 0) {
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                        "Invalid batch size %d", batchSize);
+    return false;
+  }
   // The benchmark only expects single input tensor, hardcoded as 0.
   int input = mTfliteInterpreter->inputs()[0];
   mTfliteInterpreter->ResizeInputTensor(input, shape);
@@ -265,6 +354,15 @@ bool BenchmarkModel::resizeInputTensors(std::vector<int> shape) {
                         "Failed to allocate tensors!");
     return false;
   }
+  // Outputs are split evenly between the examples of a batch.
+  for (int output : mTfliteInterpreter->outputs()) {
+    if (mTfliteInterpreter->tensor(output)->bytes % batchSize != 0) {
+      __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                          "Output %d cannot be split in %d examples", output, batchSize);
+      return false;
+    }
+  }
+  mBatchSize = batchSize;
   return true;
 }
 
@@ -292,17 +390,118 @@ bool BenchmarkModel::resetStates() {
   return true;
 }
 
+void LatencyTimeSeries::add(float startTimeSec, float latencySec) {
+  size_t index = static_cast<size_t>(std::max(startTimeSec, 0.0f) / windowSec);
+  while (index >= kMaxWindowCount) {
+    coalesce();
+    index = static_cast<size_t>(std::max(startTimeSec, 0.0f) / windowSec);
+  }
+  if (index >= counts.size()) {
+    counts.resize(index + 1, 0);
+    sumsSec.resize(index + 1, 0.0);
+    maxesSec.resize(index + 1, 0.0f);
+  }
+  counts[index]++;
+  sumsSec[index] += latencySec;
+  maxesSec[index] = std::max(maxesSec[index], latencySec);
+}
+
+void LatencyTimeSeries::coalesce() {
+  const size_t newCount = (counts.size() + 1) / 2;
+  for (size_t i = 0; i < newCount; ++i) {
+    const size_t first = 2 * i;
+    const size_t second = first + 1;
+    int64_t count = counts[first];
+    double sum = sumsSec[first];
+    float max = maxesSec[first];
+    if (second < counts.size()) {
+      count += counts[second];
+      sum += sumsSec[second];
+      max = std::max(max, maxesSec[second]);
+    }
+    counts[i] = count;
+    sumsSec[i] = sum;
+    maxesSec[i] = max;
+  }
+  counts.resize(newCount);
+  sumsSec.resize(newCount);
+  maxesSec.resize(newCount);
+  windowSec *= 2;
+}
+
+void InferencePhaseTotals::add(const InferenceResult& result) {
+  for (int phase = 0; phase < PHASE_COUNT; ++phase) {
+    totalsSec[phase] += result.phaseTimesSec[phase];
+    maxesSec[phase] = std::max(maxesSec[phase], result.phaseTimesSec[phase]);
+  }
+}
+
+int LatencyAccumulator::bucketIndex(int64_t micros) {
+  if (micros < kSubBucketCount) {
+    return static_cast<int>(micros);
+  }
+  const int msb = 63 - __builtin_clzll(static_cast<uint64_t>(micros));
+  const int shift = msb - (kSubBucketBits - 1);
+  return shift * (kSubBucketCount / 2) + static_cast<int>(micros >> shift);
+}
+
+void LatencyAccumulator::add(int64_t latencyMicros,
+                             const InferenceResult& result) {
+  latencyMicros = std::max<int64_t>(latencyMicros, 0);
+  const double latencySec = latencyMicros / 1000000.0;
+  count++;
+  totalTimeSec += latencySec;
+  const double delta = latencySec - meanTimeSec;
+  meanTimeSec += delta / count;
+  m2 += delta * (latencySec - meanTimeSec);
+  minMicros = count == 1 ? latencyMicros : std::min(minMicros, latencyMicros);
+  maxMicros = std::max(maxMicros, latencyMicros);
+  histogram[bucketIndex(std::min(latencyMicros, kMaxTrackableMicros))]++;
+  timeSeries.add(result.startTimeSec, static_cast<float>(latencySec));
+  phaseTotals.add(result);
+
+  for (float mse : result.meanSquareErrors) {
+    sumOfMeanSquareErrors += mse;
+  }
+  for (float error : result.maxSingleErrors) {
+    maxSingleError = std::max(maxSingleError, error);
+  }
+}
+
 bool BenchmarkModel::benchmark(
     const std::vector<InferenceInOutSequence>& inOutData,
     int seqInferencesMaxCount, float timeout, int flags,
-    std::vector<InferenceResult>* results) {
+    std::vector<InferenceResult>* results,
+    LatencyAccumulator* accumulator,
+    size_t chunkSize,
+    const InferenceResultsCallback& chunkCallback) {
   if (inOutData.empty()) {
     __android_log_print(ANDROID_LOG_WARN, LOG_TAG,
                         "Input/output vector is empty");
     return true;
   }
 
-  float inferenceTotal = 0.0;
+  const bool streamResults = (flags & FLAG_STREAM_BENCHMARK_RESULTS) != 0;
+  if (streamResults && accumulator == nullptr) {
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                        "Streaming results requested without an accumulator");
+    return false;
+  }
+  if (streamResults && chunkCallback) {
+    __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                        "Streamed results cannot be handed over in chunks");
+    return false;
+  }
+
+  if (mBatchSize > 1) {
+    return benchmarkBatched(inOutData, seqInferencesMaxCount, timeout, flags, results,
+                            accumulator, chunkSize, chunkCallback);
+  }
+
+  // Kept in double precision, a float total stops increasing after a few
+  // hours of millisecond inferences and the timeout would never trigger.
+  double inferenceTotal = 0.0;
+  const long long benchmarkStartTime = currentTimeInUsec();
   for (int seqInferenceIndex = 0; seqInferenceIndex < seqInferencesMaxCount;
        ++seqInferenceIndex) {
     resetStates();
@@ -317,6 +516,7 @@ bool BenchmarkModel::benchmark(
       // frameworks/ml/nn/common/include/Tracing.h.
       kTraceFunc.ATrace_beginSection("[NN_LA_PE]BenchmarkModel::benchmark");
       kTraceFunc.ATrace_beginSection("[NN_LA_PIO]BenchmarkModel::input");
+      const long long inputStartTime = currentTimeInUsec();
       if (data.input) {
         setInput(data.input, data.input_size);
       } else {
@@ -343,12 +543,18 @@ bool BenchmarkModel::benchmark(
       float inferenceTime =
           static_cast<float>(endTime - startTime) / 1000000.0f;
       size_t outputsCount = mTfliteInterpreter->outputs().size();
+      const float startTimeSec =
+          static_cast<float>(startTime - benchmarkStartTime) / 1000000.0f;
       InferenceResult result{
-          inferenceTime, {}, {}, {}, inputOutputSequenceIndex, i};
+          inferenceTime, {}, {}, {}, inputOutputSequenceIndex, i, startTimeSec};
+      result.phaseTimesSec[PHASE_INPUT] =
+          static_cast<float>(startTime - inputStartTime) / 1000000.0f;
+      result.phaseTimesSec[PHASE_INVOKE] = inferenceTime;
       result.meanSquareErrors.resize(outputsCount);
       result.maxSingleErrors.resize(outputsCount);
       result.inferenceOutputs.resize(outputsCount);
 
+      long long phaseStartTime = currentTimeInUsec();
       if ((flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0) {
         if (outputsCount != data.outputs.size()) {
           __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
@@ -359,25 +565,216 @@ bool BenchmarkModel::benchmark(
         for (int j = 0; j < outputsCount; ++j) {
           getOutputError(data.outputs[j].ptr, data.outputs[j].size, &result, j);
         }
+        long long phaseEndTime = currentTimeInUsec();
+        result.phaseTimesSec[PHASE_OUTPUT_ERROR] =
+            static_cast<float>(phaseEndTime - phaseStartTime) / 1000000.0f;
+        phaseStartTime = phaseEndTime;
+      }
+
+      if (streamResults) {
+        accumulator->add(endTime - startTime, result);
+      } else {
+        if ((flags & FLAG_DISCARD_INFERENCE_OUTPUT) == 0) {
+          for (int j = 0; j < outputsCount; ++j) {
+            saveInferenceOutput(&result, j);
+          }
+          result.phaseTimesSec[PHASE_OUTPUT_SAVE] =
+              static_cast<float>(currentTimeInUsec() - phaseStartTime) / 1000000.0f;
+        }
+
+        if (!sampleResults || (seqInferenceIndex % INFERENCE_OUT_SAMPLE_RATE) == 0) {
+          results->push_back(result);
+        }
+      }
+      inferenceTotal += inferenceTime;
+    }
+
+    if (chunkCallback && results->size() >= chunkSize) {
+      if (!chunkCallback(*results)) {
+        return false;
+      }
+      results->clear();
+    }
+
+    // Timeout?
+    if (timeout > 0.001 && inferenceTotal > timeout) {
+      break;
+    }
+  }
+  if (chunkCallback && !results->empty()) {
+    if (!chunkCallback(*results)) {
+      return false;
+    }
+    results->clear();
+  }
+  return true;
+}
+
+// Runs the inferences of inOutData mBatchSize at a time, in the order of
+// benchmark. Every inference is an independent example: states are reset
+// before each batch, not between the steps of a sequence. The last batch is
+// completed with the next inferences of the cycle, whose results are dropped.
+// Each example reports the batch time divided by the batch size, so that the
+// latency totals stay the total run time.
+bool BenchmarkModel::benchmarkBatched(
+    const std::vector<InferenceInOutSequence>& inOutData,
+    int seqInferencesMaxCount, float timeout, int flags,
+    std::vector<InferenceResult>* results,
+    LatencyAccumulator* accumulator,
+    size_t chunkSize,
+    const InferenceResultsCallback& chunkCallback) {
+  struct BatchExample {
+    const InferenceInOut* data;
+    int inputOutputSequenceIndex;
+    int inputOutputIndex;
+    int seqInferenceIndex;
+    // False for the examples completing the last batch
+    bool counted;
+  };
+
+  bool hasInferences = false;
+  for (const InferenceInOutSequence& seq : inOutData) {
+    hasInferences |= !seq.empty();
+  }
+  if (!hasInferences) {
+    __android_log_print(ANDROID_LOG_WARN, LOG_TAG,
+                        "Input/output sequences are empty");
+    return true;
+  }
+
+  const bool streamResults = (flags & FLAG_STREAM_BENCHMARK_RESULTS) != 0;
+  const bool sampleResults = (flags & FLAG_SAMPLE_BENCHMARK_RESULTS) != 0;
+  const size_t outputsCount = mTfliteInterpreter->outputs().size();
+  auto* input_tensor = mTfliteInterpreter->tensor(mTfliteInterpreter->inputs()[0]);
+  const size_t inputItemBytes = input_tensor->bytes / mBatchSize;
+
+  std::vector<BatchExample> batch;
+  batch.reserve(mBatchSize);
+  int seqInferenceIndex = 0;
+  int inputOutputIndex = 0;
+  double inferenceTotal = 0.0;
+  const long long benchmarkStartTime = currentTimeInUsec();
+  while (seqInferenceIndex < seqInferencesMaxCount) {
+    batch.clear();
+    while (batch.size() < static_cast<size_t>(mBatchSize)) {
+      const int sequenceIndex = seqInferenceIndex % inOutData.size();
+      const InferenceInOutSequence& seq = inOutData[sequenceIndex];
+      if (inputOutputIndex < seq.size()) {
+        batch.push_back({&seq[inputOutputIndex], sequenceIndex, inputOutputIndex,
+                         seqInferenceIndex, seqInferenceIndex < seqInferencesMaxCount});
+        inputOutputIndex++;
+      }
+      if (inputOutputIndex >= seq.size()) {
+        inputOutputIndex = 0;
+        seqInferenceIndex++;
+      }
+    }
+
+    resetStates();
+    kTraceFunc.ATrace_beginSection("[NN_LA_PE]BenchmarkModel::benchmark");
+    kTraceFunc.ATrace_beginSection("[NN_LA_PIO]BenchmarkModel::input");
+    const long long inputStartTime = currentTimeInUsec();
+    for (int k = 0; k < mBatchSize; ++k) {
+      const InferenceInOut& data = *batch[k].data;
+      uint8_t* item = input_tensor->data.uint8 + k * inputItemBytes;
+      if (data.input) {
+        if (data.input_size != inputItemBytes) {
+          __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                              "Input size %zu does not match the batch example size %zu",
+                              data.input_size, inputItemBytes);
+          return false;
+        }
+        memcpy(item, data.input, inputItemBytes);
+      } else if (!data.createInput(item, inputItemBytes)) {
+        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                            "Input creation %d failed", batch[k].inputOutputIndex);
+        return false;
+      }
+    }
+    kTraceFunc.ATrace_endSection();
+    long long startTime = currentTimeInUsec();
+    const bool success = runInference();
+    kTraceFunc.ATrace_endSection();
+    long long endTime = currentTimeInUsec();
+    if (!success) {
+      __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Batch inference failed");
+      return false;
+    }
+
+    const float batchTime = static_cast<float>(endTime - startTime) / 1000000.0f;
+    const float inferenceTime = batchTime / mBatchSize;
+    const float inputTime =
+        static_cast<float>(startTime - inputStartTime) / 1000000.0f / mBatchSize;
+    const float startTimeSec =
+        static_cast<float>(startTime - benchmarkStartTime) / 1000000.0f;
+    for (int k = 0; k < mBatchSize; ++k) {
+      const BatchExample& example = batch[k];
+      if (!example.counted) {
+        continue;
       }
+      const InferenceInOut& data = *example.data;
+      InferenceResult result{inferenceTime, {}, {}, {}, example.inputOutputSequenceIndex,
+                             example.inputOutputIndex, startTimeSec};
+      result.phaseTimesSec[PHASE_INPUT] = inputTime;
+      result.phaseTimesSec[PHASE_INVOKE] = inferenceTime;
+      result.meanSquareErrors.resize(outputsCount);
+      result.maxSingleErrors.resize(outputsCount);
+      result.inferenceOutputs.resize(outputsCount);
 
-      if ((flags & FLAG_DISCARD_INFERENCE_OUTPUT) == 0) {
+      long long phaseStartTime = currentTimeInUsec();
+      if ((flags & FLAG_IGNORE_GOLDEN_OUTPUT) == 0) {
+        if (outputsCount != data.outputs.size()) {
+          __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                              "Golden/actual outputs (%zu/%zu) count mismatch",
+                              data.outputs.size(), outputsCount);
+          return false;
+        }
         for (int j = 0; j < outputsCount; ++j) {
-          saveInferenceOutput(&result, j);
+          getOutputError(data.outputs[j].ptr, data.outputs[j].size, &result, j, k);
         }
+        long long phaseEndTime = currentTimeInUsec();
+        result.phaseTimesSec[PHASE_OUTPUT_ERROR] =
+            static_cast<float>(phaseEndTime - phaseStartTime) / 1000000.0f;
+        phaseStartTime = phaseEndTime;
       }
 
-      if (!sampleResults || (seqInferenceIndex % INFERENCE_OUT_SAMPLE_RATE) == 0) {
-        results->push_back(result);
+      if (streamResults) {
+        accumulator->add((endTime - startTime) / mBatchSize, result);
+      } else {
+        if ((flags & FLAG_DISCARD_INFERENCE_OUTPUT) == 0) {
+          for (int j = 0; j < outputsCount; ++j) {
+            saveInferenceOutput(&result, j, k);
+          }
+          result.phaseTimesSec[PHASE_OUTPUT_SAVE] =
+              static_cast<float>(currentTimeInUsec() - phaseStartTime) / 1000000.0f;
+        }
+
+        if (!sampleResults || (example.seqInferenceIndex % INFERENCE_OUT_SAMPLE_RATE) == 0) {
+          results->push_back(result);
+        }
       }
-      inferenceTotal += inferenceTime;
+    }
+    inferenceTotal += batchTime;
+
+    // Results are only handed over between sequences, as in benchmark.
+    if (chunkCallback && inputOutputIndex == 0 && results->size() >= chunkSize) {
+      if (!chunkCallback(*results)) {
+        return false;
+      }
+      results->clear();
     }
 
     // Timeout?
     if (timeout > 0.001 && inferenceTotal > timeout) {
-      return true;
+      break;
     }
   }
+  if (chunkCallback && !results->empty()) {
+    if (!chunkCallback(*results)) {
+      return false;
+    }
+    results->clear();
+  }
   return true;
 }
 
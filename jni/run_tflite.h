@@ -22,6 +22,7 @@
 #include "tensorflow/lite/interpreter.h"
 #include "tensorflow/lite/model.h"
 
+#include <functional>
 #include <memory>
 #include <unistd.h>
 #include <vector>
@@ -46,6 +47,18 @@ struct InferenceInOut {
 // Inputs and expected outputs for an inference sequence.
 using InferenceInOutSequence = std::vector<InferenceInOut>;
 
+// Phases of an inference, in the order used by
+// com.android.nn.benchmark.core.InferencePhaseBreakdown.
+enum InferencePhase {
+  PHASE_INPUT = 0,
+  PHASE_INVOKE,
+  PHASE_OUTPUT_ERROR,
+  PHASE_OUTPUT_SAVE,
+  // Conversion of the results to Java objects, measured in benchmark_jni.cpp
+  PHASE_JNI_CONVERSION,
+  PHASE_COUNT,
+};
+
 // Result of a single inference
 struct InferenceResult {
   float computeTimeSec;
@@ -57,8 +70,74 @@ struct InferenceResult {
   std::vector<std::vector<uint8_t>> inferenceOutputs;
   int inputOutputSequenceIndex;
   int inputOutputIndex;
+  // Start of the inference, relative to the start of the benchmark
+  float startTimeSec;
+  // Time spent in each InferencePhase, the invoke phase is computeTimeSec
+  float phaseTimesSec[PHASE_COUNT] = {};
+};
+
+// Total and max time spent in each InferencePhase over a benchmark run.
+struct InferencePhaseTotals {
+  void add(const InferenceResult& result);
+
+  double totalsSec[PHASE_COUNT] = {};
+  float maxesSec[PHASE_COUNT] = {};
+};
+
+// Latency aggregates over fixed wall-clock windows of a benchmark run. Once
+// kMaxWindowCount windows are used, adjacent windows are coalesced and the
+// window duration doubles. Mirrors com.android.nn.benchmark.core.LatencyTimeSeries.
+struct LatencyTimeSeries {
+  static constexpr float kInitialWindowSec = 1.0f;
+  static constexpr int kMaxWindowCount = 512;
+
+  void add(float startTimeSec, float latencySec);
+
+  float windowSec = kInitialWindowSec;
+  std::vector<int64_t> counts;
+  std::vector<double> sumsSec;
+  std::vector<float> maxesSec;
+
+ private:
+  void coalesce();
 };
 
+// Constant-memory summary of the inference results of a benchmark, used
+// instead of one InferenceResult per inference for long running benchmarks.
+// The latency histogram uses the same log-linear bucket layout as
+// com.android.nn.benchmark.core.LatencyHistogram, keep them in sync.
+struct LatencyAccumulator {
+  static constexpr int kSubBucketBits = 7;
+  static constexpr int kSubBucketCount = 1 << kSubBucketBits;
+  static constexpr int kMaxValueBits = 40;
+  static constexpr int64_t kMaxTrackableMicros = (1LL << kMaxValueBits) - 1;
+
+  static int bucketIndex(int64_t micros);
+  static int bucketCount() { return bucketIndex(kMaxTrackableMicros) + 1; }
+
+  LatencyAccumulator() : histogram(bucketCount(), 0) {}
+
+  // Adds a single inference latency and its output errors, if any.
+  void add(int64_t latencyMicros, const InferenceResult& result);
+
+  int64_t count = 0;
+  double totalTimeSec = 0.0;
+  // Running mean and sum of squared deviations (Welford's algorithm).
+  double meanTimeSec = 0.0;
+  double m2 = 0.0;
+  int64_t minMicros = 0;
+  int64_t maxMicros = 0;
+  std::vector<int64_t> histogram;
+  LatencyTimeSeries timeSeries;
+  InferencePhaseTotals phaseTotals;
+  double sumOfMeanSquareErrors = 0.0;
+  float maxSingleError = 0.0f;
+};
+
+// Receives the results collected so far by a benchmark, which then discards
+// them. Returning false aborts the benchmark.
+using InferenceResultsCallback = std::function<bool(const std::vector<InferenceResult>&)>;
+
 struct CompilationBenchmarkResult {
   std::vector<float> compileWithoutCacheTimeSec;
   // The following optional fields have no value if compilation caching is not supported.
@@ -75,6 +154,12 @@ const int FLAG_IGNORE_GOLDEN_OUTPUT = 1 << 1;
 /** Collect only 1 benchmark result every INFERENCE_OUT_SAMPLE_RATE **/
 const int FLAG_SAMPLE_BENCHMARK_RESULTS = 1 << 2;
 
+/**
+ * Do not collect per-inference results, only accumulate latency and error
+ * statistics into a LatencyAccumulator. Inference outputs are discarded.
+ **/
+const int FLAG_STREAM_BENCHMARK_RESULTS = 1 << 3;
+
 const int INFERENCE_OUT_SAMPLE_RATE = 10;
 
 enum class CompilationBenchmarkType {
@@ -100,15 +185,35 @@ class BenchmarkModel {
                                 int* nnapiErrno, const char* nnapi_device_name,
                                 bool mmapModel, const char* nnapi_cache_dir);
 
-  bool resizeInputTensors(std::vector<int> shape);
+  // Loads the model from the modelLength bytes at modelOffset in modelFd, such as an
+  // uncompressed asset in the APK. The fd is not kept open. modelName identifies the model
+  // in logs and in the NNAPI compilation cache.
+  static BenchmarkModel* createFromFd(const char* modelName, int modelFd,
+                                      int64_t modelOffset, int64_t modelLength,
+                                      int tfliteBackend,
+                                      bool enable_intermediate_tensors_dump,
+                                      int* nnapiErrno, const char* nnapi_device_name,
+                                      bool mmapModel, const char* nnapi_cache_dir);
+
+  // batchSize is the number of inferences packed along the leading dimension
+  // of shape. With batchSize > 1, benchmark runs every inference of the
+  // sequences as an independent example, see benchmarkBatched.
+  bool resizeInputTensors(std::vector<int> shape, int batchSize = 1);
   bool setInput(const uint8_t* dataPtr, size_t length);
   bool runInference();
   // Resets TFLite states (RNN/LSTM states etc).
   bool resetStates();
 
+  // Results are appended to result, or accumulated into accumulator if
+  // FLAG_STREAM_BENCHMARK_RESULTS is set. If chunkCallback is set, it is
+  // handed the results at the end of each inference sequence once at least
+  // chunkSize are collected, and at the end of the benchmark.
   bool benchmark(const std::vector<InferenceInOutSequence>& inOutData,
                  int seqInferencesMaxCount, float timeout, int flags,
-                 std::vector<InferenceResult>* result);
+                 std::vector<InferenceResult>* result,
+                 LatencyAccumulator* accumulator = nullptr,
+                 size_t chunkSize = 0,
+                 const InferenceResultsCallback& chunkCallback = nullptr);
 
   bool benchmarkCompilation(int maxNumIterations, float warmupTimeout, float runTimeout,
                             CompilationBenchmarkResult* result);
@@ -118,17 +223,29 @@ class BenchmarkModel {
 
  private:
   BenchmarkModel() = default;
-  bool init(const char* modelfile, int tfliteBackend,
+  /* mmapModel chooses between memory mapping the model and initializing the
+     model from programs memory */
+  bool loadModel(const char* modelfile, bool mmapModel);
+  bool loadModelFromFd(int modelFd, int64_t modelOffset, int64_t modelLength,
+                       bool mmapModel);
+  bool init(const char* modelName, int tfliteBackend,
             bool enable_intermediate_tensors_dump,
             int* nnapiErrno, const char* nnapi_device_name,
-            /* flag to choose between memory mapping the model and initializing
-                the model from programs memory*/
-            bool mmapModel,
             const char* nnapi_cache_dir);
 
+  // Outputs are split along the leading dimension, batchIndex selects the
+  // example of the current batch.
   void getOutputError(const uint8_t* dataPtr, size_t length,
-                      InferenceResult* result, int output_index);
-  void saveInferenceOutput(InferenceResult* result, int output_index);
+                      InferenceResult* result, int output_index,
+                      int batchIndex = 0);
+  void saveInferenceOutput(InferenceResult* result, int output_index,
+                           int batchIndex = 0);
+
+  bool benchmarkBatched(const std::vector<InferenceInOutSequence>& inOutData,
+                        int seqInferencesMaxCount, float timeout, int flags,
+                        std::vector<InferenceResult>* result,
+                        LatencyAccumulator* accumulator, size_t chunkSize,
+                        const InferenceResultsCallback& chunkCallback);
 
   bool runCompilation(const char* cacheDir);
   bool benchmarkSingleTypeOfCompilation(CompilationBenchmarkType type, int maxNumIterations,
@@ -138,6 +255,14 @@ class BenchmarkModel {
                                                   float runTimeout, std::vector<float>* results);
   bool getCompilationCacheSize(int* cacheSizeBytes);
 
+  // Pages mapped by loadModelFromFd, unmapped after mTfliteModel is destroyed.
+  struct ModelMapping {
+    ~ModelMapping();
+    void* address = nullptr;
+    size_t length = 0;
+  };
+
+  ModelMapping mModelMapping;
   std::string mModelBuffer;
   std::unique_ptr<tflite::FlatBufferModel> mTfliteModel;
   std::unique_ptr<tflite::Interpreter> mTfliteInterpreter;
@@ -153,6 +278,7 @@ class BenchmarkModel {
   TfLiteDelegate* mGpuDelegate;
 #endif  // defined(NN_BENCHMARK_ENABLE_GPU)
   int mTfliteBackend;
+  int mBatchSize = 1;
 };
 
 #endif  // COM_EXAMPLE_ANDROID_NN_BENCHMARK_RUN_TFLITE_H
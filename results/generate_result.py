@@ -38,7 +38,30 @@ class ScoreException(Exception):
 
 LatencyResult = collections.namedtuple(
     'LatencyResult',
-    ['iterations', 'total_time_sec', 'time_freq_start_sec', 'time_freq_step_sec', 'time_freq_sec'])
+    ['iterations', 'total_time_sec', 'percentiles_sec', 'max_sec', 'histogram'])
+
+
+# Percentiles reported by LatencyResult.java, in the order they appear in the CSV.
+LATENCY_PERCENTILES = [50.0, 90.0, 95.0, 99.0, 99.9]
+
+
+# One non-empty bucket of the log-linear histogram from LatencyHistogram.java.
+HistogramBucket = collections.namedtuple(
+    'HistogramBucket',
+    ['start_sec', 'end_sec', 'count'])
+
+
+def get_histogram_bucket(sub_bucket_bits, index, count):
+  """Decode a LatencyHistogram bucket index into its time range."""
+  sub_bucket_count = 1 << sub_bucket_bits
+  half_count = sub_bucket_count // 2
+  if index < sub_bucket_count:
+    start_us, width_us = index, 1
+  else:
+    shift = index // half_count - 1
+    start_us = (index - shift * half_count) << shift
+    width_us = 1 << shift
+  return HistogramBucket(start_us / 1e6, (start_us + width_us) / 1e6, count)
 
 
 COMPILATION_TYPES = ['compile_without_cache', 'save_to_cache', 'prepare_from_cache']
@@ -52,7 +75,68 @@ BenchmarkResult = collections.namedtuple(
     'BenchmarkResult',
     ['name', 'backend_type', 'inference_latency', 'max_single_error',
      'testset_size', 'evaluator_keys', 'evaluator_values', 'validation_errors',
-     'compilation_results'])
+     'compilation_results', 'latency_time_series', 'confidence_interval',
+     'warmup_iterations', 'phase_breakdown', 'batch_size', 'batch_size_sweep',
+     'throughput_scaling', 'saturation_curve', 'quiescence_wait_sec'])
+
+
+# Inference latencies over wall-clock windows, see LatencyTimeSeries.java.
+LatencyTimeSeries = collections.namedtuple(
+    'LatencyTimeSeries',
+    ['time_to_throttle_sec', 'steady_state_latency_sec', 'degradation_ratio',
+     'window_sec', 'windows'])
+
+
+LatencyTimeSeriesWindow = collections.namedtuple(
+    'LatencyTimeSeriesWindow',
+    ['count', 'mean_sec', 'max_sec'])
+
+
+# Confidence interval of the inference latency mean (percentile < 0) or of a
+# percentile, see ConfidenceInterval.java.
+ConfidenceInterval = collections.namedtuple(
+    'ConfidenceInterval',
+    ['percentile', 'confidence', 'estimate_sec', 'lower_sec', 'upper_sec'])
+
+
+# Time spent in each phase of the inferences, see InferencePhaseBreakdown.java.
+INFERENCE_PHASES = ['input', 'invoke', 'output_error', 'output_save',
+                    'jni_conversion']
+
+
+InferencePhaseBreakdown = collections.namedtuple(
+    'InferencePhaseBreakdown',
+    ['count', 'phases'])
+
+
+InferencePhase = collections.namedtuple(
+    'InferencePhase',
+    ['name', 'mean_sec', 'max_sec'])
+
+
+# Throughput and batch latency per batch size, see BatchSizeSweep.java.
+BatchSizeSweepPoint = collections.namedtuple(
+    'BatchSizeSweepPoint',
+    ['batch_size', 'items_per_sec', 'mean_batch_latency_sec',
+     'p90_batch_latency_sec'])
+
+
+# Aggregate throughput of concurrent model instances, see ThroughputScaling.java.
+ThroughputScalingRun = collections.namedtuple(
+    'ThroughputScalingRun',
+    ['instance_count', 'inferences_per_sec', 'stream_latencies'])
+
+
+# Throughput and latency under increasing open-loop load, see SaturationCurve.java.
+SaturationCurve = collections.namedtuple(
+    'SaturationCurve',
+    ['worker_count', 'p99_limit_sec', 'stop_reason', 'steps'])
+
+
+SaturationStep = collections.namedtuple(
+    'SaturationStep',
+    ['offered_qps', 'achieved_qps', 'service_p50_sec', 'response_p50_sec',
+     'response_p99_sec', 'stable'])
 
 
 ResultsWithBaseline = collections.namedtuple(
@@ -118,10 +202,15 @@ class BenchmarkResultParser:
     result = {}
     result['iterations'] = self.read_typed(int)
     result['total_time_sec'] = self.read_typed(float)
-    result['time_freq_start_sec'] = self.read_typed(float)
-    result['time_freq_step_sec'] = self.read_typed(float)
-    time_freq_sec_count = self.read_typed(int)
-    result['time_freq_sec'] = self.read_typed_array(float, time_freq_sec_count)
+    result['percentiles_sec'] = self.read_typed_array(float,
+                                                      len(LATENCY_PERCENTILES))
+    result['max_sec'] = self.read_typed(float)
+    sub_bucket_bits = self.read_typed(int)
+    bucket_count = self.read_typed(int)
+    result['histogram'] = [
+        get_histogram_bucket(sub_bucket_bits, self.read_typed(int),
+                             self.read_typed(int))
+        for _ in range(bucket_count)]
     return LatencyResult(**result)
 
   def read_compilation_result(self):
@@ -133,6 +222,72 @@ class BenchmarkResultParser:
     result['cache_size_bytes'] = self.read_typed(int)
     return CompilationResult(**result)
 
+  def read_latency_time_series(self):
+    """Read the next CSV cells as a LatencyTimeSeries, if present."""
+    if not self.read_typed(bool):
+      return None
+    result = {}
+    result['time_to_throttle_sec'] = self.read_typed(float)
+    result['steady_state_latency_sec'] = self.read_typed(float)
+    result['degradation_ratio'] = self.read_typed(float)
+    result['window_sec'] = self.read_typed(float)
+    window_count = self.read_typed(int)
+    result['windows'] = [
+        LatencyTimeSeriesWindow(self.read_typed(int), self.read_typed(float),
+                                self.read_typed(float))
+        for _ in range(window_count)]
+    return LatencyTimeSeries(**result)
+
+  def read_confidence_interval(self):
+    """Read the next CSV cells as a ConfidenceInterval, if present."""
+    if not self.read_typed(bool):
+      return None
+    return ConfidenceInterval(*self.read_typed_array(float, 5))
+
+  def read_phase_breakdown(self):
+    """Read the next CSV cells as an InferencePhaseBreakdown, if present."""
+    if not self.read_typed(bool):
+      return None
+    count = self.read_typed(int)
+    phases = [InferencePhase(name, self.read_typed(float), self.read_typed(float))
+              for name in INFERENCE_PHASES]
+    return InferencePhaseBreakdown(count, phases)
+
+  def read_batch_size_sweep(self):
+    """Read the next CSV cells as a list of BatchSizeSweepPoint, if present."""
+    if not self.read_typed(bool):
+      return None
+    count = self.read_typed(int)
+    return [BatchSizeSweepPoint(self.read_typed(int), self.read_typed(float),
+                                self.read_typed(float), self.read_typed(float))
+            for _ in range(count)]
+
+  def read_throughput_scaling(self):
+    """Read the next CSV cells as a list of ThroughputScalingRun, if present."""
+    if not self.read_typed(bool):
+      return None
+    runs = []
+    for _ in range(self.read_typed(int)):
+      instance_count = self.read_typed(int)
+      inferences_per_sec = self.read_typed(float)
+      stream_latencies = [self.read_latency_result()
+                          for _ in range(instance_count)]
+      runs.append(ThroughputScalingRun(instance_count, inferences_per_sec,
+                                       stream_latencies))
+    return runs
+
+  def read_saturation_curve(self):
+    """Read the next CSV cells as a SaturationCurve, if present."""
+    if not self.read_typed(bool):
+      return None
+    worker_count = self.read_typed(int)
+    p99_limit_sec = self.read_typed(float)
+    stop_reason = self.read_typed(str)
+    steps = [SaturationStep(*(self.read_typed_array(float, 5) +
+                              [self.read_typed(bool)]))
+             for _ in range(self.read_typed(int))]
+    return SaturationCurve(worker_count, p99_limit_sec, stop_reason, steps)
+
   def read_benchmark_result(self):
     """Read the next CSV cells as a BenchmarkResult."""
     result = {}
@@ -147,6 +302,15 @@ class BenchmarkResultParser:
     result['evaluator_values'] = self.read_typed_array(float, evaluator_keys_count)
     result['validation_errors'] = self.read_typed_array(str, validation_error_count)
     result['compilation_results'] = self.read_compilation_result()
+    result['latency_time_series'] = self.read_latency_time_series()
+    result['confidence_interval'] = self.read_confidence_interval()
+    result['warmup_iterations'] = self.read_typed(int)
+    result['phase_breakdown'] = self.read_phase_breakdown()
+    result['batch_size'] = self.read_typed(int)
+    result['batch_size_sweep'] = self.read_batch_size_sweep()
+    result['throughput_scaling'] = self.read_throughput_scaling()
+    result['saturation_curve'] = self.read_saturation_curve()
+    result['quiescence_wait_sec'] = self.read_typed(float)
     return BenchmarkResult(**result)
 
 
@@ -205,43 +369,40 @@ def get_frequency_graph_min_max(latencies):
   mins = []
   maxs = []
   for latency in latencies:
-    mins.append(latency.time_freq_start_sec)
-    to_add = len(latency.time_freq_sec) * latency.time_freq_step_sec
-    maxs.append(latency.time_freq_start_sec + to_add)
+    if latency.histogram:
+      mins.append(latency.histogram[0].start_sec)
+      maxs.append(latency.histogram[-1].end_sec)
+  if not mins:
+    return 0.0, 0.0
   return min(mins), max(maxs)
 
 
-def get_frequency_graph(time_freq_start_sec, time_freq_step_sec, time_freq_sec,
-                        start_sec, end_sec):
-  """Generate input x/y data for latency frequency graph."""
-  left_to_pad = (int((time_freq_start_sec - start_sec) / time_freq_step_sec)
-                 if time_freq_step_sec != 0
-                 else math.inf)
-  end_time = time_freq_start_sec + len(time_freq_sec) * time_freq_step_sec
-  right_to_pad = (int((end_sec - end_time) / time_freq_step_sec)
-                  if time_freq_step_sec != 0
-                  else math.inf)
-
-  # After pading more that 64 values, graphs start to look messy,
-  # bail out in that case.
-  if (left_to_pad + right_to_pad) < 64:
-    left_pad = (['{:.2f}ms'.format(
-        (start_sec + x * time_freq_step_sec) * 1000.0)
-                 for x in range(left_to_pad)], [0] * left_to_pad)
-
-    right_pad = (['{:.2f}ms'.format(
-        (end_time + x * time_freq_step_sec) * 1000.0)
-                  for x in range(right_to_pad)], [0] * right_to_pad)
-  else:
-    left_pad = [[], []]
-    right_pad = [[], []]
+# Number of display bins for the latency frequency graphs.
+FREQUENCY_GRAPH_BINS = 32
+
 
-  data = (['{:.2f}ms'.format(
-      (time_freq_start_sec + x * time_freq_step_sec) * 1000.0)
-           for x in range(len(time_freq_sec))], time_freq_sec)
+def get_frequency_graph(histogram, start_sec, end_sec):
+  """Generate input x/y data for latency frequency graph.
 
-  return (left_pad[0] + data[0] + right_pad[0],
-          left_pad[1] + data[1] + right_pad[1])
+  The log-linear histogram buckets are re-binned into FREQUENCY_GRAPH_BINS
+  log-spaced bins covering [start_sec, end_sec), so that graphs in the same
+  group share their x axis and long tails do not squash the distribution.
+  """
+  # Bucket 0 starts at 0us, use 1us as the lower bound of the log scale.
+  start_sec = max(start_sec, 1e-6)
+  end_sec = max(end_sec, start_sec * 1.01)
+  log_start = math.log(start_sec)
+  log_step = (math.log(end_sec) - log_start) / FREQUENCY_GRAPH_BINS
+
+  counts = [0] * FREQUENCY_GRAPH_BINS
+  for bucket in histogram:
+    mid_sec = max((bucket.start_sec + bucket.end_sec) / 2.0, start_sec)
+    index = int((math.log(mid_sec) - log_start) / log_step)
+    counts[min(max(index, 0), FREQUENCY_GRAPH_BINS - 1)] += bucket.count
+
+  labels = ['{:.2f}ms'.format(math.exp(log_start + x * log_step) * 1000.0)
+            for x in range(FREQUENCY_GRAPH_BINS)]
+  return (labels, counts)
 
 
 def is_topk_evaluator(evaluator_keys):
@@ -365,24 +526,39 @@ def getchartjs_source():
               CHART_JS_FILE).read()
 
 
-def generate_avg_ms(baseline, latency):
-  """Generate average latency value."""
+def generate_latency_ms(baseline, latency, get_latency_ms):
+  """Generate a latency value, with the diff to the baseline."""
   if latency is None:
     latency = baseline
 
-  result_avg_ms = (latency.total_time_sec / latency.iterations)*1000.0
+  result_ms = get_latency_ms(latency)
   if latency is baseline:
-    return LATENCY_BASELINE_TEMPLATE.format(val=result_avg_ms)
-  baseline_avg_ms = (baseline.total_time_sec / baseline.iterations)*1000.0
-  diff = (result_avg_ms/baseline_avg_ms - 1.0) * 100.0
-  diff_val = result_avg_ms - baseline_avg_ms
+    return LATENCY_BASELINE_TEMPLATE.format(val=result_ms)
+  baseline_ms = get_latency_ms(baseline)
+  diff = (result_ms/baseline_ms - 1.0) * 100.0
+  diff_val = result_ms - baseline_ms
   return LATENCY_DIFF_TEMPLATE.format(
-      val=result_avg_ms,
+      val=result_ms,
       diff=diff,
       diff_val=diff_val,
       span=get_diff_span(diff, same_delta=1.0, positive_is_better=False))
 
 
+def generate_avg_ms(baseline, latency):
+  """Generate average latency value."""
+  return generate_latency_ms(
+      baseline, latency,
+      lambda l: (l.total_time_sec / l.iterations) * 1000.0)
+
+
+def generate_p99_ms(baseline, latency):
+  """Generate 99th percentile latency value."""
+  p99_index = LATENCY_PERCENTILES.index(99.0)
+  return generate_latency_ms(
+      baseline, latency,
+      lambda l: l.percentiles_sec[p99_index] * 1000.0)
+
+
 def generate_result_entry(baseline, result):
   if result is None:
     result = baseline
@@ -394,7 +570,8 @@ def generate_result_entry(baseline, result):
       iterations=result.inference_latency.iterations,
       testset_size=result.testset_size,
       accuracy_values=generate_accuracy_values(baseline, result),
-      avg_ms=generate_avg_ms(baseline.inference_latency, result.inference_latency))
+      avg_ms=generate_avg_ms(baseline.inference_latency, result.inference_latency),
+      p99_ms=generate_p99_ms(baseline.inference_latency, result.inference_latency))
 
 
 def generate_latency_graph_entry(tag, latency, tmin, tmax):
@@ -402,10 +579,7 @@ def generate_latency_graph_entry(tag, latency, tmin, tmax):
   return LATENCY_GRAPH_ENTRY_TEMPLATE.format(
       tag=tag,
       i=id(latency),
-      freq_data=get_frequency_graph(latency.time_freq_start_sec,
-                                    latency.time_freq_step_sec,
-                                    latency.time_freq_sec,
-                                    tmin, tmax))
+      freq_data=get_frequency_graph(latency.histogram, tmin, tmax))
 
 
 def generate_latency_graphs_group(tags, latencies):
@@ -634,6 +808,7 @@ RESULT_GROUP_TEMPLATE = """<div class="group">
    <th>Iterations</th>
    <th>Test set size</th>
    <th>Average latency ms</th>
+   <th>p99 latency ms</th>
    {accuracy_headers}
  </tr>
  {results}
@@ -757,6 +932,7 @@ RESULT_ENTRY_TEMPLATE = """
    <td>{iterations:d}</td>
    <td>{testset_size:d}</td>
    <td>{avg_ms}</td>
+   <td>{p99_ms}</td>
    {accuracy_values}
   </tr>"""
 
@@ -93,6 +93,39 @@ public class BenchmarkTestBase extends ActivityInstrumentationTestCase2<NNBenchm
         mActivity.setCompleteInputSet(completeInputSet);
     }
 
+    protected void setStreamResults(boolean streamResults) {
+        mActivity.setStreamResults(streamResults);
+    }
+
+    protected void setPipelinedEvaluation(boolean pipelinedEvaluation) {
+        mActivity.setPipelinedEvaluation(pipelinedEvaluation);
+    }
+
+    protected void setMaterializedDatasetSize(int datasetSize) {
+        mActivity.setMaterializedDatasetSize(datasetSize);
+    }
+
+    protected void setBatchSizeSweep(int... batchSizes) {
+        mActivity.setBatchSizeSweep(batchSizes);
+    }
+
+    // Measures the throughput of 1 instance of the model up to one per core.
+    protected void enableThroughputScaling() {
+        mActivity.setThroughputScaling(Runtime.getRuntime().availableProcessors());
+    }
+
+    protected void setSaturationSearch(int workerCount, float p99LimitSec) {
+        mActivity.setSaturationSearch(workerCount, p99LimitSec);
+    }
+
+    protected void setQuiescenceMaxWaitSeconds(float maxWaitSeconds) {
+        mActivity.setQuiescenceMaxWaitSeconds(maxWaitSeconds);
+    }
+
+    protected void enableSteadyStateWarmup(float maxWarmupTimeSeconds) {
+        mActivity.enableSteadyStateWarmup(maxWarmupTimeSeconds);
+    }
+
     protected void enableCompilationCachingBenchmarks() {
         mActivity.enableCompilationCachingBenchmarks(COMPILATION_WARMUP_SECONDS,
                 COMPILATION_RUNTIME_SECONDS, COMPILATION_MAX_ITERATIONS);
@@ -25,6 +25,7 @@ import android.view.WindowManager;
 import android.widget.TextView;
 import com.android.nn.benchmark.core.BenchmarkException;
 import com.android.nn.benchmark.core.BenchmarkResult;
+import com.android.nn.benchmark.core.ConfidenceInterval;
 import com.android.nn.benchmark.core.Processor;
 import com.android.nn.benchmark.core.TestModels.TestModelEntry;
 import com.android.nn.benchmark.core.TfLiteBackend;
@@ -45,6 +46,16 @@ public class NNBenchmark extends Activity implements Processor.Callback {
     public static final String EXTRA_RESULTS_RESULTS = "results";
     public static final long PROCESSOR_TERMINATION_TIMEOUT_MS = Duration.ofSeconds(20).toMillis();
     public static final String EXTRA_MAX_ITERATIONS = "max_iterations";
+    // Relative width of the latency confidence interval to reach, 0 for fixed run times.
+    public static final String EXTRA_ADAPTIVE_CI_WIDTH = "adaptive_ci_width";
+    // Latency percentile to converge on, the mean if not set.
+    public static final String EXTRA_ADAPTIVE_PERCENTILE = "adaptive_percentile";
+    public static final String EXTRA_ADAPTIVE_MAX_TIME = "adaptive_max_time";
+    public static final float DEFAULT_ADAPTIVE_MAX_TIME_SECONDS = 30.f;
+    // Number of dataset images preprocessed before the run, 0 to preprocess them on demand.
+    public static final String EXTRA_MATERIALIZED_DATASET_SIZE = "materialized_dataset_size";
+    // Number of inferences per invocation of the models, see NNTestBase.setBatchSize.
+    public static final String EXTRA_BATCH_SIZE = "batch_size";
 
     private int mTestList[];
 
@@ -71,6 +82,42 @@ public class NNBenchmark extends Activity implements Processor.Callback {
         mProcessor.setCompleteInputSet(completeInputSet);
     }
 
+    public void setStreamResults(boolean streamResults) {
+        mProcessor.setStreamResults(streamResults);
+    }
+
+    public void setPipelinedEvaluation(boolean pipelinedEvaluation) {
+        mProcessor.setPipelinedEvaluation(pipelinedEvaluation);
+    }
+
+    public void setMaterializedDatasetSize(int datasetSize) {
+        mProcessor.setMaterializedDatasetSize(datasetSize);
+    }
+
+    public void setBatchSize(int batchSize) {
+        mProcessor.setBatchSize(batchSize);
+    }
+
+    public void setBatchSizeSweep(int... batchSizes) {
+        mProcessor.setBatchSizeSweep(batchSizes);
+    }
+
+    public void setThroughputScaling(int maxInstanceCount) {
+        mProcessor.setThroughputScaling(maxInstanceCount);
+    }
+
+    public void setSaturationSearch(int workerCount, float p99LimitSec) {
+        mProcessor.setSaturationSearch(workerCount, p99LimitSec);
+    }
+
+    public void setQuiescenceMaxWaitSeconds(float maxWaitSeconds) {
+        mProcessor.setQuiescenceMaxWaitSeconds(maxWaitSeconds);
+    }
+
+    public void enableSteadyStateWarmup(float maxWarmupTimeSeconds) {
+        mProcessor.enableSteadyStateWarmup(maxWarmupTimeSeconds);
+    }
+
     public void enableCompilationCachingBenchmarks(
             float warmupTimeSeconds, float runTimeSeconds, int maxIterations) {
         mProcessor.enableCompilationCachingBenchmarks(
@@ -131,6 +178,16 @@ public class NNBenchmark extends Activity implements Processor.Callback {
             mProcessor.setTogglePause(i.getBooleanExtra(EXTRA_ENABLE_PAUSE, false));
             mProcessor.setTfLiteBackend(!i.getBooleanExtra(EXTRA_DISABLE_NNAPI, false) ? TfLiteBackend.NNAPI : TfLiteBackend.CPU);
             mProcessor.setMaxRunIterations(i.getIntExtra(EXTRA_MAX_ITERATIONS, 0));
+            mProcessor.setMaterializedDatasetSize(
+                    i.getIntExtra(EXTRA_MATERIALIZED_DATASET_SIZE, 0));
+            mProcessor.setBatchSize(i.getIntExtra(EXTRA_BATCH_SIZE, 1));
+            float adaptiveCiWidth = i.getFloatExtra(EXTRA_ADAPTIVE_CI_WIDTH, 0.f);
+            if (adaptiveCiWidth > 0.f) {
+                mProcessor.enableAdaptiveRunLength(adaptiveCiWidth,
+                        i.getFloatExtra(EXTRA_ADAPTIVE_PERCENTILE, ConfidenceInterval.MEAN),
+                        i.getFloatExtra(EXTRA_ADAPTIVE_MAX_TIME,
+                                DEFAULT_ADAPTIVE_MAX_TIME_SECONDS));
+            }
             executorService.submit(mProcessor);
         } else {
             Log.v(TAG, "No test to run, doing nothing");
@@ -39,9 +39,10 @@ import java.util.stream.Collectors;
 public class NNInferenceStressTest extends BenchmarkTestBase {
     private static final String TAG = NNInferenceStressTest.class.getSimpleName();
 
-    private static final float WARMUP_SECONDS = 0; // No warmup.
+    // Ignored, the warmup runs until the latency reaches a steady state.
+    private static final float WARMUP_SECONDS = 0;
+    private static final float MAX_WARMUP_SECONDS = 30;
     private static final float RUNTIME_SECONDS = Duration.ofHours(1).getSeconds();
-    private static final long LONG_STRESS_TEST_DURATION_SECONDS = Duration.ofHours(4).getSeconds();
 
     public NNInferenceStressTest(TestModels.TestModelEntry model) {
         super(model);
@@ -62,11 +63,11 @@ public class NNInferenceStressTest extends BenchmarkTestBase {
         waitUntilCharged();
         setUseNNApi(true);
         setCompleteInputSet(false);
-        // Will sample results for very long tests in order to avoid the results to saturate
-        // available memory.
-        final boolean shouldSampleResults = RUNTIME_SECONDS >= LONG_STRESS_TEST_DURATION_SECONDS;
-        TestAction ta = new TestAction(mModel, WARMUP_SECONDS, RUNTIME_SECONDS,
-                shouldSampleResults);
+        // Only keep a constant-memory summary of the results, so that the run length is not
+        // limited by the available memory.
+        setStreamResults(true);
+        enableSteadyStateWarmup(MAX_WARMUP_SECONDS);
+        TestAction ta = new TestAction(mModel, WARMUP_SECONDS, RUNTIME_SECONDS);
         runTest(ta, mModel.getTestName());
     }
 }
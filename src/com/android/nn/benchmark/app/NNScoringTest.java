@@ -68,6 +68,9 @@ public class NNScoringTest extends BenchmarkTestBase {
 
         setUseNNApi(useNnapi);
         setCompleteInputSet(useCompleteInputSet);
+        // Evaluating the complete input set takes a large part of the run, overlap it with
+        // the inferences.
+        setPipelinedEvaluation(useCompleteInputSet);
         enableCompilationCachingBenchmarks();
         TestAction ta = new TestAction(mModel, WARMUP_REPEATABLE_SECONDS,
             useCompleteInputSet ? COMPLETE_SET_TIMEOUT_SECOND : RUNTIME_REPEATABLE_SECONDS);
@@ -37,6 +37,9 @@ import org.junit.Test;
  *
  */
 public class NNTest extends BenchmarkTestBase {
+    private static final int MATERIALIZED_DATASET_SIZE = 100;
+    private static final int SATURATION_WORKER_COUNT = 2;
+    private static final float SATURATION_P99_LIMIT_SECONDS = 1.f;
 
     public NNTest(TestModels.TestModelEntry model) {
         super(model);
@@ -65,4 +68,42 @@ public class NNTest extends BenchmarkTestBase {
                 COMPLETE_SET_TIMEOUT_SECOND);
         runTest(ta, mModel.getTestName());
     }
+
+    @Test
+    @LargeTest
+    public void testNNAPIMaterializedData() {
+        // Dataset images preprocessed before the run, so that it only times the inferences.
+        setMaterializedDatasetSize(MATERIALIZED_DATASET_SIZE);
+        TestAction ta = new TestAction(mModel, WARMUP_REPEATABLE_SECONDS,
+                RUNTIME_REPEATABLE_SECONDS);
+        runTest(ta, mModel.getTestName());
+    }
+
+    @Test
+    @LargeTest
+    public void testNNAPIBatchSizeSweep() {
+        // Batch sizes a model can't run with, e.g. with multi-step sequences, are skipped.
+        setBatchSizeSweep(1, 2, 4, 8, 16);
+        TestAction ta = new TestAction(mModel, WARMUP_REPEATABLE_SECONDS,
+                RUNTIME_REPEATABLE_SECONDS);
+        runTest(ta, mModel.getTestName());
+    }
+
+    @Test
+    @LargeTest
+    public void testNNAPIThroughputScaling() {
+        enableThroughputScaling();
+        TestAction ta = new TestAction(mModel, WARMUP_REPEATABLE_SECONDS,
+                RUNTIME_REPEATABLE_SECONDS);
+        runTest(ta, mModel.getTestName());
+    }
+
+    @Test
+    @LargeTest
+    public void testNNAPISaturationSearch() {
+        setSaturationSearch(SATURATION_WORKER_COUNT, SATURATION_P99_LIMIT_SECONDS);
+        TestAction ta = new TestAction(mModel, WARMUP_REPEATABLE_SECONDS,
+                RUNTIME_REPEATABLE_SECONDS);
+        runTest(ta, mModel.getTestName());
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.util.Arrays;
+
+/**
+ * Throughput and latency of a model run with increasing batch sizes.
+ *
+ * Larger batches amortize the per-invocation overhead, raising the throughput until the
+ * hardware is saturated, while every batch takes longer. The knee is the smallest batch size
+ * that gets close to the best throughput: larger batches only add latency.
+ */
+public class BatchSizeSweep {
+    /** Fraction of the best throughput reached at the knee. */
+    public static final float DEFAULT_KNEE_THROUGHPUT_FRACTION = 0.95f;
+
+    private int mCount;
+    private int[] mBatchSizes = new int[0];
+    private float[] mItemsPerSec = new float[0];
+    private float[] mMeanBatchLatenciesSec = new float[0];
+    private float[] mP90BatchLatenciesSec = new float[0];
+
+    public BatchSizeSweep() {}
+
+    /**
+     * Adds the result of a run at batchSize, whose latencies are per inference, i.e. the batch
+     * latencies divided by batchSize.
+     */
+    public void add(int batchSize, LatencyResult inferenceLatency) {
+        if (mCount == mBatchSizes.length) {
+            int capacity = Math.max(4, 2 * mCount);
+            mBatchSizes = Arrays.copyOf(mBatchSizes, capacity);
+            mItemsPerSec = Arrays.copyOf(mItemsPerSec, capacity);
+            mMeanBatchLatenciesSec = Arrays.copyOf(mMeanBatchLatenciesSec, capacity);
+            mP90BatchLatenciesSec = Arrays.copyOf(mP90BatchLatenciesSec, capacity);
+        }
+        float meanSec = inferenceLatency.getMeanTimeSec();
+        mBatchSizes[mCount] = batchSize;
+        mItemsPerSec[mCount] = meanSec > 0.0f ? 1.0f / meanSec : 0.0f;
+        mMeanBatchLatenciesSec[mCount] = meanSec * batchSize;
+        mP90BatchLatenciesSec[mCount] = inferenceLatency.getPercentileTimeSec(90.0) * batchSize;
+        mCount++;
+    }
+
+    public int size() { return mCount; }
+
+    public int getBatchSize(int index) { return mBatchSizes[index]; }
+
+    /** Inferences completed per second, counting every example of a batch. */
+    public float getItemsPerSec(int index) { return mItemsPerSec[index]; }
+
+    public float getMeanBatchLatencySec(int index) { return mMeanBatchLatenciesSec[index]; }
+
+    public float getP90BatchLatencySec(int index) { return mP90BatchLatenciesSec[index]; }
+
+    /**
+     * Returns the smallest batch size whose throughput is at least throughputFraction of the
+     * best one, or 0 if the sweep is empty.
+     */
+    public int getKneeBatchSize(float throughputFraction) {
+        float bestItemsPerSec = 0.0f;
+        for (int i = 0; i < mCount; i++) {
+            bestItemsPerSec = Math.max(bestItemsPerSec, mItemsPerSec[i]);
+        }
+        int knee = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mItemsPerSec[i] >= throughputFraction * bestItemsPerSec
+                    && (knee == 0 || mBatchSizes[i] < knee)) {
+                knee = mBatchSizes[i];
+            }
+        }
+        return knee;
+    }
+
+    public int getKneeBatchSize() {
+        return getKneeBatchSize(DEFAULT_KNEE_THROUGHPUT_FRACTION);
+    }
+
+    public void putToBundle(Bundle results, String prefix) {
+        // Latencies reported in ms
+        for (int i = 0; i < mCount; i++) {
+            String batchPrefix = prefix + "_batch_" + mBatchSizes[i];
+            results.putFloat(batchPrefix + "_items_per_sec", mItemsPerSec[i]);
+            results.putFloat(batchPrefix + "_batch_latency_avg",
+                    mMeanBatchLatenciesSec[i] * 1000.0f);
+            results.putFloat(batchPrefix + "_batch_latency_p90",
+                    mP90BatchLatenciesSec[i] * 1000.0f);
+        }
+        results.putInt(prefix + "_batch_size_knee", getKneeBatchSize());
+    }
+
+    public void writeToParcel(Parcel dest) {
+        dest.writeInt(mCount);
+        dest.writeIntArray(Arrays.copyOf(mBatchSizes, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mItemsPerSec, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mMeanBatchLatenciesSec, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mP90BatchLatenciesSec, mCount));
+    }
+
+    public static BatchSizeSweep readFromParcel(Parcel in) {
+        BatchSizeSweep result = new BatchSizeSweep();
+        result.mCount = in.readInt();
+        result.mBatchSizes = new int[result.mCount];
+        in.readIntArray(result.mBatchSizes);
+        result.mItemsPerSec = new float[result.mCount];
+        in.readFloatArray(result.mItemsPerSec);
+        result.mMeanBatchLatenciesSec = new float[result.mCount];
+        in.readFloatArray(result.mMeanBatchLatenciesSec);
+        result.mP90BatchLatenciesSec = new float[result.mCount];
+        in.readFloatArray(result.mP90BatchLatenciesSec);
+        return result;
+    }
+
+    /** Appends count,batchSize1,itemsPerSec1,meanBatchLatencySec1,p90BatchLatencySec1,... */
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(mCount);
+        for (int i = 0; i < mCount; i++) {
+            sb.append(',').append(mBatchSizes[i])
+                    .append(',').append(mItemsPerSec[i])
+                    .append(',').append(mMeanBatchLatenciesSec[i])
+                    .append(',').append(mP90BatchLatenciesSec[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BatchSizeSweep{");
+        for (int i = 0; i < mCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mBatchSizes[i]).append(": ").append(mItemsPerSec[i]).append("/s ")
+                    .append(mMeanBatchLatenciesSec[i]).append("s");
+        }
+        sb.append(", getKneeBatchSize()=").append(getKneeBatchSize()).append('}');
+        return sb.toString();
+    }
+}
@@ -42,6 +42,33 @@ public class BenchmarkResult implements Parcelable {
     private LatencyResult mLatencySaveToCache;
     private LatencyResult mLatencyPrepareFromCache;
 
+    /** Inference latencies over wall-clock windows, null if start times are unknown */
+    private LatencyTimeSeries mLatencyTimeSeries;
+
+    /** Achieved confidence interval of the inference latency, set by adaptive runs */
+    private ConfidenceInterval mLatencyConfidenceInterval;
+
+    /** Time spent in each phase of the inferences, null if not measured */
+    private InferencePhaseBreakdown mPhaseBreakdown;
+
+    /** Number of inferences run before the measured ones */
+    private int mWarmupInferenceCount;
+
+    /** Inferences per model invocation, latencies are per inference */
+    private int mBatchSize = 1;
+
+    /** Throughput and latency per batch size, null if no sweep was run */
+    private BatchSizeSweep mBatchSizeSweep;
+
+    /** Throughput of concurrent model instances, null if not measured */
+    private ThroughputScaling mThroughputScaling;
+
+    /** Throughput and latency under increasing open-loop load, null if not measured */
+    private SaturationCurve mSaturationCurve;
+
+    /** Time waited for the device to be quiet before the model was run */
+    private float mQuiescenceWaitSec;
+
     /** Accuracy results */
     private float mSumOfMSEs;
     private float mMaxSingleError;
@@ -127,6 +154,27 @@ public class BenchmarkResult implements Parcelable {
         mValidationErrors = new String[validationsErrorsSize];
         in.readStringArray(mValidationErrors);
         mBenchmarkError = in.readString();
+        if (in.readInt() != 0) {
+            mLatencyTimeSeries = LatencyTimeSeries.readFromParcel(in);
+        }
+        if (in.readInt() != 0) {
+            mLatencyConfidenceInterval = ConfidenceInterval.readFromParcel(in);
+        }
+        mWarmupInferenceCount = in.readInt();
+        if (in.readInt() != 0) {
+            mPhaseBreakdown = InferencePhaseBreakdown.readFromParcel(in);
+        }
+        mBatchSize = in.readInt();
+        if (in.readInt() != 0) {
+            mBatchSizeSweep = BatchSizeSweep.readFromParcel(in);
+        }
+        if (in.readInt() != 0) {
+            mThroughputScaling = ThroughputScaling.readFromParcel(in);
+        }
+        if (in.readInt() != 0) {
+            mSaturationCurve = SaturationCurve.readFromParcel(in);
+        }
+        mQuiescenceWaitSec = in.readFloat();
     }
 
     @Override
@@ -152,6 +200,33 @@ public class BenchmarkResult implements Parcelable {
         dest.writeInt(mValidationErrors.length);
         dest.writeStringArray(mValidationErrors);
         dest.writeString(mBenchmarkError);
+        dest.writeInt(mLatencyTimeSeries != null ? 1 : 0);
+        if (mLatencyTimeSeries != null) {
+            mLatencyTimeSeries.writeToParcel(dest);
+        }
+        dest.writeInt(mLatencyConfidenceInterval != null ? 1 : 0);
+        if (mLatencyConfidenceInterval != null) {
+            mLatencyConfidenceInterval.writeToParcel(dest);
+        }
+        dest.writeInt(mWarmupInferenceCount);
+        dest.writeInt(mPhaseBreakdown != null ? 1 : 0);
+        if (mPhaseBreakdown != null) {
+            mPhaseBreakdown.writeToParcel(dest);
+        }
+        dest.writeInt(mBatchSize);
+        dest.writeInt(mBatchSizeSweep != null ? 1 : 0);
+        if (mBatchSizeSweep != null) {
+            mBatchSizeSweep.writeToParcel(dest);
+        }
+        dest.writeInt(mThroughputScaling != null ? 1 : 0);
+        if (mThroughputScaling != null) {
+            mThroughputScaling.writeToParcel(dest, flags);
+        }
+        dest.writeInt(mSaturationCurve != null ? 1 : 0);
+        if (mSaturationCurve != null) {
+            mSaturationCurve.writeToParcel(dest);
+        }
+        dest.writeFloat(mQuiescenceWaitSec);
     }
 
     @SuppressWarnings("unused")
@@ -176,6 +251,15 @@ public class BenchmarkResult implements Parcelable {
         return mLatencyInference.getMeanTimeSec();
     }
 
+    public LatencyResult getInferenceLatency() {
+        return mLatencyInference;
+    }
+
+    /** Compares the inference latency distribution of this result with a baseline one. */
+    public LatencyComparison compareLatencyTo(BenchmarkResult baseline) {
+        return LatencyComparison.compare(baseline, this);
+    }
+
     public float getCompileWithoutCacheMeanTimeSec() {
         return mLatencyCompileWithoutCache == null ? 0.0f
             : mLatencyCompileWithoutCache.getMeanTimeSec();
@@ -185,6 +269,75 @@ public class BenchmarkResult implements Parcelable {
         return mLatencySaveToCache == null ? 0.0f : mLatencySaveToCache.getMeanTimeSec();
     }
 
+    public LatencyTimeSeries getLatencyTimeSeries() {
+        return mLatencyTimeSeries;
+    }
+
+    public ConfidenceInterval getLatencyConfidenceInterval() {
+        return mLatencyConfidenceInterval;
+    }
+
+    public void setLatencyConfidenceInterval(ConfidenceInterval confidenceInterval) {
+        mLatencyConfidenceInterval = confidenceInterval;
+    }
+
+    public InferencePhaseBreakdown getPhaseBreakdown() {
+        return mPhaseBreakdown;
+    }
+
+    public int getWarmupInferenceCount() {
+        return mWarmupInferenceCount;
+    }
+
+    public void setWarmupInferenceCount(int warmupInferenceCount) {
+        mWarmupInferenceCount = warmupInferenceCount;
+    }
+
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
+    /** Mean latency of a whole batch, the inference latency times the batch size. */
+    public float getMeanBatchLatencySec() {
+        return mLatencyInference.getMeanTimeSec() * mBatchSize;
+    }
+
+    public BatchSizeSweep getBatchSizeSweep() {
+        return mBatchSizeSweep;
+    }
+
+    public void setBatchSizeSweep(BatchSizeSweep batchSizeSweep) {
+        mBatchSizeSweep = batchSizeSweep;
+    }
+
+    public ThroughputScaling getThroughputScaling() {
+        return mThroughputScaling;
+    }
+
+    public void setThroughputScaling(ThroughputScaling throughputScaling) {
+        mThroughputScaling = throughputScaling;
+    }
+
+    public SaturationCurve getSaturationCurve() {
+        return mSaturationCurve;
+    }
+
+    public void setSaturationCurve(SaturationCurve saturationCurve) {
+        mSaturationCurve = saturationCurve;
+    }
+
+    public float getQuiescenceWaitSec() {
+        return mQuiescenceWaitSec;
+    }
+
+    public void setQuiescenceWaitSec(float quiescenceWaitSec) {
+        mQuiescenceWaitSec = quiescenceWaitSec;
+    }
+
     public float getPrepareFromCacheMeanTimeSec() {
         return mLatencyPrepareFromCache == null ? 0.0f : mLatencyPrepareFromCache.getMeanTimeSec();
     }
@@ -235,6 +388,28 @@ public class BenchmarkResult implements Parcelable {
                     .append(mLatencyPrepareFromCache.toString());
         }
         result.append(", mCompilationCacheSizeBytes=").append(mCompilationCacheSizeBytes);
+        if (mLatencyTimeSeries != null) {
+            result.append(", mLatencyTimeSeries=").append(mLatencyTimeSeries.toString());
+        }
+        if (mLatencyConfidenceInterval != null) {
+            result.append(", mLatencyConfidenceInterval=")
+                    .append(mLatencyConfidenceInterval.toString());
+        }
+        result.append(", mWarmupInferenceCount=").append(mWarmupInferenceCount);
+        if (mPhaseBreakdown != null) {
+            result.append(", mPhaseBreakdown=").append(mPhaseBreakdown.toString());
+        }
+        result.append(", mBatchSize=").append(mBatchSize);
+        if (mBatchSizeSweep != null) {
+            result.append(", mBatchSizeSweep=").append(mBatchSizeSweep.toString());
+        }
+        if (mThroughputScaling != null) {
+            result.append(", mThroughputScaling=").append(mThroughputScaling.toString());
+        }
+        if (mSaturationCurve != null) {
+            result.append(", mSaturationCurve=").append(mSaturationCurve.toString());
+        }
+        result.append(", mQuiescenceWaitSec=").append(mQuiescenceWaitSec);
 
         result.append('}');
         return result.toString();
@@ -287,6 +462,27 @@ public class BenchmarkResult implements Parcelable {
         if (mCompilationCacheSizeBytes > 0) {
             results.putInt(testName + "_compilation_cache_size", mCompilationCacheSizeBytes);
         }
+        if (mLatencyTimeSeries != null) {
+            mLatencyTimeSeries.putToBundle(results, testName + "_inference");
+        }
+        if (mLatencyConfidenceInterval != null) {
+            mLatencyConfidenceInterval.putToBundle(results, testName + "_inference");
+        }
+        results.putInt(testName + "_warmup_iterations", mWarmupInferenceCount);
+        if (mPhaseBreakdown != null) {
+            mPhaseBreakdown.putToBundle(results, testName + "_inference");
+        }
+        results.putInt(testName + "_batch_size", mBatchSize);
+        if (mBatchSizeSweep != null) {
+            mBatchSizeSweep.putToBundle(results, testName + "_inference");
+        }
+        if (mThroughputScaling != null) {
+            mThroughputScaling.putToBundle(results, testName + "_inference");
+        }
+        if (mSaturationCurve != null) {
+            mSaturationCurve.putToBundle(results, testName + "_inference");
+        }
+        results.putFloat(testName + "_quiescence_wait", mQuiescenceWaitSec * 1000.0f);
         return results;
     }
 
@@ -333,6 +529,34 @@ public class BenchmarkResult implements Parcelable {
         }
         sb.append(',').append(mCompilationCacheSizeBytes);
 
+        sb.append(',').append(mLatencyTimeSeries != null);
+        if (mLatencyTimeSeries != null) {
+            mLatencyTimeSeries.appendToCsvLine(sb);
+        }
+        sb.append(',').append(mLatencyConfidenceInterval != null);
+        if (mLatencyConfidenceInterval != null) {
+            mLatencyConfidenceInterval.appendToCsvLine(sb);
+        }
+        sb.append(',').append(mWarmupInferenceCount);
+        sb.append(',').append(mPhaseBreakdown != null);
+        if (mPhaseBreakdown != null) {
+            mPhaseBreakdown.appendToCsvLine(sb);
+        }
+        sb.append(',').append(mBatchSize);
+        sb.append(',').append(mBatchSizeSweep != null);
+        if (mBatchSizeSweep != null) {
+            mBatchSizeSweep.appendToCsvLine(sb);
+        }
+        sb.append(',').append(mThroughputScaling != null);
+        if (mThroughputScaling != null) {
+            mThroughputScaling.appendToCsvLine(sb);
+        }
+        sb.append(',').append(mSaturationCurve != null);
+        if (mSaturationCurve != null) {
+            mSaturationCurve.appendToCsvLine(sb);
+        }
+        sb.append(',').append(mQuiescenceWaitSec);
+
         sb.append('\n');
         return sb.toString();
     }
@@ -341,24 +565,71 @@ public class BenchmarkResult implements Parcelable {
             String testInfo,
             String backendType,
             List<InferenceInOutSequence> inferenceInOuts,
-            List<InferenceResult> inferenceResults,
+            InferenceResultBatch inferenceResults,
             EvaluatorInterface evaluator) {
-        float[] latencies = new float[inferenceResults.size()];
+        if (evaluator == null) {
+            return fromInferenceResults(testInfo, backendType, inferenceInOuts,
+                    inferenceResults, null, null, null);
+        }
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Float> results = new ArrayList<Float>();
+        ArrayList<String> validationErrorsList = new ArrayList<>();
+        evaluator.EvaluateAccuracy(inferenceInOuts, inferenceResults, keys, results,
+                validationErrorsList);
+        return fromInferenceResults(testInfo, backendType, inferenceInOuts, inferenceResults,
+                keys, results, validationErrorsList);
+    }
+
+    /**
+     * Builds the result of a run whose inferences were already handed to the evaluator, see
+     * {@link NNTestBase#runBenchmark(List, int, float, int, IncrementalEvaluatorInterface)}.
+     */
+    public static BenchmarkResult fromIncrementallyEvaluatedInferenceResults(
+            String testInfo,
+            String backendType,
+            List<InferenceInOutSequence> inferenceInOuts,
+            InferenceResultBatch inferenceResults,
+            IncrementalEvaluatorInterface evaluator) {
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Float> results = new ArrayList<Float>();
+        ArrayList<String> validationErrorsList = new ArrayList<>();
+        evaluator.finish(keys, results, validationErrorsList);
+        return fromInferenceResults(testInfo, backendType, inferenceInOuts, inferenceResults,
+                keys, results, validationErrorsList);
+    }
+
+    /** Evaluator outputs are null if there was no evaluator. */
+    private static BenchmarkResult fromInferenceResults(
+            String testInfo,
+            String backendType,
+            List<InferenceInOutSequence> inferenceInOuts,
+            InferenceResultBatch inferenceResults,
+            List<String> keys,
+            List<Float> results,
+            List<String> validationErrorsList) {
+        float[] latencies = inferenceResults.mComputeTimesSec;
         float sumOfMSEs = 0;
         float maxSingleError = 0;
-        for (int i = 0; i < inferenceResults.size(); i++) {
-            InferenceResult iresult = inferenceResults.get(i);
-            latencies[i] = iresult.mComputeTimeSec;
-            if (iresult.mMeanSquaredErrors != null) {
-                for (float mse : iresult.mMeanSquaredErrors) {
-                    sumOfMSEs += mse;
-                }
+        LatencyTimeSeries timeSeries = new LatencyTimeSeries();
+        InferencePhaseBreakdown phaseBreakdown = new InferencePhaseBreakdown();
+        phaseBreakdown.add(inferenceResults);
+        boolean hasStartTimes = !inferenceResults.isEmpty();
+        for (int i = 0; i < inferenceResults.mCount; i++) {
+            if (inferenceResults.mStartTimesSec[i] >= 0) {
+                timeSeries.add(inferenceResults.mStartTimesSec[i], latencies[i]);
+            } else {
+                hasStartTimes = false;
             }
-            if (iresult.mMaxSingleErrors != null) {
-                for (float mse : iresult.mMaxSingleErrors) {
-                    if (mse > maxSingleError) {
-                        maxSingleError = mse;
-                    }
+        }
+        if (inferenceResults.mMeanSquaredErrors != null) {
+            for (float mse : inferenceResults.mMeanSquaredErrors) {
+                sumOfMSEs += mse;
+            }
+        }
+        if (inferenceResults.mMaxSingleErrors != null) {
+            for (float mse : inferenceResults.mMaxSingleErrors) {
+                if (mse > maxSingleError) {
+                    maxSingleError = mse;
                 }
             }
         }
@@ -366,12 +637,7 @@ public class BenchmarkResult implements Parcelable {
         String[] evaluatorKeys = null;
         float[] evaluatorResults = null;
         String[] validationErrors = null;
-        if (evaluator != null) {
-            ArrayList<String> keys = new ArrayList<String>();
-            ArrayList<Float> results = new ArrayList<Float>();
-            ArrayList<String> validationErrorsList = new ArrayList<>();
-            evaluator.EvaluateAccuracy(inferenceInOuts, inferenceResults, keys, results,
-                    validationErrorsList);
+        if (keys != null) {
             evaluatorKeys = new String[keys.size()];
             evaluatorKeys = keys.toArray(evaluatorKeys);
             evaluatorResults = new float[results.size()];
@@ -388,9 +654,45 @@ public class BenchmarkResult implements Parcelable {
             testSetSize += iios.size();
         }
 
-        return new BenchmarkResult(new LatencyResult(latencies), sumOfMSEs, maxSingleError,
-                testInfo, evaluatorKeys, evaluatorResults, backendType, testSetSize,
-                validationErrors);
+        BenchmarkResult result = new BenchmarkResult(new LatencyResult(latencies), sumOfMSEs,
+                maxSingleError, testInfo, evaluatorKeys, evaluatorResults, backendType,
+                testSetSize, validationErrors);
+        if (hasStartTimes) {
+            result.mLatencyTimeSeries = timeSeries;
+        }
+        if (!inferenceResults.isEmpty()) {
+            result.mPhaseBreakdown = phaseBreakdown;
+        }
+        return result;
+    }
+
+    /**
+     * Builds a result from the summary of a streaming benchmark run.
+     *
+     * No evaluator can be run since the inference outputs are not kept.
+     */
+    public static BenchmarkResult fromStreamingInferenceResult(
+            String testInfo,
+            String backendType,
+            List<InferenceInOutSequence> inferenceInOuts,
+            StreamingInferenceResult streamingResult) {
+        LatencyResult latency = new LatencyResult(
+                (int) Math.min(streamingResult.mInferenceCount, Integer.MAX_VALUE),
+                (float) streamingResult.mTotalTimeSec,
+                streamingResult.getStdDeviationSec(),
+                streamingResult.getHistogram());
+
+        int testSetSize = 0;
+        for (InferenceInOutSequence iios : inferenceInOuts) {
+            testSetSize += iios.size();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(latency, streamingResult.mSumOfMSEs,
+                streamingResult.mMaxSingleError, testInfo, null, null, backendType,
+                testSetSize, null);
+        result.mLatencyTimeSeries = streamingResult.getTimeSeries();
+        result.mPhaseBreakdown = streamingResult.getPhaseBreakdown();
+        return result;
     }
 
     public void setCompilationBenchmarkResult(CompilationBenchmarkResult result) {
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Process-wide pool of set up models, so that runs of the same model reuse its compilation
+ * instead of compiling it again.
+ *
+ * Models are leased for exclusive use through {@link Lease}s and returned to the pool when
+ * the lease is closed. Idle models are keyed by test, model file, backend, accelerator,
+ * memory mapping and input shape, several idle instances of the same model can be kept for
+ * concurrent users. When the number of idle models or their total size, estimated from the
+ * model files, exceeds the limits, the least recently returned ones are destroyed.
+ *
+ * Lessees must set the options they rely on, e.g. the pipelined evaluation, on each lease.
+ * The batch size and result sampling are reset when a model is returned.
+ */
+public final class CompiledModelPool {
+    private static final String TAG = NNTestBase.TAG;
+
+    public static final int DEFAULT_MAX_IDLE_COUNT = 8;
+    public static final long DEFAULT_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    private static final CompiledModelPool sInstance =
+            new CompiledModelPool(DEFAULT_MAX_IDLE_COUNT, DEFAULT_BUDGET_BYTES);
+
+    private static final class Key {
+        final String mTestName;
+        final String mModelFile;
+        final int[] mInputShape;
+        final boolean mEvaluation;
+        final TfLiteBackend mBackend;
+        final String mAcceleratorName;
+        final boolean mMmapModel;
+
+        Key(TestModels.TestModelEntry model, TfLiteBackend backend, String acceleratorName,
+                boolean mmapModel) {
+            mTestName = model.mTestName;
+            mModelFile = model.mModelFile;
+            mInputShape = model.mInputShape.clone();
+            // Entries with evaluation disabled share the rest with the original.
+            mEvaluation = model.mEvaluator != null;
+            mBackend = backend;
+            mAcceleratorName = acceleratorName;
+            mMmapModel = mmapModel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mTestName.equals(other.mTestName)
+                    && mModelFile.equals(other.mModelFile)
+                    && Arrays.equals(mInputShape, other.mInputShape)
+                    && mEvaluation == other.mEvaluation
+                    && mBackend == other.mBackend
+                    && Objects.equals(mAcceleratorName, other.mAcceleratorName)
+                    && mMmapModel == other.mMmapModel;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mTestName, mModelFile, Arrays.hashCode(mInputShape),
+                    mEvaluation, mBackend, mAcceleratorName, mMmapModel);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s/%s/%s", mTestName, mBackend,
+                    mAcceleratorName != null ? mAcceleratorName : "default");
+        }
+    }
+
+    private static final class Entry {
+        final Key mKey;
+        final NNTestBase mTest;
+
+        Entry(Key key, NNTestBase test) {
+            mKey = key;
+            mTest = test;
+        }
+    }
+
+    /** Exclusive use of a set up model, returns it to the pool once closed. */
+    public final class Lease implements AutoCloseable {
+        private Entry mEntry;
+
+        private Lease(Entry entry) {
+            mEntry = entry;
+        }
+
+        public NNTestBase get() {
+            if (mEntry == null) {
+                throw new IllegalStateException("Lease already closed");
+            }
+            return mEntry.mTest;
+        }
+
+        /** Destroys the model instead of returning it, e.g. after it failed. */
+        public void discard() {
+            if (mEntry != null) {
+                mEntry.mTest.destroy();
+                mEntry = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mEntry != null) {
+                release(mEntry);
+                mEntry = null;
+            }
+        }
+    }
+
+    // Least recently returned first.
+    private final List<Entry> mIdleEntries = new ArrayList<>();
+    private int mMaxIdleCount;
+    private long mBudgetBytes;
+    private long mIdleBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    CompiledModelPool(int maxIdleCount, long budgetBytes) {
+        setLimits(maxIdleCount, budgetBytes);
+    }
+
+    public static CompiledModelPool getInstance() {
+        return sInstance;
+    }
+
+    public void setLimits(int maxIdleCount, long budgetBytes) {
+        if (maxIdleCount < 0 || budgetBytes < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid pool limits %d models, %d bytes", maxIdleCount, budgetBytes));
+        }
+        List<Entry> evicted;
+        synchronized (this) {
+            mMaxIdleCount = maxIdleCount;
+            mBudgetBytes = budgetBytes;
+            evicted = evictOverLimits();
+        }
+        destroy(evicted);
+    }
+
+    /**
+     * Leases an idle instance of the model, or sets up a new one.
+     *
+     * @param acceleratorName NNAPI device to run the model on, null for the default one
+     * @return null if the model is not supported
+     */
+    public Lease lease(Context context, TestModels.TestModelEntry model, TfLiteBackend backend,
+            String acceleratorName, boolean mmapModel)
+            throws IOException, NnApiDelegationFailure {
+        Key key = new Key(model, backend, acceleratorName, mmapModel);
+        synchronized (this) {
+            // Most recently returned first, it is the most likely to still be warm.
+            for (int i = mIdleEntries.size() - 1; i >= 0; i--) {
+                Entry entry = mIdleEntries.get(i);
+                if (entry.mKey.equals(key)) {
+                    mIdleEntries.remove(i);
+                    mIdleBytes -= entry.mTest.getModelSizeBytes();
+                    mHitCount++;
+                    return new Lease(entry);
+                }
+            }
+            mMissCount++;
+        }
+
+        NNTestBase test = model.createNNTestBase(backend,
+                /*enableIntermediateTensorsDump=*/false, mmapModel);
+        if (backend == TfLiteBackend.NNAPI) {
+            test.setNNApiDeviceName(acceleratorName);
+        }
+        boolean supported = false;
+        try {
+            supported = test.setupModel(context);
+        } finally {
+            if (!supported) {
+                test.destroy();
+            }
+        }
+        return supported ? new Lease(new Entry(key, test)) : null;
+    }
+
+    private void release(Entry entry) {
+        NNTestBase test = entry.mTest;
+        test.setSampleResult(false);
+        boolean reusable;
+        try {
+            reusable = test.setBatchSize(1);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot reset the batch size of " + entry.mKey, e);
+            reusable = false;
+        }
+        if (!reusable) {
+            test.destroy();
+            return;
+        }
+        List<Entry> evicted;
+        synchronized (this) {
+            mIdleEntries.add(entry);
+            mIdleBytes += test.getModelSizeBytes();
+            evicted = evictOverLimits();
+        }
+        destroy(evicted);
+    }
+
+    private List<Entry> evictOverLimits() {
+        List<Entry> evicted = new ArrayList<>();
+        while (!mIdleEntries.isEmpty()
+                && (mIdleEntries.size() > mMaxIdleCount || mIdleBytes > mBudgetBytes)) {
+            Entry entry = mIdleEntries.remove(0);
+            mIdleBytes -= entry.mTest.getModelSizeBytes();
+            evicted.add(entry);
+        }
+        return evicted;
+    }
+
+    // Outside of the lock, destroying a compiled model can be slow.
+    private static void destroy(List<Entry> entries) {
+        for (Entry entry : entries) {
+            Log.d(TAG, "Evicting " + entry.mKey + " from the compiled model pool");
+            entry.mTest.destroy();
+        }
+    }
+
+    /** Destroys all the idle models. */
+    public void clear() {
+        List<Entry> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(mIdleEntries);
+            mIdleEntries.clear();
+            mIdleBytes = 0;
+        }
+        destroy(evicted);
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdleEntries.size();
+    }
+
+    /** Number of leases served by an idle model, i.e. compilations avoided. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Number of leases that had to set up a new model. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
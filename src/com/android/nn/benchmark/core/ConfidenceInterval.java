@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/** Confidence interval of a latency statistic, either the mean or a percentile. */
+public class ConfidenceInterval {
+    /** Value of mPercentile for an interval of the mean. */
+    public static final float MEAN = -1.0f;
+
+    /** Percentile (0..100) the interval is about, or MEAN. */
+    public final float mPercentile;
+    /** Confidence level, e.g. 0.95. */
+    public final float mConfidence;
+    public final float mEstimateSec;
+    public final float mLowerSec;
+    public final float mUpperSec;
+
+    public ConfidenceInterval(float percentile, float confidence, float estimateSec,
+            float lowerSec, float upperSec) {
+        mPercentile = percentile;
+        mConfidence = confidence;
+        mEstimateSec = estimateSec;
+        mLowerSec = lowerSec;
+        mUpperSec = upperSec;
+    }
+
+    public boolean isMean() {
+        return mPercentile < 0.0f;
+    }
+
+    /** Width of the interval relative to the estimate, e.g. 0.02 for +/-1%. */
+    public float getRelativeWidth() {
+        if (mEstimateSec <= 0.0f) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return (mUpperSec - mLowerSec) / mEstimateSec;
+    }
+
+    public void writeToParcel(Parcel dest) {
+        dest.writeFloat(mPercentile);
+        dest.writeFloat(mConfidence);
+        dest.writeFloat(mEstimateSec);
+        dest.writeFloat(mLowerSec);
+        dest.writeFloat(mUpperSec);
+    }
+
+    public static ConfidenceInterval readFromParcel(Parcel in) {
+        return new ConfidenceInterval(in.readFloat(), in.readFloat(), in.readFloat(),
+                in.readFloat(), in.readFloat());
+    }
+
+    public void putToBundle(Bundle results, String prefix) {
+        // Reported in ms
+        results.putFloat(prefix + "_ci_percentile", mPercentile);
+        results.putFloat(prefix + "_ci_confidence", mConfidence);
+        results.putFloat(prefix + "_ci_lower", mLowerSec * 1000.0f);
+        results.putFloat(prefix + "_ci_upper", mUpperSec * 1000.0f);
+        results.putFloat(prefix + "_ci_relative_width", getRelativeWidth());
+    }
+
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(String.join(",",
+            String.valueOf(mPercentile),
+            String.valueOf(mConfidence),
+            String.valueOf(mEstimateSec),
+            String.valueOf(mLowerSec),
+            String.valueOf(mUpperSec)));
+    }
+
+    @Override
+    public String toString() {
+        return "ConfidenceInterval{"
+                + (isMean() ? "mean" : "p" + mPercentile)
+                + ", mConfidence=" + mConfidence
+                + ", mEstimateSec=" + mEstimateSec
+                + ", mLowerSec=" + mLowerSec
+                + ", mUpperSec=" + mUpperSec + "}";
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import com.android.nn.benchmark.util.IOUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates the inputs of {@link InferenceInOut.InputCreatorInterface} inferences ahead of the
+ * benchmark, on background threads.
+ *
+ * The inputs are created into a ring of direct buffers, in the order the native benchmark
+ * loop consumes them: the input creators of the inOutList, from the first one, cycling. The
+ * native code takes the ready buffers in batches of up to half of the ring, so that the other
+ * half is being refilled, and calls back into Java once per batch instead of once per
+ * inference. A prefetcher is used by a single benchmark run.
+ */
+public class DatasetInputPrefetcher implements AutoCloseable {
+    /** Decoding threads, leaving the other cores to the inference. */
+    public static final int DEFAULT_THREAD_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /** Inputs prepared ahead per thread. */
+    private static final int SLOTS_PER_THREAD = 4;
+
+    private final List<InferenceInOut> mInputCreators = new ArrayList<>();
+    private final int mThreadCount;
+    private ExecutorService mExecutor;
+    private ByteBuffer[] mSlots;
+    private Future<?>[] mSlotInputs;
+    // Next slot to be consumed by the native code, and index of the next input to create.
+    private int mNextSlot;
+    private long mNextInput;
+
+    public DatasetInputPrefetcher(List<InferenceInOutSequence> inOutList) {
+        this(inOutList, DEFAULT_THREAD_COUNT);
+    }
+
+    public DatasetInputPrefetcher(List<InferenceInOutSequence> inOutList, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Invalid thread count " + threadCount);
+        }
+        for (InferenceInOutSequence sequence : inOutList) {
+            for (int i = 0; i < sequence.size(); i++) {
+                if (sequence.get(i).mInput == null) {
+                    mInputCreators.add(sequence.get(i));
+                }
+            }
+        }
+        mThreadCount = threadCount;
+    }
+
+    /** Returns true if any inference of the list has its input created on demand. */
+    public static boolean hasInputCreators(List<InferenceInOutSequence> inOutList) {
+        for (InferenceInOutSequence sequence : inOutList) {
+            for (int i = 0; i < sequence.size(); i++) {
+                if (sequence.get(i).mInput == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Allocates the ring of buffers and starts creating the inputs. Called by the native code
+     * on the first input, once the input size is known.
+     */
+    ByteBuffer[] start(int inputSizeBytes) {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Prefetcher already started");
+        }
+        if (mInputCreators.isEmpty()) {
+            throw new IllegalStateException("No input to prefetch");
+        }
+        int slotCount = mThreadCount * SLOTS_PER_THREAD;
+        mSlots = new ByteBuffer[slotCount];
+        mSlotInputs = new Future<?>[slotCount];
+        mExecutor = Executors.newFixedThreadPool(mThreadCount);
+        for (int slot = 0; slot < slotCount; slot++) {
+            mSlots[slot] = IOUtils.allocateDirect(inputSizeBytes);
+            createInput(slot);
+        }
+        return mSlots;
+    }
+
+    private void createInput(int slot) {
+        final InferenceInOut.InputCreatorInterface creator =
+                mInputCreators.get((int) (mNextInput++ % mInputCreators.size())).mInputCreator;
+        // Creators may change the position and byte order of the buffer.
+        final ByteBuffer buffer = mSlots[slot].duplicate();
+        mSlotInputs[slot] = mExecutor.submit(() -> creator.createInput(buffer));
+    }
+
+    /**
+     * Refills the consumedCount slots consumed since the last call, waits for the next slot to
+     * be ready and returns the number of consecutive ready slots from it.
+     */
+    int nextBatch(int consumedCount) throws InterruptedException {
+        for (int i = 0; i < consumedCount; i++) {
+            createInput(mNextSlot);
+            mNextSlot = (mNextSlot + 1) % mSlots.length;
+        }
+        int readyCount = 0;
+        int maxBatchSize = Math.max(1, mSlots.length / 2);
+        while (readyCount < maxBatchSize) {
+            Future<?> input = mSlotInputs[(mNextSlot + readyCount) % mSlots.length];
+            if (readyCount > 0 && !input.isDone()) {
+                break;
+            }
+            try {
+                input.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to create input", e.getCause());
+            }
+            readyCount++;
+        }
+        return readyCount;
+    }
+
+    @Override
+    public void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Evaluates chunks of inference results on a background thread while the benchmark keeps
+ * running.
+ *
+ * There is a single worker, since incremental evaluators must see the inferences in order.
+ * It runs at the lowest priority so that it only uses CPU time the inference leaves idle. The
+ * queue is bounded: when the evaluation falls behind, submit blocks the inference thread
+ * instead of letting the pending outputs grow without limit.
+ */
+public class EvaluationPipeline implements AutoCloseable {
+    private static final String TAG = NNTestBase.TAG;
+
+    /** Max number of chunks waiting for evaluation. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    // Marks the end of the submitted chunks.
+    private static final InferenceResultBatch END_OF_RESULTS = new InferenceResultBatch();
+
+    private final IncrementalEvaluatorInterface mEvaluator;
+    private final BlockingQueue<InferenceResultBatch> mQueue;
+    private final Thread mWorker;
+    private volatile RuntimeException mFailure;
+    private boolean mClosed;
+
+    public EvaluationPipeline(IncrementalEvaluatorInterface evaluator) {
+        this(evaluator, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public EvaluationPipeline(IncrementalEvaluatorInterface evaluator, int queueCapacity) {
+        mEvaluator = evaluator;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mWorker = new Thread(this::evaluateChunks, "EvaluationPipeline");
+        mWorker.start();
+    }
+
+    private void evaluateChunks() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        try {
+            while (true) {
+                InferenceResultBatch chunk = mQueue.take();
+                if (chunk == END_OF_RESULTS) {
+                    return;
+                }
+                if (mFailure != null) {
+                    // Keep draining so that submit never blocks forever.
+                    continue;
+                }
+                try {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        mEvaluator.accept(chunk, i);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Evaluation failed", e);
+                    mFailure = e;
+                }
+                chunk.mInferenceOutputs = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a chunk for evaluation, blocking while the queue is full. Its inference outputs
+     * are dropped once it is evaluated.
+     *
+     * @throws RuntimeException the failure of a previous evaluation
+     */
+    public void submit(InferenceResultBatch chunk) {
+        checkFailure();
+        try {
+            mQueue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing results", e);
+        }
+    }
+
+    /**
+     * Waits until all the submitted chunks are evaluated and stops the worker.
+     *
+     * @throws RuntimeException the failure of an evaluation
+     */
+    public void finish() {
+        close();
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mQueue.put(END_OF_RESULTS);
+            mWorker.join();
+        } catch (InterruptedException e) {
+            mWorker.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -25,7 +25,7 @@ import java.util.List;
 public interface EvaluatorInterface {
     void EvaluateAccuracy(
             List<InferenceInOutSequence> inferenceInOuts,
-            List<InferenceResult> inferenceResults,
+            InferenceResultBatch inferenceResults,
             List<String> outKeys,
             List<Float> outValues,
             List<String> outValidationErrors);
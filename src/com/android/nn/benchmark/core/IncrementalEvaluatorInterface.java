@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import java.util.List;
+
+/**
+ * Inference accuracy evaluators that consume the results one at a time, so that the inference
+ * outputs can be released as soon as they are evaluated.
+ */
+public interface IncrementalEvaluatorInterface {
+    /** Starts an evaluation of results on the given inputs/outputs, resetting any state. */
+    void begin(List<InferenceInOutSequence> inferenceInOuts);
+
+    /** Evaluates one inference. Inferences are accepted in execution order. */
+    void accept(InferenceResultBatch inferenceResults, int inferenceIndex);
+
+    /** Ends the evaluation and reports its results. */
+    void finish(
+            List<String> outKeys,
+            List<Float> outValues,
+            List<String> outValidationErrors);
+}
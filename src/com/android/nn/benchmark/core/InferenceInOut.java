@@ -16,17 +16,23 @@
 
 package com.android.nn.benchmark.core;
 
+import com.android.nn.benchmark.util.IOUtils;
+
 import java.nio.ByteBuffer;
 
 /** Input and expected output pair for inference benchmark */
 public class InferenceInOut {
     // TODO: Support multiple inputs/outputs
 
-    // Input can be passed either directly as a byte array or indirectly through
+    // Input can be passed either directly as a buffer or indirectly through
     // the input creator. This is needed to pass datasets that can not fit into
     // memory at once.
-    public byte[] mInput;
-    public byte[][] mExpectedOutputs;
+    // Buffers are direct, so that the native code reads them in place without
+    // pinning or copying them. Their whole capacity is used as data. They can
+    // be views (ByteBuffer.slice) on a range of a larger buffer shared by many
+    // inputs/outputs, e.g. a memory-mapped asset.
+    public ByteBuffer mInput;
+    public ByteBuffer[] mExpectedOutputs;
     public int  mExpectedClass;
     public InputCreatorInterface mInputCreator;
 
@@ -34,17 +40,41 @@ public class InferenceInOut {
         public abstract void createInput(ByteBuffer buffer);
     }
 
-    public InferenceInOut(byte[] input, byte[][] expectedOutputs, int expectedClass) {
+    public InferenceInOut(ByteBuffer input, ByteBuffer[] expectedOutputs, int expectedClass) {
+        checkDirect(input);
+        checkDirect(expectedOutputs);
         mInput = input;
         mExpectedOutputs = expectedOutputs;
         mExpectedClass = expectedClass;
         mInputCreator = null;
     }
-    public InferenceInOut(InputCreatorInterface inputCreator, byte[][] expectedOutputs,
+
+    /** Copies the input and expected outputs into direct buffers. */
+    public InferenceInOut(byte[] input, byte[][] expectedOutputs, int expectedClass) {
+        this(IOUtils.toDirectBuffer(input), IOUtils.toDirectBuffers(expectedOutputs),
+                expectedClass);
+    }
+
+    public InferenceInOut(InputCreatorInterface inputCreator, ByteBuffer[] expectedOutputs,
                           int expectedClass) {
+        checkDirect(expectedOutputs);
         mInput = null;
         mExpectedOutputs = expectedOutputs;
         mExpectedClass = expectedClass;
         mInputCreator = inputCreator;
     }
+
+    private static void checkDirect(ByteBuffer buffer) {
+        if (buffer != null && !buffer.isDirect()) {
+            throw new IllegalArgumentException("Inference data must be in direct buffers");
+        }
+    }
+
+    private static void checkDirect(ByteBuffer[] buffers) {
+        if (buffers != null) {
+            for (ByteBuffer buffer : buffers) {
+                checkDirect(buffer);
+            }
+        }
+    }
 }
@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.util.Log;
 
@@ -27,13 +28,15 @@ import com.android.nn.benchmark.util.IOUtils;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Input and expected output sequence pair for inference benchmark.
@@ -80,37 +83,45 @@ public class InferenceInOutSequence {
             this.mInputSizeBytes = inputSizeBytes;
         }
 
+        /** Identifies the sequence in an {@link InferenceInOutSequenceCache}. */
+        public String getCacheKey() {
+            return "assets:" + mInputAssetName + "|" + String.join(",", mOutputAssetsNames)
+                    + "|" + mDataBytesSize + "|" + mInputSizeBytes;
+        }
+
         public InferenceInOutSequence readAssets(AssetManager assetManager) throws IOException {
-            byte[] inputs = IOUtils.readAsset(assetManager, mInputAssetName, mDataBytesSize);
-            byte[][] outputs = new byte[mOutputAssetsNames.length][];
-            int sequenceLength = inputs.length / mInputSizeBytes;
+            // The elements are views on the mapped assets, the data is neither copied nor
+            // loaded in the Java heap.
+            ByteBuffer inputs = IOUtils.mapAsset(assetManager, mInputAssetName, mDataBytesSize);
+            ByteBuffer[] outputs = new ByteBuffer[mOutputAssetsNames.length];
+            int sequenceLength = inputs.capacity() / mInputSizeBytes;
 
             for (int i = 0; i < mOutputAssetsNames.length; ++i) {
-                outputs[i] = IOUtils.readAsset(assetManager, mOutputAssetsNames[i], mDataBytesSize);
-                if (outputs[i].length % sequenceLength != 0) {
+                outputs[i] = IOUtils.mapAsset(assetManager, mOutputAssetsNames[i], mDataBytesSize);
+                if (outputs[i].capacity() % sequenceLength != 0) {
                     throw new IllegalArgumentException(
                             "Output data " + mOutputAssetsNames[i] + " size (in bytes): " +
-                                    outputs[i].length + " is not a multiple of sequence length: " +
-                                    sequenceLength);
+                                    outputs[i].capacity() +
+                                    " is not a multiple of sequence length: " + sequenceLength);
                 }
             }
-            if (inputs.length % mInputSizeBytes != 0) {
-                throw new IllegalArgumentException("Input data size (in bytes): " + inputs.length +
-                        " is not a multiple of input size (in bytes): " + mInputSizeBytes);
+            if (inputs.capacity() % mInputSizeBytes != 0) {
+                throw new IllegalArgumentException("Input data size (in bytes): " +
+                        inputs.capacity() + " is not a multiple of input size (in bytes): " +
+                        mInputSizeBytes);
             }
             InferenceInOutSequence sequence = new InferenceInOutSequence(
                     sequenceLength, true, mDataBytesSize);
 
             for (int i = 0; i < sequenceLength; ++i) {
-                byte[][] outz = new byte[mOutputAssetsNames.length][];
+                ByteBuffer[] outz = new ByteBuffer[mOutputAssetsNames.length];
                 for (int j = 0; j < mOutputAssetsNames.length; ++j) {
-                    int outputSizeBytes = outputs[j].length / sequenceLength;
-                    outz[j] = Arrays.copyOfRange(outputs[j], outputSizeBytes * i,
-                            outputSizeBytes * (i + 1));
+                    int outputSizeBytes = outputs[j].capacity() / sequenceLength;
+                    outz[j] = IOUtils.slice(outputs[j], outputSizeBytes * i, outputSizeBytes);
                 }
 
                 sequence.mInputOutputs.add(new InferenceInOut(
-                        Arrays.copyOfRange(inputs, mInputSizeBytes * i, mInputSizeBytes * (i + 1)),
+                        IOUtils.slice(inputs, mInputSizeBytes * i, mInputSizeBytes),
                         outz,
                         -1));
             }
@@ -226,6 +237,8 @@ public class InferenceInOutSequence {
 
             ArrayList<InferenceInOutSequence> ret = new ArrayList<InferenceInOutSequence>();
             final ImageProcessorInterface imageProcessor = createImageProcessor();
+            final PreprocessedTensorCache tensorCache = new PreprocessedTensorCache(cacheDir,
+                    PreprocessedTensorCache.DEFAULT_SIZE_BUDGET_BYTES);
 
             for (int i = 0; i < imageFileNames.size(); i++) {
                 final String fileName = mInputPath + '/' + imageFileNames.get(i);
@@ -233,19 +246,8 @@ public class InferenceInOutSequence {
                 if (expectedClasses != null) {
                     expectedClass = expectedClasses[i];
                 }
-                InferenceInOut.InputCreatorInterface creator =
-                        new InferenceInOut.InputCreatorInterface() {
-                            @Override
-                            public void createInput(ByteBuffer buffer) {
-                                try {
-                                    imageProcessor.preprocess(mDatasize,
-                                            mQuantScale, mQuantZeroPoint, mImageDimension,
-                                            assetManager, fileName, cacheDir, buffer);
-                                } catch (Throwable t) {
-                                    throw new Error("Failed to create image input", t);
-                                }
-                            }
-                        };
+                ImageInputCreator creator = new ImageInputCreator(assetManager, cacheDir,
+                        imageProcessor, tensorCache, fileName);
                 InferenceInOutSequence sequence = new InferenceInOutSequence(
                         1, false, mDatasize);
                 sequence.mInputOutputs.add(new InferenceInOut(creator, null,
@@ -254,5 +256,165 @@ public class InferenceInOutSequence {
             }
             return ret;
         }
+
+        /** Creates the input of an image from the tensor cache or by preprocessing it. */
+        private class ImageInputCreator implements InferenceInOut.InputCreatorInterface {
+            private final AssetManager mAssetManager;
+            private final File mCacheDir;
+            private final ImageProcessorInterface mImageProcessor;
+            private final PreprocessedTensorCache mTensorCache;
+            private final String mFileName;
+            private final String mCacheKey;
+
+            ImageInputCreator(AssetManager assetManager, File cacheDir,
+                    ImageProcessorInterface imageProcessor, PreprocessedTensorCache tensorCache,
+                    String fileName) {
+                mAssetManager = assetManager;
+                mCacheDir = cacheDir;
+                mImageProcessor = imageProcessor;
+                mTensorCache = tensorCache;
+                mFileName = fileName;
+                // The asset length tells apart images replaced by an update of the app under
+                // the same name.
+                mCacheKey = PreprocessedTensorCache.key(fileName,
+                        getAssetLength(assetManager, fileName), mPreprocessorName,
+                        mImageDimension, mDatasize, mQuantScale, mQuantZeroPoint);
+            }
+
+            @Override
+            public void createInput(ByteBuffer buffer) {
+                try {
+                    fill(buffer);
+                } catch (Throwable t) {
+                    throw new Error("Failed to create image input", t);
+                }
+            }
+
+            /** Returns the number of bytes of the input written to the buffer. */
+            int fill(ByteBuffer buffer) throws IOException {
+                if (mTensorCache.read(mCacheKey, buffer)) {
+                    return buffer.capacity();
+                }
+                mImageProcessor.preprocess(mDatasize, mQuantScale, mQuantZeroPoint,
+                        mImageDimension, mAssetManager, mFileName, mCacheDir, buffer);
+                int writtenBytes = buffer.position();
+                // A partial tensor would be read back as a complete one.
+                if (writtenBytes == buffer.capacity()) {
+                    mTensorCache.write(mCacheKey, buffer);
+                }
+                return writtenBytes;
+            }
+        }
+
+        // Returns -1 if the length is unknown, e.g. for a compressed asset.
+        private static long getAssetLength(AssetManager assetManager, String fileName) {
+            try (AssetFileDescriptor descriptor = assetManager.openFd(fileName)) {
+                return descriptor.getLength();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Identifies the sequences in an {@link InferenceInOutSequenceCache}.
+         *
+         * @param materializedImageCount number of images preprocessed when read, 0 if none
+         */
+        public String getCacheKey(int materializedImageCount) {
+            return "dataset:" + mInputPath + "|" + mLabelAssetName + "|" + mGroundTruthAssetName
+                    + "|" + mPreprocessorName + "|" + mDatasize + "|" + mQuantScale + "|"
+                    + mQuantZeroPoint + "|" + mImageDimension + "|" + materializedImageCount;
+        }
+
+        /** Size of the preprocessed input of an image. */
+        public int getInputSizeBytes() {
+            return mImageDimension * mImageDimension * 3 * mDatasize;
+        }
+
+        /**
+         * Reads the dataset and preprocesses the inputs of its first maxImageCount images
+         * into direct buffers, so that a timed run doesn't create any input.
+         *
+         * The images are preprocessed and validated in parallel on a ForkJoinPool with one
+         * thread per core. The sequences are in the same order as with
+         * {@link #readDataset(AssetManager, File)}.
+         */
+        public ArrayList<InferenceInOutSequence> readDataset(
+                final AssetManager assetManager, final File cacheDir, int maxImageCount)
+                throws IOException {
+            ArrayList<InferenceInOutSequence> lazySequences =
+                    readDataset(assetManager, cacheDir);
+            int imageCount = Math.min(maxImageCount, lazySequences.size());
+            InferenceInOut[] inOuts = new InferenceInOut[imageCount];
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                pool.invoke(new PreprocessTask(lazySequences, inOuts, 0, imageCount));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+
+            ArrayList<InferenceInOutSequence> ret = new ArrayList<InferenceInOutSequence>();
+            for (InferenceInOut inOut : inOuts) {
+                InferenceInOutSequence sequence = new InferenceInOutSequence(
+                        1, false, mDatasize);
+                sequence.mInputOutputs.add(inOut);
+                ret.add(sequence);
+            }
+            return ret;
+        }
+
+        /** Preprocesses the inputs of the images [from, to), splitting the range in halves. */
+        private class PreprocessTask extends RecursiveAction {
+            // Below this number of images, a task is not worth splitting.
+            private static final int MIN_SPLIT_SIZE = 4;
+
+            private final List<InferenceInOutSequence> mLazySequences;
+            private final InferenceInOut[] mInOuts;
+            private final int mFrom;
+            private final int mTo;
+
+            PreprocessTask(List<InferenceInOutSequence> lazySequences, InferenceInOut[] inOuts,
+                    int from, int to) {
+                mLazySequences = lazySequences;
+                mInOuts = inOuts;
+                mFrom = from;
+                mTo = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (mTo - mFrom <= MIN_SPLIT_SIZE) {
+                    for (int i = mFrom; i < mTo; i++) {
+                        mInOuts[i] = preprocess(i, mLazySequences.get(i).get(0));
+                    }
+                    return;
+                }
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new PreprocessTask(mLazySequences, mInOuts, mFrom, middle),
+                        new PreprocessTask(mLazySequences, mInOuts, middle, mTo));
+            }
+
+            private InferenceInOut preprocess(int index, InferenceInOut lazyInOut) {
+                ByteBuffer input = IOUtils.allocateDirect(getInputSizeBytes());
+                int writtenBytes;
+                try {
+                    writtenBytes = ((ImageInputCreator) lazyInOut.mInputCreator).fill(
+                            input.duplicate());
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to preprocess image " + index, e);
+                }
+                if (writtenBytes != input.capacity()) {
+                    throw new IllegalArgumentException(String.format(
+                            "Preprocessing of image %d wrote %d bytes, expected %d", index,
+                            writtenBytes, input.capacity()));
+                }
+                if (mGroundTruthAssetName != null && lazyInOut.mExpectedClass < 0) {
+                    throw new IllegalArgumentException("No expected class for image " + index);
+                }
+                return new InferenceInOut(input, null, lazyInOut.mExpectedClass);
+            }
+        }
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of loaded input/output sequences, so that the tests running in the same
+ * process share a single copy of each asset or dataset.
+ *
+ * Entries are reference counted through {@link Handle}s. Once the total size of the loaded
+ * buffers exceeds the budget, the least recently used entries that are not referenced are
+ * evicted. Referenced entries are never evicted, even over budget. A sequence list is loaded
+ * only once, even if requested by several threads at the same time. The cached sequences are
+ * shared and must not be modified.
+ */
+public final class InferenceInOutSequenceCache {
+    private static final String TAG = NNTestBase.TAG;
+
+    public static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
+
+    private static final InferenceInOutSequenceCache sInstance =
+            new InferenceInOutSequenceCache(DEFAULT_BUDGET_BYTES);
+
+    /** Loads the sequences of a cache entry. */
+    public interface Loader {
+        List<InferenceInOutSequence> load() throws IOException;
+    }
+
+    private static final class Entry {
+        final String mKey;
+        int mReferenceCount;
+        // Set once loaded, mLoadFailure is set instead if the loading failed.
+        List<InferenceInOutSequence> mSequences;
+        IOException mLoadFailure;
+        long mSizeBytes;
+
+        Entry(String key) {
+            mKey = key;
+        }
+    }
+
+    /** Reference to a cache entry, keeps it from being evicted until closed. */
+    public final class Handle implements AutoCloseable {
+        private Entry mEntry;
+
+        private Handle(Entry entry) {
+            mEntry = entry;
+        }
+
+        public List<InferenceInOutSequence> get() {
+            if (mEntry == null) {
+                throw new IllegalStateException("Handle already closed");
+            }
+            return mEntry.mSequences;
+        }
+
+        @Override
+        public void close() {
+            if (mEntry != null) {
+                release(mEntry);
+                mEntry = null;
+            }
+        }
+    }
+
+    // In access order, the least recently used entry first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBudgetBytes;
+    private long mSizeBytes;
+
+    InferenceInOutSequenceCache(long budgetBytes) {
+        setBudgetBytes(budgetBytes);
+    }
+
+    public static InferenceInOutSequenceCache getInstance() {
+        return sInstance;
+    }
+
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Invalid cache budget " + budgetBytes);
+        }
+        mBudgetBytes = budgetBytes;
+        evictUnreferenced();
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * Returns a handle on the sequences cached for key, loading them with loader if needed.
+     * The handle must be closed once the sequences are no longer used.
+     */
+    public Handle acquire(String key, Loader loader) throws IOException {
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                mEntries.put(key, entry);
+                load = true;
+            }
+            entry.mReferenceCount++;
+        }
+
+        if (load) {
+            List<InferenceInOutSequence> sequences = null;
+            IOException failure = null;
+            try {
+                sequences = Collections.unmodifiableList(new ArrayList<>(loader.load()));
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Failed to load " + key, e);
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    entry.mLoadFailure = failure;
+                    mEntries.remove(key);
+                } else {
+                    entry.mSequences = sequences;
+                    entry.mSizeBytes = sizeBytes(sequences);
+                    mSizeBytes += entry.mSizeBytes;
+                    evictUnreferenced();
+                }
+                notifyAll();
+            }
+        } else {
+            synchronized (this) {
+                while (entry.mSequences == null && entry.mLoadFailure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        entry.mReferenceCount--;
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while loading " + key, e);
+                    }
+                }
+            }
+        }
+
+        if (entry.mLoadFailure != null) {
+            throw entry.mLoadFailure;
+        }
+        return new Handle(entry);
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.mReferenceCount--;
+        evictUnreferenced();
+    }
+
+    private void evictUnreferenced() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > mBudgetBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.mReferenceCount == 0 && entry.mSequences != null) {
+                Log.d(TAG, String.format("Evicting %s from the input/output cache, %d bytes",
+                        entry.mKey, entry.mSizeBytes));
+                it.remove();
+                mSizeBytes -= entry.mSizeBytes;
+            }
+        }
+    }
+
+    /** Size of the buffers of the sequences, inputs created on demand are not counted. */
+    static long sizeBytes(List<InferenceInOutSequence> sequences) {
+        long size = 0;
+        for (InferenceInOutSequence sequence : sequences) {
+            for (int i = 0; i < sequence.size(); i++) {
+                InferenceInOut inOut = sequence.get(i);
+                if (inOut.mInput != null) {
+                    size += inOut.mInput.capacity();
+                }
+                if (inOut.mExpectedOutputs != null) {
+                    for (ByteBuffer output : inOut.mExpectedOutputs) {
+                        size += output.capacity();
+                    }
+                }
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/**
+ * Total and max time spent in each phase of the inferences of a benchmark run.
+ *
+ * The inference latency only covers the invoke phase, the other phases show where the time
+ * around it goes: setting the input (including the Java preprocessing of datasets), computing
+ * the output errors, saving the outputs and converting the results to Java objects. The phase
+ * order is shared with the native InferencePhase enum in run_tflite.h.
+ */
+public class InferencePhaseBreakdown {
+    public static final int PHASE_INPUT = 0;
+    public static final int PHASE_INVOKE = 1;
+    public static final int PHASE_OUTPUT_ERROR = 2;
+    public static final int PHASE_OUTPUT_SAVE = 3;
+    public static final int PHASE_JNI_CONVERSION = 4;
+    public static final int PHASE_COUNT = 5;
+
+    public static final String[] PHASE_NAMES = {
+        "input", "invoke", "output_error", "output_save", "jni_conversion"};
+
+    private long mCount;
+    private final double[] mTotalsSec = new double[PHASE_COUNT];
+    private final float[] mMaxesSec = new float[PHASE_COUNT];
+
+    public InferencePhaseBreakdown() {}
+
+    /** Builds a breakdown from the phase aggregates produced by the native accumulator. */
+    public InferencePhaseBreakdown(long count, double[] totalsSec, float[] maxesSec) {
+        if (totalsSec.length != PHASE_COUNT || maxesSec.length != PHASE_COUNT) {
+            throw new IllegalArgumentException("Invalid number of inference phases");
+        }
+        mCount = count;
+        System.arraycopy(totalsSec, 0, mTotalsSec, 0, PHASE_COUNT);
+        System.arraycopy(maxesSec, 0, mMaxesSec, 0, PHASE_COUNT);
+    }
+
+    /**
+     * Adds the inferences of a batch. The JNI conversion is only measured for the whole batch,
+     * its max is the max over batches of the conversion time per inference.
+     */
+    public void add(InferenceResultBatch results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        mCount += results.mCount;
+        for (int i = 0; i < results.mCount; i++) {
+            addPhase(PHASE_INPUT, results.mInputTimesSec[i]);
+            addPhase(PHASE_INVOKE, results.mComputeTimesSec[i]);
+            addPhase(PHASE_OUTPUT_ERROR, results.mOutputErrorTimesSec[i]);
+            addPhase(PHASE_OUTPUT_SAVE, results.mOutputSaveTimesSec[i]);
+        }
+        mTotalsSec[PHASE_JNI_CONVERSION] += results.mJniConversionTimeSec;
+        mMaxesSec[PHASE_JNI_CONVERSION] = Math.max(mMaxesSec[PHASE_JNI_CONVERSION],
+                results.mJniConversionTimeSec / results.mCount);
+    }
+
+    private void addPhase(int phase, float timeSec) {
+        mTotalsSec[phase] += timeSec;
+        mMaxesSec[phase] = Math.max(mMaxesSec[phase], timeSec);
+    }
+
+    public long getCount() { return mCount; }
+
+    public float getMeanSec(int phase) {
+        return mCount == 0 ? 0.0f : (float) (mTotalsSec[phase] / mCount);
+    }
+
+    public float getMaxSec(int phase) { return mMaxesSec[phase]; }
+
+    /** Mean time of a whole inference, all phases included. */
+    public float getEndToEndMeanSec() {
+        double total = 0.0;
+        for (double phaseTotal : mTotalsSec) {
+            total += phaseTotal;
+        }
+        return mCount == 0 ? 0.0f : (float) (total / mCount);
+    }
+
+    public void putToBundle(Bundle results, String prefix) {
+        // Reported in ms
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            results.putFloat(prefix + "_" + PHASE_NAMES[phase] + "_avg",
+                    getMeanSec(phase) * 1000.0f);
+            results.putFloat(prefix + "_" + PHASE_NAMES[phase] + "_max",
+                    getMaxSec(phase) * 1000.0f);
+        }
+        results.putFloat(prefix + "_end_to_end_avg", getEndToEndMeanSec() * 1000.0f);
+    }
+
+    public void writeToParcel(Parcel dest) {
+        dest.writeLong(mCount);
+        dest.writeDoubleArray(mTotalsSec);
+        dest.writeFloatArray(mMaxesSec);
+    }
+
+    public static InferencePhaseBreakdown readFromParcel(Parcel in) {
+        InferencePhaseBreakdown result = new InferencePhaseBreakdown();
+        result.mCount = in.readLong();
+        in.readDoubleArray(result.mTotalsSec);
+        in.readFloatArray(result.mMaxesSec);
+        return result;
+    }
+
+    /** Appends count,phase1MeanSec,phase1MaxSec,... to a CSV line, in PHASE_NAMES order. */
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(mCount);
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            sb.append(',').append(getMeanSec(phase)).append(',').append(getMaxSec(phase));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("InferencePhaseBreakdown{mCount=" + mCount);
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            sb.append(", ").append(PHASE_NAMES[phase]).append('=').append(getMeanSec(phase));
+        }
+        sb.append(", getEndToEndMeanSec()=").append(getEndToEndMeanSec()).append('}');
+        return sb.toString();
+    }
+}
@@ -1,37 +0,0 @@
-/*
- * Copyright (C) 2018 The Android Open Source Project
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package com.android.nn.benchmark.core;
-
-public class InferenceResult {
-    public float mComputeTimeSec;
-    public float[] mMeanSquaredErrors;
-    public float[] mMaxSingleErrors;
-    public byte[][] mInferenceOutput;
-    public int mInputOutputSequenceIndex;
-    public int mInputOutputIndex;
-
-    public InferenceResult(float computeTimeSec, float[] meanSquaredErrors,
-            float[] maxSingleErrors, byte[][] inferenceOutput, int inputOutputSequenceIndex,
-            int inputOutputIndex) {
-        mComputeTimeSec = computeTimeSec;
-        mMeanSquaredErrors = meanSquaredErrors;
-        mMaxSingleErrors = maxSingleErrors;
-        mInferenceOutput = inferenceOutput;
-        mInputOutputSequenceIndex = inputOutputSequenceIndex;
-        mInputOutputIndex = inputOutputIndex;
-    }
-}
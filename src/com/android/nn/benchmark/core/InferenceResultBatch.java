@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Results of a sequence of inferences, stored column by column.
+ *
+ * Built by the native code with a few bulk array copies instead of one object per inference,
+ * to keep the allocations after the measurement window independent of the inference count.
+ * All the per-inference arrays have exactly mCount elements.
+ */
+public class InferenceResultBatch {
+    public int mCount;
+    /** Number of model outputs of each inference. */
+    public int mOutputCount;
+
+    public float[] mComputeTimesSec;
+    /** Start of each inference relative to the start of the run, negative if unknown. */
+    public float[] mStartTimesSec;
+    /** Time spent around each invocation, see InferencePhaseBreakdown. */
+    public float[] mInputTimesSec;
+    public float[] mOutputErrorTimesSec;
+    public float[] mOutputSaveTimesSec;
+    /** Time to convert the whole batch to Java. */
+    public float mJniConversionTimeSec;
+
+    public int[] mInputOutputSequenceIndices;
+    public int[] mInputOutputIndices;
+
+    /**
+     * MSE and max single error of output j of inference i, at index i * mOutputCount + j.
+     * Null if there were no golden outputs.
+     */
+    public float[] mMeanSquaredErrors;
+    public float[] mMaxSingleErrors;
+
+    /**
+     * Output j of all the inferences packed in mInferenceOutputs[j], see getOutput.
+     * Null if the outputs were discarded.
+     */
+    public byte[][] mInferenceOutputs;
+
+    /** Empty batch. */
+    public InferenceResultBatch() {
+        this(0, 0, new float[0], new float[0], new float[0], new float[0], new float[0], 0.0f,
+                new int[0], new int[0], null, null, null);
+    }
+
+    public InferenceResultBatch(int count, int outputCount, float[] computeTimesSec,
+            float[] startTimesSec, float[] inputTimesSec, float[] outputErrorTimesSec,
+            float[] outputSaveTimesSec, float jniConversionTimeSec,
+            int[] inputOutputSequenceIndices, int[] inputOutputIndices,
+            float[] meanSquaredErrors, float[] maxSingleErrors, byte[][] inferenceOutputs) {
+        mCount = count;
+        mOutputCount = outputCount;
+        mComputeTimesSec = computeTimesSec;
+        mStartTimesSec = startTimesSec;
+        mInputTimesSec = inputTimesSec;
+        mOutputErrorTimesSec = outputErrorTimesSec;
+        mOutputSaveTimesSec = outputSaveTimesSec;
+        mJniConversionTimeSec = jniConversionTimeSec;
+        mInputOutputSequenceIndices = inputOutputSequenceIndices;
+        mInputOutputIndices = inputOutputIndices;
+        mMeanSquaredErrors = meanSquaredErrors;
+        mMaxSingleErrors = maxSingleErrors;
+        mInferenceOutputs = inferenceOutputs;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /** Output of an inference, as a view on the packed outputs. */
+    public ByteBuffer getOutput(int inference, int output) {
+        if (mInferenceOutputs == null) {
+            throw new IllegalStateException("Inference outputs were discarded");
+        }
+        int outputSizeBytes = mInferenceOutputs[output].length / mCount;
+        return ByteBuffer.wrap(mInferenceOutputs[output], inference * outputSizeBytes,
+                outputSizeBytes).slice();
+    }
+
+    /** Shifts the known start times, e.g. to make a chunk relative to the start of a run. */
+    public void offsetStartTimes(float offsetSec) {
+        for (int i = 0; i < mCount; i++) {
+            if (mStartTimesSec[i] >= 0) {
+                mStartTimesSec[i] += offsetSec;
+            }
+        }
+    }
+
+    /**
+     * Maps the sequence indices of a run on a list rotated to start at startSequence back to
+     * the original list of sequenceCount sequences.
+     */
+    public void rotateSequenceIndices(int startSequence, int sequenceCount) {
+        for (int i = 0; i < mCount; i++) {
+            mInputOutputSequenceIndices[i] =
+                    (mInputOutputSequenceIndices[i] + startSequence) % sequenceCount;
+        }
+    }
+
+    /**
+     * Index of the sequence following the last inference of the batch, in a list of
+     * sequenceCount sequences, or defaultIndex if the batch is empty.
+     */
+    public int getNextSequenceIndex(int sequenceCount, int defaultIndex) {
+        if (mCount == 0) {
+            return defaultIndex;
+        }
+        return (mInputOutputSequenceIndices[mCount - 1] + 1) % sequenceCount;
+    }
+
+    /** Concatenates batches of inferences on the same model. */
+    public static InferenceResultBatch concat(List<InferenceResultBatch> batches) {
+        int count = 0;
+        int outputCount = 0;
+        boolean hasErrors = true;
+        boolean hasOutputs = true;
+        float jniConversionTimeSec = 0.0f;
+        for (InferenceResultBatch batch : batches) {
+            if (batch.isEmpty()) {
+                continue;
+            }
+            count += batch.mCount;
+            outputCount = batch.mOutputCount;
+            hasErrors &= batch.mMeanSquaredErrors != null;
+            hasOutputs &= batch.mInferenceOutputs != null;
+            jniConversionTimeSec += batch.mJniConversionTimeSec;
+        }
+        if (count == 0) {
+            return new InferenceResultBatch();
+        }
+
+        InferenceResultBatch result = new InferenceResultBatch(count, outputCount,
+                new float[count], new float[count], new float[count], new float[count],
+                new float[count], jniConversionTimeSec, new int[count], new int[count],
+                hasErrors ? new float[count * outputCount] : null,
+                hasErrors ? new float[count * outputCount] : null,
+                hasOutputs ? new byte[outputCount][] : null);
+        if (hasOutputs) {
+            for (int j = 0; j < outputCount; j++) {
+                int sizeBytes = 0;
+                for (InferenceResultBatch batch : batches) {
+                    if (!batch.isEmpty()) {
+                        sizeBytes += batch.mInferenceOutputs[j].length;
+                    }
+                }
+                result.mInferenceOutputs[j] = new byte[sizeBytes];
+            }
+        }
+
+        int offset = 0;
+        int[] outputOffsets = new int[outputCount];
+        for (InferenceResultBatch batch : batches) {
+            if (batch.isEmpty()) {
+                continue;
+            }
+            int n = batch.mCount;
+            System.arraycopy(batch.mComputeTimesSec, 0, result.mComputeTimesSec, offset, n);
+            System.arraycopy(batch.mStartTimesSec, 0, result.mStartTimesSec, offset, n);
+            System.arraycopy(batch.mInputTimesSec, 0, result.mInputTimesSec, offset, n);
+            System.arraycopy(batch.mOutputErrorTimesSec, 0, result.mOutputErrorTimesSec,
+                    offset, n);
+            System.arraycopy(batch.mOutputSaveTimesSec, 0, result.mOutputSaveTimesSec,
+                    offset, n);
+            System.arraycopy(batch.mInputOutputSequenceIndices, 0,
+                    result.mInputOutputSequenceIndices, offset, n);
+            System.arraycopy(batch.mInputOutputIndices, 0, result.mInputOutputIndices,
+                    offset, n);
+            if (hasErrors) {
+                System.arraycopy(batch.mMeanSquaredErrors, 0, result.mMeanSquaredErrors,
+                        offset * outputCount, n * outputCount);
+                System.arraycopy(batch.mMaxSingleErrors, 0, result.mMaxSingleErrors,
+                        offset * outputCount, n * outputCount);
+            }
+            if (hasOutputs) {
+                for (int j = 0; j < outputCount; j++) {
+                    byte[] output = batch.mInferenceOutputs[j];
+                    System.arraycopy(output, 0, result.mInferenceOutputs[j], outputOffsets[j],
+                            output.length);
+                    outputOffsets[j] += output.length;
+                }
+            }
+            offset += n;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import com.android.nn.benchmark.util.StatsUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Statistical comparison of two latency distributions, a baseline and a candidate.
+ *
+ * Uses the Mann-Whitney U test (with tie correction) and the two-sample Kolmogorov-Smirnov
+ * test, the probability of superiority as effect size, and a percentile bootstrap confidence
+ * interval of the candidate/baseline median ratio. Samples are taken from LatencyHistograms,
+ * values in the same histogram bucket are treated as ties.
+ */
+public class LatencyComparison {
+    public static final float DEFAULT_SIGNIFICANCE_LEVEL = 0.05f;
+    public static final long DEFAULT_BOOTSTRAP_SEED = 42;
+
+    private static final int BOOTSTRAP_ITERATIONS = 1000;
+    /**
+     * Max size of each bootstrap resample. Larger samples are resampled with fewer values,
+     * which widens the interval: the verdicts stay conservative.
+     */
+    private static final int MAX_BOOTSTRAP_SAMPLE_SIZE = 10000;
+
+    public final long mBaselineCount;
+    public final long mCandidateCount;
+    public final double mMannWhitneyU;
+    public final double mMannWhitneyPValue;
+    /**
+     * Probability that a candidate latency is larger than a baseline one, counting ties as
+     * 1/2. 0.5 means no difference, 1 means the candidate is always slower.
+     */
+    public final double mProbabilityOfSuperiority;
+    public final double mKolmogorovSmirnovD;
+    public final double mKolmogorovSmirnovPValue;
+    public final double mMedianRatio;
+    public final double mMedianRatioLower;
+    public final double mMedianRatioUpper;
+
+    private LatencyComparison(long baselineCount, long candidateCount, double mannWhitneyU,
+            double mannWhitneyPValue, double kolmogorovSmirnovD, double kolmogorovSmirnovPValue,
+            double medianRatio, double medianRatioLower, double medianRatioUpper) {
+        mBaselineCount = baselineCount;
+        mCandidateCount = candidateCount;
+        mMannWhitneyU = mannWhitneyU;
+        mMannWhitneyPValue = mannWhitneyPValue;
+        mProbabilityOfSuperiority = mannWhitneyU / ((double) baselineCount * candidateCount);
+        mKolmogorovSmirnovD = kolmogorovSmirnovD;
+        mKolmogorovSmirnovPValue = kolmogorovSmirnovPValue;
+        mMedianRatio = medianRatio;
+        mMedianRatioLower = medianRatioLower;
+        mMedianRatioUpper = medianRatioUpper;
+    }
+
+    public static LatencyComparison compare(BenchmarkResult baseline, BenchmarkResult candidate) {
+        return compare(baseline.getInferenceLatency().getHistogram(),
+                candidate.getInferenceLatency().getHistogram(), DEFAULT_BOOTSTRAP_SEED);
+    }
+
+    public static LatencyComparison compare(float[] baselineSec, float[] candidateSec) {
+        return compare(toHistogram(baselineSec), toHistogram(candidateSec),
+                DEFAULT_BOOTSTRAP_SEED);
+    }
+
+    private static LatencyHistogram toHistogram(float[] latenciesSec) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (float latency : latenciesSec) {
+            histogram.recordSec(latency);
+        }
+        return histogram;
+    }
+
+    public static LatencyComparison compare(LatencyHistogram baseline,
+            LatencyHistogram candidate, long bootstrapSeed) {
+        long n1 = baseline.getTotalCount();
+        long n2 = candidate.getTotalCount();
+        if (n1 == 0 || n2 == 0) {
+            throw new IllegalArgumentException("Cannot compare empty latency distributions");
+        }
+        double total = n1 + n2;
+
+        // Single pass over the buckets in increasing latency order for both tests.
+        double rankSumCandidate = 0.0;
+        double tieCorrection = 0.0;
+        long cumulative = 0;
+        long cumulativeBaseline = 0;
+        long cumulativeCandidate = 0;
+        double ksD = 0.0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long a = baseline.getCountAtIndex(i);
+            long b = candidate.getCountAtIndex(i);
+            long t = a + b;
+            if (t == 0) {
+                continue;
+            }
+            double averageRank = cumulative + (t + 1) / 2.0;
+            rankSumCandidate += b * averageRank;
+            tieCorrection += (double) t * t * t - t;
+            cumulative += t;
+            cumulativeBaseline += a;
+            cumulativeCandidate += b;
+            ksD = Math.max(ksD, Math.abs(
+                    (double) cumulativeBaseline / n1 - (double) cumulativeCandidate / n2));
+        }
+
+        double u = rankSumCandidate - n2 * (n2 + 1.0) / 2.0;
+        double variance = n1 * (double) n2 / 12.0
+                * ((total + 1.0) - tieCorrection / (total * (total - 1.0)));
+        double pValue = variance > 0.0
+                ? StatsUtils.twoSidedNormalPValue((u - n1 * (double) n2 / 2.0)
+                        / Math.sqrt(variance))
+                : 1.0;
+
+        double medianRatio = candidate.getValueAtPercentileSec(50.0)
+                / (double) baseline.getValueAtPercentileSec(50.0);
+        double[] ratios = bootstrapMedianRatios(baseline, candidate, new Random(bootstrapSeed));
+        Arrays.sort(ratios);
+        return new LatencyComparison(n1, n2, u, pValue, ksD,
+                StatsUtils.kolmogorovSmirnovPValue(ksD, n1, n2), medianRatio,
+                ratios[(int) (0.025 * (ratios.length - 1))],
+                ratios[(int) Math.ceil(0.975 * (ratios.length - 1))]);
+    }
+
+    private static double[] bootstrapMedianRatios(LatencyHistogram baseline,
+            LatencyHistogram candidate, Random random) {
+        Resampler baselineResampler = new Resampler(baseline);
+        Resampler candidateResampler = new Resampler(candidate);
+        double[] ratios = new double[BOOTSTRAP_ITERATIONS];
+        for (int i = 0; i < BOOTSTRAP_ITERATIONS; i++) {
+            ratios[i] = candidateResampler.resampleMedianMicros(random)
+                    / baselineResampler.resampleMedianMicros(random);
+        }
+        return ratios;
+    }
+
+    /** Draws bootstrap resamples from the non-empty buckets of a histogram. */
+    private static class Resampler {
+        private final double[] mValuesMicros;
+        private final long[] mCumulativeCounts;
+        private final int[] mResampleCounts;
+        private final int mSampleSize;
+
+        Resampler(LatencyHistogram histogram) {
+            int buckets = histogram.getNonZeroBucketCount();
+            mValuesMicros = new double[buckets];
+            mCumulativeCounts = new long[buckets];
+            mResampleCounts = new int[buckets];
+            long cumulative = 0;
+            for (int i = 0, j = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+                long count = histogram.getCountAtIndex(i);
+                if (count != 0) {
+                    cumulative += count;
+                    mValuesMicros[j] = histogram.bucketValueMicros(i);
+                    mCumulativeCounts[j] = cumulative;
+                    j++;
+                }
+            }
+            mSampleSize = (int) Math.min(cumulative, MAX_BOOTSTRAP_SAMPLE_SIZE);
+        }
+
+        double resampleMedianMicros(Random random) {
+            long total = mCumulativeCounts[mCumulativeCounts.length - 1];
+            Arrays.fill(mResampleCounts, 0);
+            for (int i = 0; i < mSampleSize; i++) {
+                long draw = (long) (random.nextDouble() * total);
+                int index = Arrays.binarySearch(mCumulativeCounts, draw + 1);
+                mResampleCounts[index >= 0 ? index : -index - 1]++;
+            }
+            int medianRank = (mSampleSize + 1) / 2;
+            int cumulative = 0;
+            for (int i = 0; i < mResampleCounts.length; i++) {
+                cumulative += mResampleCounts[i];
+                if (cumulative >= medianRank) {
+                    return mValuesMicros[i];
+                }
+            }
+            return mValuesMicros[mValuesMicros.length - 1];
+        }
+    }
+
+    /** Both tests reject equal distributions at the given level. */
+    public boolean isSignificant(float significanceLevel) {
+        return mMannWhitneyPValue < significanceLevel
+                && mKolmogorovSmirnovPValue < significanceLevel;
+    }
+
+    /**
+     * The candidate is significantly slower and its median is more than maxRatio times the
+     * baseline one, with the whole bootstrap confidence interval above maxRatio.
+     */
+    public boolean isSlowerBy(double maxRatio, float significanceLevel) {
+        return isSignificant(significanceLevel) && mProbabilityOfSuperiority > 0.5
+                && mMedianRatioLower > maxRatio;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyComparison{"
+                + "mBaselineCount=" + mBaselineCount
+                + ", mCandidateCount=" + mCandidateCount
+                + ", mMannWhitneyU=" + mMannWhitneyU
+                + ", mMannWhitneyPValue=" + mMannWhitneyPValue
+                + ", mProbabilityOfSuperiority=" + mProbabilityOfSuperiority
+                + ", mKolmogorovSmirnovD=" + mKolmogorovSmirnovD
+                + ", mKolmogorovSmirnovPValue=" + mKolmogorovSmirnovPValue
+                + ", mMedianRatio=" + mMedianRatio
+                + ", mMedianRatioCi=[" + mMedianRatioLower + ", " + mMedianRatioUpper + "]}";
+    }
+}
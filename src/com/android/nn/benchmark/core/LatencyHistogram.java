@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Parcel;
+
+/**
+ * Log-linear (HDR-style) latency histogram with bounded relative error.
+ *
+ * Values are recorded in microseconds. Values smaller than {@link #SUB_BUCKET_COUNT} get one
+ * exact bucket each, larger values are grouped in power-of-two ranges, each split in
+ * SUB_BUCKET_COUNT / 2 linear sub-buckets. The width of a bucket is therefore never more than
+ * 2 / SUB_BUCKET_COUNT of its lower bound, and values reported from the bucket midpoint are
+ * within 1 / SUB_BUCKET_COUNT (~0.8%) of the recorded ones.
+ *
+ * The bucket layout is shared with the native LatencyAccumulator in run_tflite.h and is
+ * decoded by results/generate_result.py, keep them in sync.
+ */
+public class LatencyHistogram {
+    public static final int SUB_BUCKET_BITS = 7;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /** Largest trackable value is 2^MAX_VALUE_BITS us (~12 days), larger ones are clamped. */
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_TRACKABLE_MICROS = (1L << MAX_VALUE_BITS) - 1;
+    public static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_MICROS) + 1;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mMinMicros = Long.MAX_VALUE;
+    private long mMaxMicros = 0;
+
+    public LatencyHistogram() {}
+
+    /** Builds a histogram from raw bucket counts, as produced by the native accumulator. */
+    public LatencyHistogram(long[] counts, long minMicros, long maxMicros) {
+        if (counts.length > BUCKET_COUNT) {
+            throw new IllegalArgumentException("Too many histogram buckets: " + counts.length);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            mCounts[i] = counts[i];
+            mTotalCount += counts[i];
+        }
+        if (mTotalCount > 0) {
+            mMinMicros = minMicros;
+            mMaxMicros = maxMicros;
+        }
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = msb - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (micros >> shift);
+    }
+
+    static long bucketLowerBoundMicros(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = index - (long) shift * SUB_BUCKET_HALF_COUNT;
+        return subBucket << shift;
+    }
+
+    static long bucketWidthMicros(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return 1;
+        }
+        return 1L << (index / SUB_BUCKET_HALF_COUNT - 1);
+    }
+
+    public static long secondsToMicros(float seconds) {
+        return Math.max(0L, Math.round(seconds * 1000000.0));
+    }
+
+    public void recordSec(float seconds) {
+        recordMicros(secondsToMicros(seconds), 1);
+    }
+
+    public void recordMicros(long micros, long count) {
+        if (count <= 0) {
+            return;
+        }
+        micros = Math.max(0L, micros);
+        mCounts[bucketIndex(Math.min(micros, MAX_TRACKABLE_MICROS))] += count;
+        mTotalCount += count;
+        mMinMicros = Math.min(mMinMicros, micros);
+        mMaxMicros = Math.max(mMaxMicros, micros);
+    }
+
+    /** Adds all the values recorded in other into this histogram. */
+    public void add(LatencyHistogram other) {
+        if (other.mTotalCount == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMinMicros = Math.min(mMinMicros, other.mMinMicros);
+        mMaxMicros = Math.max(mMaxMicros, other.mMaxMicros);
+    }
+
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    public long getCountAtIndex(int index) {
+        return mCounts[index];
+    }
+
+    public float getMinSec() {
+        return mTotalCount == 0 ? 0.0f : mMinMicros / 1000000.0f;
+    }
+
+    public float getMaxSec() {
+        return mTotalCount == 0 ? 0.0f : mMaxMicros / 1000000.0f;
+    }
+
+    /** Representative value of a bucket, clamped to the recorded min/max. */
+    double bucketValueMicros(int index) {
+        double mid = bucketLowerBoundMicros(index) + (bucketWidthMicros(index) - 1) / 2.0;
+        return Math.max(mMinMicros, Math.min(mMaxMicros, mid));
+    }
+
+    /**
+     * Returns the value at the given percentile (0..100), in seconds.
+     *
+     * The smallest recorded value v such that at least percentile% of the recorded values are
+     * less or equal to v, up to the histogram resolution.
+     */
+    public float getValueAtPercentileSec(double percentile) {
+        if (mTotalCount == 0) {
+            return 0.0f;
+        }
+        if (percentile >= 100.0) {
+            return getMaxSec();
+        }
+        return getValueAtRankSec((long) Math.ceil(percentile / 100.0 * mTotalCount));
+    }
+
+    /** Returns the rank-th smallest recorded value (1-based), in seconds. */
+    public float getValueAtRankSec(long rank) {
+        if (mTotalCount == 0) {
+            return 0.0f;
+        }
+        rank = Math.max(1, Math.min(rank, mTotalCount));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += mCounts[i];
+            if (cumulative >= rank) {
+                return (float) (bucketValueMicros(i) / 1000000.0);
+            }
+        }
+        return getMaxSec();
+    }
+
+    public int getNonZeroBucketCount() {
+        int result = 0;
+        for (long count : mCounts) {
+            if (count != 0) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** Writes the histogram as a sparse list of (bucket index, count) pairs. */
+    public void writeToParcel(Parcel dest) {
+        dest.writeLong(mMinMicros);
+        dest.writeLong(mMaxMicros);
+        dest.writeInt(getNonZeroBucketCount());
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] != 0) {
+                dest.writeInt(i);
+                dest.writeLong(mCounts[i]);
+            }
+        }
+    }
+
+    public static LatencyHistogram readFromParcel(Parcel in) {
+        LatencyHistogram result = new LatencyHistogram();
+        long minMicros = in.readLong();
+        long maxMicros = in.readLong();
+        int nonZeroBucketCount = in.readInt();
+        for (int i = 0; i < nonZeroBucketCount; i++) {
+            int index = in.readInt();
+            long count = in.readLong();
+            result.mCounts[index] = count;
+            result.mTotalCount += count;
+        }
+        if (result.mTotalCount > 0) {
+            result.mMinMicros = minMicros;
+            result.mMaxMicros = maxMicros;
+        }
+        return result;
+    }
+
+    /**
+     * Appends subBucketBits,bucketCount,bucketIndex1,bucketCount1,... to a CSV line.
+     * Only non-empty buckets are written.
+     */
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(SUB_BUCKET_BITS);
+        sb.append(',').append(getNonZeroBucketCount());
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] != 0) {
+                sb.append(',').append(i).append(',').append(mCounts[i]);
+            }
+        }
+    }
+}
@@ -20,35 +20,28 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
 public class LatencyResult implements Parcelable {
-    private final static int TIME_FREQ_ARRAY_SIZE = 32;
+    /** Percentiles reported in the bundle, CSV and summary, in addition to the max. */
+    public static final double[] PERCENTILES = {50.0, 90.0, 95.0, 99.0, 99.9};
 
     private float mTotalTimeSec;
     private int mIterations;
     private float mTimeStdDeviation;
 
-    /** Time offset for inference frequency counts */
-    private float mTimeFreqStartSec;
-
-    /** Index time offset for inference frequency counts */
-    private float mTimeFreqStepSec;
-
-    /**
-     * Array of inference frequency counts.
-     * Each entry contains inference count for time range:
-     * [mTimeFreqStartSec + i*mTimeFreqStepSec, mTimeFreqStartSec + (1+i*mTimeFreqStepSec)
-     */
-    private float[] mTimeFreqSec = {};
+    /** Distribution of the inference times, with bounded relative error. */
+    private LatencyHistogram mHistogram;
 
     public LatencyResult(float[] results) {
         mIterations = results.length;
         mTotalTimeSec = 0.0f;
-        float maxComputeTimeSec = 0.0f;
-        float minComputeTimeSec = Float.MAX_VALUE;
+        mHistogram = new LatencyHistogram();
         for (float result : results) {
             mTotalTimeSec += result;
-            maxComputeTimeSec = Math.max(maxComputeTimeSec, result);
-            minComputeTimeSec = Math.min(minComputeTimeSec, result);
+            mHistogram.recordSec(result);
         }
 
         // Calculate standard deviation.
@@ -60,26 +53,21 @@ public class LatencyResult implements Parcelable {
         }
         variance /= mIterations;
         mTimeStdDeviation = (float) Math.sqrt(variance);
+    }
 
-        // Calculate inference frequency/histogram across TIME_FREQ_ARRAY_SIZE buckets.
-        mTimeFreqStartSec = minComputeTimeSec;
-        mTimeFreqStepSec = (maxComputeTimeSec - minComputeTimeSec) / (TIME_FREQ_ARRAY_SIZE - 1);
-        mTimeFreqSec = new float[TIME_FREQ_ARRAY_SIZE];
-        for (float result : results) {
-            int bucketIndex = (int) ((result - minComputeTimeSec) / mTimeFreqStepSec);
-            mTimeFreqSec[bucketIndex] += 1;
-        }
+    public LatencyResult(int iterations, float totalTimeSec, float timeStdDeviation,
+            LatencyHistogram histogram) {
+        mIterations = iterations;
+        mTotalTimeSec = totalTimeSec;
+        mTimeStdDeviation = timeStdDeviation;
+        mHistogram = histogram;
     }
 
     public LatencyResult(Parcel in) {
         mTotalTimeSec = in.readFloat();
         mIterations = in.readInt();
         mTimeStdDeviation = in.readFloat();
-        mTimeFreqStartSec = in.readFloat();
-        mTimeFreqStepSec = in.readFloat();
-        int timeFreqSecLength = in.readInt();
-        mTimeFreqSec = new float[timeFreqSecLength];
-        in.readFloatArray(mTimeFreqSec);
+        mHistogram = LatencyHistogram.readFromParcel(in);
     }
 
     @Override
@@ -92,10 +80,7 @@ public class LatencyResult implements Parcelable {
         dest.writeFloat(mTotalTimeSec);
         dest.writeInt(mIterations);
         dest.writeFloat(mTimeStdDeviation);
-        dest.writeFloat(mTimeFreqStartSec);
-        dest.writeFloat(mTimeFreqStepSec);
-        dest.writeInt(mTimeFreqSec.length);
-        dest.writeFloatArray(mTimeFreqSec);
+        mHistogram.writeToParcel(dest);
     }
 
     public static final Parcelable.Creator<LatencyResult> CREATOR =
@@ -109,29 +94,59 @@ public class LatencyResult implements Parcelable {
           }
         };
 
+    // Locale independent, the bundle keys are parsed by the results tooling.
+    private static String formatPercentile(double percentile) {
+        return new DecimalFormat("##.#", DecimalFormatSymbols.getInstance(Locale.US))
+                .format(percentile);
+    }
+
+    /** Suffix used for a percentile in bundle keys, e.g. "_p99" or "_p99_9". */
+    private static String percentileSuffix(double percentile) {
+        return "_p" + formatPercentile(percentile).replace('.', '_');
+    }
+
     public void putToBundle(Bundle results, String prefix) {
         // Reported in ms
         results.putFloat(prefix + "_avg", getMeanTimeSec() * 1000.0f);
         results.putFloat(prefix + "_std_dev", mTimeStdDeviation * 1000.0f);
         results.putFloat(prefix + "_total_time", mTotalTimeSec * 1000.0f);
         results.putInt(prefix + "_iterations", mIterations);
+        for (double percentile : PERCENTILES) {
+            results.putFloat(prefix + percentileSuffix(percentile),
+                    getPercentileTimeSec(percentile) * 1000.0f);
+        }
+        results.putFloat(prefix + "_max", getMaxTimeSec() * 1000.0f);
     }
 
     @Override
     public String toString() {
-        return "LatencyResult{"
+        StringBuilder sb = new StringBuilder("LatencyResult{"
                 + "getMeanTimeSec()=" + getMeanTimeSec()
                 + ", mTotalTimeSec=" + mTotalTimeSec
                 + ", mIterations=" + mIterations
-                + ", mTimeStdDeviation=" + mTimeStdDeviation
-                + ", mTimeFreqStartSec=" + mTimeFreqStartSec
-                + ", mTimeFreqStepSec=" + mTimeFreqStepSec + "}";
+                + ", mTimeStdDeviation=" + mTimeStdDeviation);
+        for (double percentile : PERCENTILES) {
+            sb.append(", p").append(percentile).append('=')
+                    .append(getPercentileTimeSec(percentile));
+        }
+        sb.append(", max=").append(getMaxTimeSec()).append('}');
+        return sb.toString();
     }
 
     public int getIterations() { return mIterations; }
 
     public float getMeanTimeSec() { return mTotalTimeSec / mIterations; }
 
+    public float getPercentileTimeSec(double percentile) {
+        return mHistogram.getValueAtPercentileSec(percentile);
+    }
+
+    public float getMinTimeSec() { return mHistogram.getMinSec(); }
+
+    public float getMaxTimeSec() { return mHistogram.getMaxSec(); }
+
+    public LatencyHistogram getHistogram() { return mHistogram; }
+
     private float rebase(float v, float baselineSec) {
         if (v > 0.001) {
             v = baselineSec / v;
@@ -141,21 +156,30 @@ public class LatencyResult implements Parcelable {
 
     public String getSummary(float baselineSec) {
         java.text.DecimalFormat df = new java.text.DecimalFormat("######.##");
-        return df.format(rebase(getMeanTimeSec(), baselineSec)) + "X, n=" + mIterations
-                + ", μ=" + df.format(getMeanTimeSec() * 1000.0)
-                + "ms, σ=" + df.format(mTimeStdDeviation * 1000.0) + "ms";
+        StringBuilder sb = new StringBuilder();
+        sb.append(df.format(rebase(getMeanTimeSec(), baselineSec))).append("X, n=")
+                .append(mIterations)
+                .append(", μ=").append(df.format(getMeanTimeSec() * 1000.0))
+                .append("ms, σ=").append(df.format(mTimeStdDeviation * 1000.0)).append("ms");
+        for (double percentile : PERCENTILES) {
+            sb.append(", p").append(formatPercentile(percentile))
+                    .append('=').append(df.format(getPercentileTimeSec(percentile) * 1000.0))
+                    .append("ms");
+        }
+        sb.append(", max=").append(df.format(getMaxTimeSec() * 1000.0)).append("ms");
+        return sb.toString();
     }
 
     public void appendToCsvLine(StringBuilder sb) {
         sb.append(',').append(String.join(",",
             String.valueOf(mIterations),
-            String.valueOf(mTotalTimeSec),
-            String.valueOf(mTimeFreqStartSec),
-            String.valueOf(mTimeFreqStepSec),
-            String.valueOf(mTimeFreqSec.length)));
+            String.valueOf(mTotalTimeSec)));
 
-        for (float value : mTimeFreqSec) {
-            sb.append(',').append(value);
+        for (double percentile : PERCENTILES) {
+            sb.append(',').append(getPercentileTimeSec(percentile));
         }
+        sb.append(',').append(getMaxTimeSec());
+
+        mHistogram.appendToCsvLine(sb);
     }
 }
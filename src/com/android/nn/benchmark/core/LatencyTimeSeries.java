@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/**
+ * Latency aggregates (count, sum, max) over fixed wall-clock windows of a benchmark run, used
+ * to detect thermal throttling and other performance drift.
+ *
+ * Memory is bounded: once MAX_WINDOW_COUNT windows are used, adjacent windows are coalesced
+ * and the window duration doubles. The native LatencyAccumulator in run_tflite.h builds the
+ * same series for streaming runs.
+ */
+public class LatencyTimeSeries {
+    public static final float INITIAL_WINDOW_SEC = 1.0f;
+    public static final int MAX_WINDOW_COUNT = 512;
+
+    /** Relative slowdown from the initial latency that is considered throttling. */
+    private static final float THROTTLE_THRESHOLD = 0.1f;
+    /** Number of consecutive slow windows needed to report throttling. */
+    private static final int THROTTLE_MIN_WINDOWS = 3;
+    /** Fraction of the run used for the steady-state latency. */
+    private static final float STEADY_STATE_FRACTION = 0.3f;
+
+    private float mWindowSec = INITIAL_WINDOW_SEC;
+    private int mWindowCount = 0;
+    private final long[] mCounts = new long[MAX_WINDOW_COUNT];
+    private final double[] mSumsSec = new double[MAX_WINDOW_COUNT];
+    private final float[] mMaxesSec = new float[MAX_WINDOW_COUNT];
+
+    public LatencyTimeSeries() {}
+
+    /** Builds a series from the window aggregates produced by the native accumulator. */
+    public LatencyTimeSeries(float windowSec, long[] counts, double[] sumsSec, float[] maxesSec) {
+        if (counts.length > MAX_WINDOW_COUNT || counts.length != sumsSec.length
+                || counts.length != maxesSec.length) {
+            throw new IllegalArgumentException("Invalid time series windows");
+        }
+        mWindowSec = windowSec;
+        mWindowCount = counts.length;
+        System.arraycopy(counts, 0, mCounts, 0, counts.length);
+        System.arraycopy(sumsSec, 0, mSumsSec, 0, counts.length);
+        System.arraycopy(maxesSec, 0, mMaxesSec, 0, counts.length);
+    }
+
+    /**
+     * Records an inference.
+     *
+     * @param startTimeSec start of the inference, relative to the start of the run
+     * @param latencySec duration of the inference
+     */
+    public void add(float startTimeSec, float latencySec) {
+        int index = (int) (Math.max(0.0f, startTimeSec) / mWindowSec);
+        while (index >= MAX_WINDOW_COUNT) {
+            coalesce();
+            index = (int) (Math.max(0.0f, startTimeSec) / mWindowSec);
+        }
+        mWindowCount = Math.max(mWindowCount, index + 1);
+        mCounts[index]++;
+        mSumsSec[index] += latencySec;
+        mMaxesSec[index] = Math.max(mMaxesSec[index], latencySec);
+    }
+
+    /** Merges pairs of adjacent windows, doubling the window duration. */
+    private void coalesce() {
+        int newCount = (mWindowCount + 1) / 2;
+        for (int i = 0; i < newCount; i++) {
+            int first = 2 * i;
+            int second = first + 1;
+            long count = mCounts[first];
+            double sum = mSumsSec[first];
+            float max = mMaxesSec[first];
+            if (second < mWindowCount) {
+                count += mCounts[second];
+                sum += mSumsSec[second];
+                max = Math.max(max, mMaxesSec[second]);
+            }
+            mCounts[i] = count;
+            mSumsSec[i] = sum;
+            mMaxesSec[i] = max;
+        }
+        for (int i = newCount; i < MAX_WINDOW_COUNT; i++) {
+            mCounts[i] = 0;
+            mSumsSec[i] = 0.0;
+            mMaxesSec[i] = 0.0f;
+        }
+        mWindowCount = newCount;
+        mWindowSec *= 2;
+    }
+
+    public float getWindowSec() { return mWindowSec; }
+
+    public int getWindowCount() { return mWindowCount; }
+
+    public long getCount(int window) { return mCounts[window]; }
+
+    public float getMaxSec(int window) { return mMaxesSec[window]; }
+
+    /** Mean latency of a window, 0 if no inference started in it. */
+    public float getMeanSec(int window) {
+        return mCounts[window] == 0 ? 0.0f : (float) (mSumsSec[window] / mCounts[window]);
+    }
+
+    /** Mean latency over the windows [from, to). */
+    private float getMeanSec(int from, int to) {
+        long count = 0;
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            count += mCounts[i];
+            sum += mSumsSec[i];
+        }
+        return count == 0 ? 0.0f : (float) (sum / count);
+    }
+
+    /** Mean latency of the first window, before any throttling. */
+    public float getInitialLatencySec() {
+        return mWindowCount == 0 ? 0.0f : getMeanSec(0);
+    }
+
+    /** Mean latency over the last STEADY_STATE_FRACTION of the run. */
+    public float getSteadyStateLatencySec() {
+        int windows = Math.max(1, Math.round(mWindowCount * STEADY_STATE_FRACTION));
+        return getMeanSec(Math.max(0, mWindowCount - windows), mWindowCount);
+    }
+
+    /** Steady-state latency relative to the initial one, > 1 when the run slowed down. */
+    public float getDegradationRatio() {
+        float initial = getInitialLatencySec();
+        return initial > 0.0f ? getSteadyStateLatencySec() / initial : 0.0f;
+    }
+
+    /**
+     * Start of the first THROTTLE_MIN_WINDOWS consecutive windows that are all more than
+     * THROTTLE_THRESHOLD slower than the initial latency, or -1 if the run never slowed down.
+     * The resolution is the window duration, which grows for long runs.
+     */
+    public float getTimeToThrottleSec() {
+        float limit = getInitialLatencySec() * (1.0f + THROTTLE_THRESHOLD);
+        int slowWindows = 0;
+        int firstSlowWindow = 0;
+        for (int i = 1; i < mWindowCount; i++) {
+            if (mCounts[i] == 0) {
+                // No inference started in this window, e.g. a single very slow one.
+                continue;
+            }
+            if (getMeanSec(i) <= limit) {
+                slowWindows = 0;
+                continue;
+            }
+            if (slowWindows == 0) {
+                firstSlowWindow = i;
+            }
+            if (++slowWindows == THROTTLE_MIN_WINDOWS) {
+                return firstSlowWindow * mWindowSec;
+            }
+        }
+        return -1.0f;
+    }
+
+    public void putToBundle(Bundle results, String prefix) {
+        // Reported in ms, time to throttle in seconds
+        results.putFloat(prefix + "_time_to_throttle_sec", getTimeToThrottleSec());
+        results.putFloat(prefix + "_initial_avg", getInitialLatencySec() * 1000.0f);
+        results.putFloat(prefix + "_steady_state_avg", getSteadyStateLatencySec() * 1000.0f);
+        results.putFloat(prefix + "_degradation_ratio", getDegradationRatio());
+    }
+
+    public void writeToParcel(Parcel dest) {
+        dest.writeFloat(mWindowSec);
+        dest.writeInt(mWindowCount);
+        for (int i = 0; i < mWindowCount; i++) {
+            dest.writeLong(mCounts[i]);
+            dest.writeDouble(mSumsSec[i]);
+            dest.writeFloat(mMaxesSec[i]);
+        }
+    }
+
+    public static LatencyTimeSeries readFromParcel(Parcel in) {
+        LatencyTimeSeries result = new LatencyTimeSeries();
+        result.mWindowSec = in.readFloat();
+        result.mWindowCount = in.readInt();
+        for (int i = 0; i < result.mWindowCount; i++) {
+            result.mCounts[i] = in.readLong();
+            result.mSumsSec[i] = in.readDouble();
+            result.mMaxesSec[i] = in.readFloat();
+        }
+        return result;
+    }
+
+    /**
+     * Appends timeToThrottleSec,steadyStateLatencySec,degradationRatio,windowSec,windowCount,
+     * windowCount1,windowMeanSec1,windowMaxSec1,... to a CSV line.
+     */
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(String.join(",",
+            String.valueOf(getTimeToThrottleSec()),
+            String.valueOf(getSteadyStateLatencySec()),
+            String.valueOf(getDegradationRatio()),
+            String.valueOf(mWindowSec),
+            String.valueOf(mWindowCount)));
+        for (int i = 0; i < mWindowCount; i++) {
+            sb.append(',').append(mCounts[i])
+                    .append(',').append(getMeanSec(i))
+                    .append(',').append(mMaxesSec[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyTimeSeries{"
+                + "mWindowSec=" + mWindowSec
+                + ", mWindowCount=" + mWindowCount
+                + ", getTimeToThrottleSec()=" + getTimeToThrottleSec()
+                + ", getInitialLatencySec()=" + getInitialLatencySec()
+                + ", getSteadyStateLatencySec()=" + getSteadyStateLatencySec()
+                + ", getDegradationRatio()=" + getDegradationRatio() + "}";
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of model assets copied to files, for the models that can't be loaded
+ * directly from the APK because they are stored compressed.
+ *
+ * Each asset is copied only once, however many threads and tests use it, into a file named
+ * after the hash of its content. Entries are reference counted through {@link Handle}s, and
+ * the file is deleted once the last handle is closed.
+ */
+public final class ModelStagingCache {
+    private static final String TAG = NNTestBase.TAG;
+
+    public static final String DIRECTORY_NAME = "staged_models";
+    private static final String MODEL_FILE_SUFFIX = ".tflite";
+
+    private static final ModelStagingCache sInstance = new ModelStagingCache();
+
+    private static final class Entry {
+        final String mAssetName;
+        int mReferenceCount;
+        // Set once copied, mStagingFailure is set instead if the copy failed.
+        File mFile;
+        IOException mStagingFailure;
+
+        Entry(String assetName) {
+            mAssetName = assetName;
+        }
+    }
+
+    /** Reference to a staged model, keeps its file from being deleted until closed. */
+    public final class Handle implements AutoCloseable {
+        private Entry mEntry;
+
+        private Handle(Entry entry) {
+            mEntry = entry;
+        }
+
+        public File getFile() {
+            if (mEntry == null) {
+                throw new IllegalStateException("Handle already closed");
+            }
+            return mEntry.mFile;
+        }
+
+        @Override
+        public void close() {
+            if (mEntry != null) {
+                release(mEntry);
+                mEntry = null;
+            }
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    ModelStagingCache() {}
+
+    public static ModelStagingCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a handle on a file with the content of the asset, copying it if needed. The
+     * handle must be closed once the file is no longer used.
+     */
+    public Handle acquire(Context context, String assetName) throws IOException {
+        Entry entry;
+        boolean stage = false;
+        synchronized (this) {
+            entry = mEntries.get(assetName);
+            if (entry == null) {
+                entry = new Entry(assetName);
+                mEntries.put(assetName, entry);
+                stage = true;
+            }
+            entry.mReferenceCount++;
+        }
+
+        if (stage) {
+            File temporaryFile = null;
+            File file = null;
+            IOException failure = null;
+            try {
+                temporaryFile = createTemporaryFile(context);
+                file = copy(context, assetName, temporaryFile);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Failed to stage " + assetName, e);
+            }
+            synchronized (this) {
+                // Renamed under the lock, so that release() never deletes the file of an asset
+                // with the same content between the rename and the entry update.
+                if (failure == null && !temporaryFile.renameTo(file)) {
+                    failure = new IOException("Failed to stage " + assetName + " to " + file);
+                }
+                if (failure != null) {
+                    entry.mStagingFailure = failure;
+                    mEntries.remove(assetName);
+                } else {
+                    Log.d(TAG, String.format("Staged model asset %s to %s", assetName, file));
+                    entry.mFile = file;
+                }
+                notifyAll();
+            }
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+        } else {
+            synchronized (this) {
+                while (entry.mFile == null && entry.mStagingFailure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        entry.mReferenceCount--;
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while staging " + assetName, e);
+                    }
+                }
+            }
+        }
+
+        if (entry.mStagingFailure != null) {
+            throw entry.mStagingFailure;
+        }
+        return new Handle(entry);
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.mReferenceCount--;
+        if (entry.mReferenceCount > 0 || mEntries.get(entry.mAssetName) != entry) {
+            return;
+        }
+        mEntries.remove(entry.mAssetName);
+        // Assets with the same content share the file.
+        for (Entry other : mEntries.values()) {
+            if (entry.mFile.equals(other.mFile)) {
+                return;
+            }
+        }
+        if (!entry.mFile.delete()) {
+            Log.w(TAG, "Failed to delete staged model " + entry.mFile);
+        }
+    }
+
+    private static File createTemporaryFile(Context context) throws IOException {
+        File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create model staging directory " + directory);
+        }
+        return File.createTempFile("staging", ".tmp", directory);
+    }
+
+    // Copies the asset to the temporary file, returns the file it must be renamed to.
+    private static File copy(Context context, String assetName, File temporaryFile)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        // Hashed while copied, so the name is only known once the copy is complete.
+        try (InputStream in = new DigestInputStream(
+                context.getAssets().open(assetName), digest);
+             FileOutputStream out = new FileOutputStream(temporaryFile)) {
+            byte[] buffer = new byte[64 * 1024];
+            int readBytes;
+            while ((readBytes = in.read(buffer)) != -1) {
+                out.write(buffer, 0, readBytes);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        // Replacing a file with the same content doesn't affect the models loaded from it.
+        return new File(temporaryFile.getParentFile(), hex + MODEL_FILE_SUFFIX);
+    }
+}
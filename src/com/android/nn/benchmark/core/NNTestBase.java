@@ -18,6 +18,7 @@ package com.android.nn.benchmark.core;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.os.Build;
 import android.util.Log;
@@ -25,6 +26,7 @@ import android.util.Pair;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,7 +34,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.Random;
 import java.util.stream.Collectors;
 
 public class NNTestBase implements AutoCloseable {
@@ -63,16 +64,49 @@ public class NNTestBase implements AutoCloseable {
             boolean mmapModel,
             String nnApiCacheDir) throws NnApiDelegationFailure;
 
+    private synchronized native long initModelFromFd(
+            String modelName,
+            int modelFd,
+            long modelOffset,
+            long modelLength,
+            int tfliteBackend,
+            boolean enableIntermediateTensorsDump,
+            String nnApiDeviceName,
+            boolean mmapModel,
+            String nnApiCacheDir) throws NnApiDelegationFailure;
+
     private synchronized native void destroyModel(long modelHandle);
 
-    private synchronized native boolean resizeInputTensors(long modelHandle, int[] inputShape);
+    private synchronized native boolean resizeInputTensors(long modelHandle, int[] inputShape,
+            int batchSize);
+
+    private synchronized native InferenceResultBatch runBenchmark(long modelHandle,
+            List<InferenceInOutSequence> inOutList,
+            int inferencesSeqMaxCount,
+            float timeoutSec,
+            int flags,
+            DatasetInputPrefetcher inputPrefetcher);
+
+    /** Receives the results of a benchmark run in chunks, see runBenchmarkInChunks. */
+    public interface InferenceResultBatchConsumer {
+        void accept(InferenceResultBatch results);
+    }
+
+    private synchronized native boolean runBenchmarkInChunks(long modelHandle,
+            List<InferenceInOutSequence> inOutList,
+            int inferencesSeqMaxCount,
+            float timeoutSec,
+            int flags,
+            DatasetInputPrefetcher inputPrefetcher,
+            int chunkSize,
+            InferenceResultBatchConsumer consumer);
 
-    private synchronized native boolean runBenchmark(long modelHandle,
+    private synchronized native StreamingInferenceResult runBenchmarkStreaming(long modelHandle,
             List<InferenceInOutSequence> inOutList,
-            List<InferenceResult> resultList,
             int inferencesSeqMaxCount,
             float timeoutSec,
-            int flags);
+            int flags,
+            DatasetInputPrefetcher inputPrefetcher);
 
     private synchronized native CompilationBenchmarkResult runCompilationBenchmark(
             long modelHandle, int maxNumIterations, float warmupTimeoutSec, float runTimeoutSec);
@@ -109,6 +143,18 @@ public class NNTestBase implements AutoCloseable {
     /** Collect only 1 benchmark result every 10 **/
     public static final int FLAG_SAMPLE_BENCHMARK_RESULTS = 1 << 2;
 
+    /**
+     * Accumulate latency and error statistics natively instead of returning one result per
+     * inference. Set by {@link #runBenchmarkStreaming}, inference outputs are discarded.
+     */
+    public static final int FLAG_STREAM_BENCHMARK_RESULTS = 1 << 3;
+
+    /**
+     * Minimum number of inferences handed over to an incremental evaluator at once. Results
+     * are only handed over between inference sequences, so a chunk can be larger.
+     */
+    public static final int EVALUATION_CHUNK_SIZE = 64;
+
     protected Context mContext;
     protected TextView mText;
     private final String mModelName;
@@ -125,9 +171,16 @@ public class NNTestBase implements AutoCloseable {
     private final int mMinSdkVersion;
     private Optional<String> mNNApiDeviceName = Optional.empty();
     private boolean mMmapModel = false;
-    // Path where the current model has been stored for execution
-    private String mTemporaryModelFilePath;
+    // File the current model has been copied to, if it couldn't be loaded from the APK
+    private ModelStagingCache.Handle mStagedModel;
+    private long mModelSizeBytes;
     private boolean mSampleResults;
+    private boolean mPipelinedEvaluation = false;
+    private int mInputPrefetchThreadCount = DatasetInputPrefetcher.DEFAULT_THREAD_COUNT;
+    private int mMaterializedDatasetSize = 0;
+    private int mBatchSize = 1;
+    // Null until the inputs/outputs are first used.
+    private List<InferenceInOutSequenceCache.Handle> mInputOutputHandles;
 
     public NNTestBase(String modelName, String modelFile, int[] inputShape,
             InferenceInOutSequence.FromAssets[] inputOutputAssets,
@@ -182,19 +235,38 @@ public class NNTestBase implements AutoCloseable {
 
     public final boolean setupModel(Context ipcxt) throws IOException, NnApiDelegationFailure {
         mContext = ipcxt;
-        if (mTemporaryModelFilePath != null) {
-            deleteOrWarn(mTemporaryModelFilePath);
-        }
-        mTemporaryModelFilePath = copyAssetToFile();
+        releaseStagedModel();
         String nnApiCacheDir = mContext.getCodeCacheDir().toString();
-        mModelHandle = initModel(
-                mTemporaryModelFilePath, mTfLiteBackend.ordinal(), mEnableIntermediateTensorsDump,
-                mNNApiDeviceName.orElse(null), mMmapModel, nnApiCacheDir);
+        String modelAssetName = mModelFile + ".tflite";
+        AssetFileDescriptor modelFd = openUncompressedAsset(modelAssetName);
+        if (modelFd != null) {
+            // The native code maps or reads the model before returning, the fd can be closed.
+            try (AssetFileDescriptor fd = modelFd) {
+                mModelSizeBytes = fd.getLength();
+                mModelHandle = initModelFromFd(
+                        mModelFile, fd.getParcelFileDescriptor().getFd(), fd.getStartOffset(),
+                        fd.getLength(), mTfLiteBackend.ordinal(),
+                        mEnableIntermediateTensorsDump, mNNApiDeviceName.orElse(null),
+                        mMmapModel, nnApiCacheDir);
+            }
+        } else {
+            mStagedModel = ModelStagingCache.getInstance().acquire(mContext, modelAssetName);
+            mModelSizeBytes = mStagedModel.getFile().length();
+            mModelHandle = initModel(
+                    mStagedModel.getFile().getAbsolutePath(), mTfLiteBackend.ordinal(),
+                    mEnableIntermediateTensorsDump, mNNApiDeviceName.orElse(null), mMmapModel,
+                    nnApiCacheDir);
+        }
         if (mModelHandle == 0) {
             Log.e(TAG, "Failed to init the model");
             return false;
         }
-        if (!resizeInputTensors(mModelHandle, mInputShape)) {
+        if (mBatchSize > 1 && hasMultiStepSequences()) {
+            Log.e(TAG, String.format("Cannot run %s with batch size %d, its inputs are "
+                    + "multi-step sequences", mModelName, mBatchSize));
+            return false;
+        }
+        if (!resizeInputTensors(mModelHandle, getBatchInputShape(mBatchSize), mBatchSize)) {
             return false;
         }
 
@@ -208,6 +280,11 @@ public class NNTestBase implements AutoCloseable {
         return mModelName;
     }
 
+    /** Size of the model file last set up, an estimate of the memory used by the model. */
+    public long getModelSizeBytes() {
+        return mModelSizeBytes;
+    }
+
     public EvaluatorInterface getEvaluator() {
         return mEvaluator;
     }
@@ -219,19 +296,12 @@ public class NNTestBase implements AutoCloseable {
         }
     }
 
-    private void deleteOrWarn(String path) {
-        if (!new File(path).delete()) {
-            Log.w(TAG, String.format(
-                    "Unable to delete file '%s'. This might cause device to run out of space.",
-                    path));
-        }
-    }
-
 
-    private List<InferenceInOutSequence> getInputOutputAssets() throws IOException {
-        // TODO: Caching, don't read inputs for every inference
-        List<InferenceInOutSequence> inOutList =
-                getInputOutputAssets(mContext, mInputOutputAssets, mInputOutputDatasets);
+    public List<InferenceInOutSequence> getInputOutputAssets() throws IOException {
+        List<InferenceInOutSequence> inOutList = new ArrayList<>();
+        for (InferenceInOutSequenceCache.Handle handle : acquireInputOutputAssets()) {
+            inOutList.addAll(handle.get());
+        }
 
         Boolean lastGolden = null;
         for (InferenceInOutSequence sequence : inOutList) {
@@ -248,10 +318,68 @@ public class NNTestBase implements AutoCloseable {
         return inOutList;
     }
 
+    // The assets are read once per process and shared with the other tests, they are
+    // released when the test is destroyed.
+    private List<InferenceInOutSequenceCache.Handle> acquireInputOutputAssets()
+            throws IOException {
+        if (mInputOutputHandles != null) {
+            return mInputOutputHandles;
+        }
+        final AssetManager assetManager = mContext.getAssets();
+        final File cacheDir = mContext.getCacheDir();
+        final int materializedDatasetSize = mMaterializedDatasetSize;
+        InferenceInOutSequenceCache cache = InferenceInOutSequenceCache.getInstance();
+        List<InferenceInOutSequenceCache.Handle> handles = new ArrayList<>();
+        try {
+            if (mInputOutputAssets != null) {
+                for (InferenceInOutSequence.FromAssets ioAsset : mInputOutputAssets) {
+                    handles.add(cache.acquire(ioAsset.getCacheKey(),
+                            () -> Collections.singletonList(ioAsset.readAssets(assetManager))));
+                }
+            }
+            if (mInputOutputDatasets != null) {
+                for (InferenceInOutSequence.FromDataset dataset : mInputOutputDatasets) {
+                    handles.add(cache.acquire(dataset.getCacheKey(materializedDatasetSize),
+                            () -> materializedDatasetSize > 0
+                                    ? dataset.readDataset(assetManager, cacheDir,
+                                            materializedDatasetSize)
+                                    : dataset.readDataset(assetManager, cacheDir)));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (InferenceInOutSequenceCache.Handle handle : handles) {
+                handle.close();
+            }
+            throw e;
+        }
+        mInputOutputHandles = handles;
+        return handles;
+    }
+
+    private void releaseInputOutputAssets() {
+        if (mInputOutputHandles != null) {
+            for (InferenceInOutSequenceCache.Handle handle : mInputOutputHandles) {
+                handle.close();
+            }
+            mInputOutputHandles = null;
+        }
+    }
+
     public static List<InferenceInOutSequence> getInputOutputAssets(Context context,
             InferenceInOutSequence.FromAssets[] inputOutputAssets,
             InferenceInOutSequence.FromDataset[] inputOutputDatasets) throws IOException {
-        // TODO: Caching, don't read inputs for every inference
+        return getInputOutputAssets(context, inputOutputAssets, inputOutputDatasets, 0);
+    }
+
+    /**
+     * @param materializedDatasetSize if not 0, only this number of images of each dataset
+     *     is used, and their inputs are preprocessed in parallel before returning.
+     */
+    public static List<InferenceInOutSequence> getInputOutputAssets(Context context,
+            InferenceInOutSequence.FromAssets[] inputOutputAssets,
+            InferenceInOutSequence.FromDataset[] inputOutputDatasets,
+            int materializedDatasetSize) throws IOException {
+        // Not cached, see getInputOutputAssets() for the cached inputs/outputs of a test.
         List<InferenceInOutSequence> inOutList = new ArrayList<>();
         if (inputOutputAssets != null) {
             for (InferenceInOutSequence.FromAssets ioAsset : inputOutputAssets) {
@@ -260,7 +388,13 @@ public class NNTestBase implements AutoCloseable {
         }
         if (inputOutputDatasets != null) {
             for (InferenceInOutSequence.FromDataset dataset : inputOutputDatasets) {
-                inOutList.addAll(dataset.readDataset(context.getAssets(), context.getCacheDir()));
+                if (materializedDatasetSize > 0) {
+                    inOutList.addAll(dataset.readDataset(context.getAssets(),
+                            context.getCacheDir(), materializedDatasetSize));
+                } else {
+                    inOutList.addAll(dataset.readDataset(context.getAssets(),
+                            context.getCacheDir()));
+                }
             }
         }
 
@@ -291,33 +425,60 @@ public class NNTestBase implements AutoCloseable {
             throw new IllegalStateException("mEnableIntermediateTensorsDump is " +
                     "set to false, impossible to proceed");
         }
+        if (mBatchSize != 1) {
+            throw new IllegalStateException("Layers can't be dumped in batch mode");
+        }
 
         List<InferenceInOutSequence> ios = getInputOutputAssets();
         dumpAllLayers(mModelHandle, dumpDir.toString(),
                 ios.subList(inputAssetIndex, inputAssetSize));
     }
 
-    public Pair<List<InferenceInOutSequence>, List<InferenceResult>> runInferenceOnce()
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runInferenceOnce()
             throws IOException, BenchmarkException {
         List<InferenceInOutSequence> ios = getInputOutputAssets();
         int flags = getDefaultFlags();
-        Pair<List<InferenceInOutSequence>, List<InferenceResult>> output =
+        Pair<List<InferenceInOutSequence>, InferenceResultBatch> output =
                 runBenchmark(ios, 1, Float.MAX_VALUE, flags);
         return output;
     }
 
-    public Pair<List<InferenceInOutSequence>, List<InferenceResult>> runBenchmark(float timeoutSec)
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmark(float timeoutSec)
             throws IOException, BenchmarkException {
         // Run as many as possible before timeout.
         int flags = getDefaultFlags();
         return runBenchmark(getInputOutputAssets(), 0xFFFFFFF, timeoutSec, flags);
     }
 
+    /**
+     * Same as {@link #runBenchmark(float)}, the results are evaluated by the evaluator while
+     * the benchmark runs instead of being returned with their outputs.
+     */
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmark(
+            float timeoutSec, IncrementalEvaluatorInterface evaluator)
+            throws IOException, BenchmarkException {
+        List<InferenceInOutSequence> ios = getInputOutputAssets();
+        evaluator.begin(ios);
+        return runBenchmark(ios, 0xFFFFFFF, timeoutSec, getDefaultFlags(), evaluator);
+    }
+
     /** Run through whole input set (once or multiple times). */
-    public Pair<List<InferenceInOutSequence>, List<InferenceResult>> runBenchmarkCompleteInputSet(
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmarkCompleteInputSet(
             int minInferences,
             float timeoutSec)
             throws IOException, BenchmarkException {
+        return runBenchmarkCompleteInputSet(minInferences, timeoutSec, null);
+    }
+
+    /**
+     * Same as {@link #runBenchmarkCompleteInputSet(int, float)}, the results are evaluated
+     * by the evaluator while the benchmark runs if it is not null.
+     */
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmarkCompleteInputSet(
+            int minInferences,
+            float timeoutSec,
+            IncrementalEvaluatorInterface evaluator)
+            throws IOException, BenchmarkException {
         int flags = getDefaultFlags();
         List<InferenceInOutSequence> ios = getInputOutputAssets();
         int setInferences = 0;
@@ -328,9 +489,14 @@ public class NNTestBase implements AutoCloseable {
         int totalSequenceInferencesCount = ios.size() * setRepeat;
         int expectedResults = setInferences * setRepeat;
 
-        Pair<List<InferenceInOutSequence>, List<InferenceResult>> result =
-                runBenchmark(ios, totalSequenceInferencesCount, timeoutSec,
-                        flags);
+        Pair<List<InferenceInOutSequence>, InferenceResultBatch> result;
+        if (evaluator != null) {
+            evaluator.begin(ios);
+            result = runBenchmark(ios, totalSequenceInferencesCount, timeoutSec, flags,
+                    evaluator);
+        } else {
+            result = runBenchmark(ios, totalSequenceInferencesCount, timeoutSec, flags);
+        }
         if (result.second.size() != expectedResults) {
             // We reached a timeout or failed to evaluate whole set for other reason, abort.
             @SuppressLint("DefaultLocale")
@@ -344,22 +510,166 @@ public class NNTestBase implements AutoCloseable {
         return result;
     }
 
-    public Pair<List<InferenceInOutSequence>, List<InferenceResult>> runBenchmark(
+    // Returns the list starting at startSequence, then wrapping around to the first sequences.
+    private static List<InferenceInOutSequence> rotate(List<InferenceInOutSequence> inOutList,
+            int startSequence) {
+        if (startSequence == 0) {
+            return inOutList;
+        }
+        if (startSequence < 0 || startSequence >= inOutList.size()) {
+            throw new IllegalArgumentException("Invalid start sequence " + startSequence);
+        }
+        List<InferenceInOutSequence> result = new ArrayList<>(inOutList.size());
+        result.addAll(inOutList.subList(startSequence, inOutList.size()));
+        result.addAll(inOutList.subList(0, startSequence));
+        return result;
+    }
+
+    // Returns null if the inputs are not created on demand, or if there is nothing to
+    // prefetch for.
+    private DatasetInputPrefetcher createInputPrefetcher(
+            List<InferenceInOutSequence> inOutList, int inferencesSeqMaxCount) {
+        if (mInputPrefetchThreadCount == 0 || inferencesSeqMaxCount <= 1
+                || !DatasetInputPrefetcher.hasInputCreators(inOutList)) {
+            return null;
+        }
+        return new DatasetInputPrefetcher(inOutList, mInputPrefetchThreadCount);
+    }
+
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmark(
             List<InferenceInOutSequence> inOutList,
             int inferencesSeqMaxCount,
             float timeoutSec,
             int flags)
             throws IOException, BenchmarkException {
+        return runBenchmark(inOutList, 0, inferencesSeqMaxCount, timeoutSec, flags);
+    }
+
+    /**
+     * Same as {@link #runBenchmark(List, int, float, int)}, the sequences are run from
+     * startSequence instead of the first one, so that consecutive short runs can walk the
+     * whole list. The sequence indices of the results refer to inOutList.
+     */
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmark(
+            List<InferenceInOutSequence> inOutList,
+            int startSequence,
+            int inferencesSeqMaxCount,
+            float timeoutSec,
+            int flags)
+            throws IOException, BenchmarkException {
         if (mModelHandle == 0) {
             throw new UnsupportedModelException("Unsupported model");
         }
-        List<InferenceResult> resultList = new ArrayList<>();
-        if (!runBenchmark(mModelHandle, inOutList, resultList, inferencesSeqMaxCount,
-                timeoutSec, flags)) {
+        List<InferenceInOutSequence> rotatedList = rotate(inOutList, startSequence);
+        InferenceResultBatch results;
+        try (DatasetInputPrefetcher inputPrefetcher =
+                     createInputPrefetcher(rotatedList, inferencesSeqMaxCount)) {
+            results = runBenchmark(mModelHandle, rotatedList, inferencesSeqMaxCount,
+                    timeoutSec, flags, inputPrefetcher);
+        }
+        if (results == null) {
             throw new BenchmarkException("Failed to run benchmark");
         }
-        return new Pair<List<InferenceInOutSequence>, List<InferenceResult>>(
-                inOutList, resultList);
+        results.rotateSequenceIndices(startSequence, inOutList.size());
+        return new Pair<List<InferenceInOutSequence>, InferenceResultBatch>(
+                inOutList, results);
+    }
+
+    /**
+     * Runs the benchmark, handing the results to the evaluator in chunks of about
+     * EVALUATION_CHUNK_SIZE inferences. The inference outputs are dropped once evaluated, so
+     * the memory used by outputs no longer grows with the run duration. The evaluator must
+     * have been begun on inOutList.
+     *
+     * @return the results of all the inferences, without their outputs
+     */
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmark(
+            List<InferenceInOutSequence> inOutList,
+            int inferencesSeqMaxCount,
+            float timeoutSec,
+            int flags,
+            IncrementalEvaluatorInterface evaluator)
+            throws IOException, BenchmarkException {
+        return runBenchmark(inOutList, 0, inferencesSeqMaxCount, timeoutSec, flags, evaluator);
+    }
+
+    /**
+     * Same as {@link #runBenchmark(List, int, float, int, IncrementalEvaluatorInterface)},
+     * from startSequence, see {@link #runBenchmark(List, int, int, float, int)}.
+     */
+    public Pair<List<InferenceInOutSequence>, InferenceResultBatch> runBenchmark(
+            List<InferenceInOutSequence> inOutList,
+            int startSequence,
+            int inferencesSeqMaxCount,
+            float timeoutSec,
+            int flags,
+            IncrementalEvaluatorInterface evaluator)
+            throws IOException, BenchmarkException {
+        if (mModelHandle == 0) {
+            throw new UnsupportedModelException("Unsupported model");
+        }
+        List<InferenceInOutSequence> rotatedList = rotate(inOutList, startSequence);
+        List<InferenceResultBatch> chunks = new ArrayList<>();
+        boolean success;
+        try (DatasetInputPrefetcher inputPrefetcher =
+                     createInputPrefetcher(rotatedList, inferencesSeqMaxCount)) {
+            if (mPipelinedEvaluation) {
+                try (EvaluationPipeline pipeline = new EvaluationPipeline(evaluator)) {
+                    success = runBenchmarkInChunks(mModelHandle, rotatedList,
+                            inferencesSeqMaxCount, timeoutSec,
+                            flags & ~FLAG_DISCARD_INFERENCE_OUTPUT, inputPrefetcher,
+                            EVALUATION_CHUNK_SIZE,
+                            chunk -> {
+                                // The evaluator was begun on inOutList.
+                                chunk.rotateSequenceIndices(startSequence, inOutList.size());
+                                pipeline.submit(chunk);
+                                chunks.add(chunk);
+                            });
+                    pipeline.finish();
+                }
+            } else {
+                success = runBenchmarkInChunks(mModelHandle, rotatedList,
+                        inferencesSeqMaxCount, timeoutSec,
+                        flags & ~FLAG_DISCARD_INFERENCE_OUTPUT, inputPrefetcher,
+                        EVALUATION_CHUNK_SIZE,
+                        chunk -> {
+                            chunk.rotateSequenceIndices(startSequence, inOutList.size());
+                            for (int i = 0; i < chunk.size(); i++) {
+                                evaluator.accept(chunk, i);
+                            }
+                            chunk.mInferenceOutputs = null;
+                            chunks.add(chunk);
+                        });
+            }
+        }
+        if (!success) {
+            throw new BenchmarkException("Failed to run benchmark");
+        }
+        return new Pair<List<InferenceInOutSequence>, InferenceResultBatch>(
+                inOutList, InferenceResultBatch.concat(chunks));
+    }
+
+    /**
+     * Run as many inferences as possible before timeout, keeping only a constant-memory
+     * summary of the results. Suitable for multi-hour runs, no evaluator can be used.
+     */
+    public Pair<List<InferenceInOutSequence>, StreamingInferenceResult> runBenchmarkStreaming(
+            float timeoutSec) throws IOException, BenchmarkException {
+        if (mModelHandle == 0) {
+            throw new UnsupportedModelException("Unsupported model");
+        }
+        List<InferenceInOutSequence> inOutList = getInputOutputAssets();
+        int flags = getDefaultFlags() | FLAG_DISCARD_INFERENCE_OUTPUT;
+        StreamingInferenceResult result;
+        try (DatasetInputPrefetcher inputPrefetcher =
+                     createInputPrefetcher(inOutList, 0xFFFFFFF)) {
+            result = runBenchmarkStreaming(mModelHandle, inOutList, 0xFFFFFFF, timeoutSec,
+                    flags, inputPrefetcher);
+        }
+        if (result == null) {
+            throw new BenchmarkException("Failed to run streaming benchmark");
+        }
+        return new Pair<>(inOutList, result);
     }
 
     public CompilationBenchmarkResult runCompilationBenchmark(float warmupTimeoutSec,
@@ -376,28 +686,35 @@ public class NNTestBase implements AutoCloseable {
     }
 
     public void destroy() {
+        releaseInputOutputAssets();
         if (mModelHandle != 0) {
             destroyModel(mModelHandle);
             mModelHandle = 0;
         }
-        if (mTemporaryModelFilePath != null) {
-            deleteOrWarn(mTemporaryModelFilePath);
-            mTemporaryModelFilePath = null;
-        }
+        releaseStagedModel();
     }
 
-    private final Random mRandom = new Random(System.currentTimeMillis());
-
-    // We need to copy it to cache dir, so that TFlite can load it directly.
-    private String copyAssetToFile() throws IOException {
-        @SuppressLint("DefaultLocale")
-        String outFileName =
-                String.format("%s/%s-%d-%d.tflite", mContext.getCacheDir().getAbsolutePath(),
-                        mModelFile,
-                        Thread.currentThread().getId(), mRandom.nextInt(10000));
+    private void releaseStagedModel() {
+        if (mStagedModel != null) {
+            mStagedModel.close();
+            mStagedModel = null;
+        }
+    }
 
-        copyAssetToFile(mContext, mModelFile + ".tflite", outFileName);
-        return outFileName;
+    /**
+     * Opens an asset stored uncompressed in the APK, so that TFLite can load it in place.
+     *
+     * @return null if the asset can't be opened this way, it needs to be copied to a file
+     * instead.
+     */
+    private AssetFileDescriptor openUncompressedAsset(String assetName) throws IOException {
+        try {
+            return mContext.getAssets().openFd(assetName);
+        } catch (FileNotFoundException e) {
+            // openFd fails on compressed assets. Missing ones fail when staged.
+            Log.d(TAG, "Model asset " + assetName + " is compressed, staging it to a file");
+            return null;
+        }
     }
 
     public static boolean copyModelToFile(Context context, String modelFileName, File targetFile)
@@ -438,4 +755,90 @@ public class NNTestBase implements AutoCloseable {
     public void setSampleResult(boolean sampleResults) {
         this.mSampleResults = sampleResults;
     }
+
+    /**
+     * Evaluate the results of incremental evaluators on a background thread while the
+     * inferences continue, see {@link EvaluationPipeline}.
+     */
+    public void setPipelinedEvaluation(boolean value) {
+        mPipelinedEvaluation = value;
+    }
+
+    /**
+     * Use only the first value images of each dataset, preprocessed in memory when the inputs
+     * are read instead of during the inferences. 0 uses whole datasets.
+     */
+    public void setMaterializedDatasetSize(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid dataset size " + value);
+        }
+        if (value != mMaterializedDatasetSize) {
+            releaseInputOutputAssets();
+        }
+        mMaterializedDatasetSize = value;
+    }
+
+    /**
+     * Run batchSize inferences per invocation of the model, stacked along the leading dimension
+     * of the input shape. The outputs are split back per inference for the golden output
+     * comparison and the evaluators, and each inference reports the batch latency divided by
+     * batchSize. Every inference is run as an independent example, which would break the
+     * state carried across the steps of a sequence and the sequence evaluators, so models
+     * with multi-step input sequences can only run with batch size 1.
+     *
+     * @return false if the model can't be resized to batchSize or has multi-step input
+     * sequences, the batch size is then unchanged. If the model isn't set up yet, this is
+     * checked by {@link #setupModel}, which then fails.
+     */
+    public boolean setBatchSize(int batchSize) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        if (mModelHandle != 0 && batchSize != mBatchSize) {
+            if (batchSize > 1 && hasMultiStepSequences()) {
+                Log.w(TAG, String.format("Cannot run %s with batch size %d, its inputs are "
+                        + "multi-step sequences", mModelName, batchSize));
+                return false;
+            }
+            if (!resizeInputTensors(mModelHandle, getBatchInputShape(batchSize), batchSize)) {
+                Log.w(TAG, String.format("Cannot run %s with batch size %d", mModelName,
+                        batchSize));
+                resizeInputTensors(mModelHandle, getBatchInputShape(mBatchSize), mBatchSize);
+                return false;
+            }
+        }
+        mBatchSize = batchSize;
+        return true;
+    }
+
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    private boolean hasMultiStepSequences() throws IOException {
+        for (InferenceInOutSequence sequence : getInputOutputAssets()) {
+            if (sequence.size() > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] getBatchInputShape(int batchSize) {
+        int[] shape = mInputShape.clone();
+        shape[0] *= batchSize;
+        return shape;
+    }
+
+    /**
+     * Number of threads creating the dataset inputs ahead of the inferences, see
+     * {@link DatasetInputPrefetcher}. With 0, each input is created on the benchmark thread
+     * just before its inference.
+     */
+    public void setInputPrefetchThreadCount(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid thread count " + value);
+        }
+        mInputPrefetchThreadCount = value;
+    }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator: issues inference requests at a target rate, whether or not the
+ * previous ones completed, into a queue served by a pool of model instances.
+ *
+ * Closed-loop runners only issue a request once the previous one completed, so a slow
+ * inference delays the following requests instead of making them wait, and the measured
+ * latencies hide the queueing delay (coordinated omission). Here each request has an intended
+ * arrival time fixed by the arrival process, and two latencies are recorded per request:
+ * <ul>
+ * <li>the service time, from the moment a worker takes the request to its completion;</li>
+ * <li>the response time, from the intended arrival time to the completion, i.e. the service
+ * time plus the time spent in the queue, or behind a late generator.</li>
+ * </ul>
+ *
+ * Each worker runs one input sequence per request on its own {@link NNTestBase}, the instances
+ * must have been set up, and are not destroyed.
+ */
+public class OpenLoopLoadGenerator {
+    private static final String TAG = NNTestBase.TAG;
+
+    /** Time allowed to the workers to serve the queued requests at the end of a run. */
+    public static final float DEFAULT_DRAIN_TIMEOUT_SEC = 10.0f;
+    private static final float REQUEST_TIMEOUT_SEC = 60.0f;
+    private static final long NO_MORE_REQUESTS = Long.MIN_VALUE;
+
+    /** Distribution of the times between two consecutive requests. */
+    public enum ArrivalProcess {
+        /** Exponentially distributed inter-arrival times, as independent clients would make. */
+        POISSON,
+        /** Requests evenly spaced at 1 / QPS. */
+        CONSTANT,
+    }
+
+    /** Latencies and counts of a run. */
+    public static class Result {
+        private final float mOfferedQps;
+        private final float mDurationSec;
+        private final LatencyHistogram mServiceTime = new LatencyHistogram();
+        private final LatencyHistogram mResponseTime = new LatencyHistogram();
+        private long mIssuedCount;
+        private long mCompletedCount;
+        private long mFailedCount;
+        private long mAbandonedCount;
+        private int mMaxQueueLength;
+        private float mCompletionTimeSec;
+
+        Result(float offeredQps, float durationSec) {
+            mOfferedQps = offeredQps;
+            mDurationSec = durationSec;
+        }
+
+        public float getOfferedQps() { return mOfferedQps; }
+
+        public float getDurationSec() { return mDurationSec; }
+
+        /** Requests completed per second, until the last completion. */
+        public float getAchievedQps() {
+            return mCompletionTimeSec > 0.0f ? mCompletedCount / mCompletionTimeSec : 0.0f;
+        }
+
+        public long getIssuedCount() { return mIssuedCount; }
+
+        public long getCompletedCount() { return mCompletedCount; }
+
+        public long getFailedCount() { return mFailedCount; }
+
+        /** Requests still queued when the drain timeout expired. */
+        public long getAbandonedCount() { return mAbandonedCount; }
+
+        public int getMaxQueueLength() { return mMaxQueueLength; }
+
+        public LatencyHistogram getServiceTime() { return mServiceTime; }
+
+        /**
+         * Response times of the completed requests. The abandoned requests are included with
+         * the time they waited, a lower bound of their response time.
+         */
+        public LatencyHistogram getResponseTime() { return mResponseTime; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "OpenLoopLoad{offered %.1f/s, achieved %.1f/s, issued %d, completed %d, "
+                            + "failed %d, abandoned %d, max queue %d, "
+                            + "service p50/p90/p99 %.3f/%.3f/%.3f ms, "
+                            + "response p50/p90/p99/max %.3f/%.3f/%.3f/%.3f ms}",
+                    mOfferedQps, getAchievedQps(), mIssuedCount, mCompletedCount,
+                    mFailedCount, mAbandonedCount, mMaxQueueLength,
+                    mServiceTime.getValueAtPercentileSec(50) * 1000.0f,
+                    mServiceTime.getValueAtPercentileSec(90) * 1000.0f,
+                    mServiceTime.getValueAtPercentileSec(99) * 1000.0f,
+                    mResponseTime.getValueAtPercentileSec(50) * 1000.0f,
+                    mResponseTime.getValueAtPercentileSec(90) * 1000.0f,
+                    mResponseTime.getValueAtPercentileSec(99) * 1000.0f,
+                    mResponseTime.getMaxSec() * 1000.0f);
+        }
+    }
+
+    // Filled by a single worker, merged into the result once the worker is done.
+    private static class WorkerStats {
+        final LatencyHistogram mServiceTime = new LatencyHistogram();
+        final LatencyHistogram mResponseTime = new LatencyHistogram();
+        long mCompletedCount;
+        long mFailedCount;
+        long mLastCompletionNanos;
+    }
+
+    private final List<NNTestBase> mWorkers;
+    private final float mQps;
+    private final ArrivalProcess mArrivalProcess;
+    private final Random mRandom;
+    private float mDrainTimeoutSec = DEFAULT_DRAIN_TIMEOUT_SEC;
+
+    // Intended arrival times of the queued requests, in System.nanoTime() time.
+    private final LinkedBlockingQueue<Long> mQueue = new LinkedBlockingQueue<>();
+    private volatile boolean mStopping;
+    private volatile Exception mWarmupFailure;
+    private boolean mWarmedUp;
+
+    /**
+     * @param workers set up model instances, one worker thread is run for each of them
+     * @param qps target number of requests issued per second
+     * @param seed seed of the random inter-arrival times, for reproducible runs
+     */
+    public OpenLoopLoadGenerator(List<NNTestBase> workers, float qps,
+            ArrivalProcess arrivalProcess, long seed) {
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException("No worker");
+        }
+        if (!(qps > 0.0f)) {
+            throw new IllegalArgumentException("Invalid QPS " + qps);
+        }
+        mWorkers = new ArrayList<>(workers);
+        mQps = qps;
+        mArrivalProcess = arrivalProcess;
+        mRandom = new Random(seed);
+    }
+
+    public void setDrainTimeoutSec(float drainTimeoutSec) {
+        mDrainTimeoutSec = drainTimeoutSec;
+    }
+
+    /**
+     * Issues requests for durationSec, then waits for the queued ones to be served. Before the
+     * first run, each worker runs one request that is not measured, the first inferences
+     * being slower.
+     *
+     * A generator can be run several times, e.g. for consecutive measurement windows at the
+     * same load, the arrivals continuing the same random sequence.
+     */
+    public synchronized Result run(float durationSec) throws BenchmarkException {
+        mStopping = false;
+        mWarmupFailure = null;
+        final boolean warmup = !mWarmedUp;
+        Result result = new Result(mQps, durationSec);
+        ExecutorService executor = Executors.newFixedThreadPool(mWorkers.size());
+        CountDownLatch warmedUp = new CountDownLatch(mWorkers.size());
+        List<Future<WorkerStats>> workerStats = new ArrayList<>();
+        try {
+            for (NNTestBase worker : mWorkers) {
+                workerStats.add(executor.submit(() -> serve(worker, warmup, warmedUp)));
+            }
+            warmedUp.await();
+            if (mWarmupFailure != null) {
+                BenchmarkException failure = new BenchmarkException(
+                        "Open-loop worker failed: " + mWarmupFailure);
+                failure.initCause(mWarmupFailure);
+                throw failure;
+            }
+            mWarmedUp = true;
+
+            long startNanos = System.nanoTime();
+            long endNanos = startNanos + (long) (durationSec * 1e9);
+            long arrivalNanos = startNanos;
+            while (arrivalNanos < endNanos) {
+                long waitNanos;
+                while ((waitNanos = arrivalNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+                // The intended time is kept if the generator is late, the delay is part of
+                // the response time.
+                mQueue.add(arrivalNanos);
+                result.mIssuedCount++;
+                result.mMaxQueueLength = Math.max(result.mMaxQueueLength, mQueue.size());
+                arrivalNanos += nextInterArrivalNanos();
+            }
+            for (int i = 0; i < mWorkers.size(); i++) {
+                mQueue.add(NO_MORE_REQUESTS);
+            }
+
+            long drainDeadlineNanos = System.nanoTime() + (long) (mDrainTimeoutSec * 1e9);
+            for (Future<WorkerStats> stats : workerStats) {
+                long remainingNanos = Math.max(0, drainDeadlineNanos - System.nanoTime());
+                try {
+                    stats.get(remainingNanos, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    Log.w(TAG, String.format("Requests not served in %.1fs, abandoning %d",
+                            mDrainTimeoutSec, mQueue.size() - mWorkers.size()));
+                    break;
+                } catch (ExecutionException e) {
+                    // Reported below
+                }
+            }
+            mStopping = true;
+            executor.shutdown();
+            // Workers stop after their current request.
+            if (!executor.awaitTermination((long) REQUEST_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                throw new BenchmarkException("Open-loop workers did not stop");
+            }
+
+            long nowNanos = System.nanoTime();
+            for (Long intendedNanos : mQueue) {
+                if (intendedNanos != NO_MORE_REQUESTS) {
+                    result.mResponseTime.recordMicros((nowNanos - intendedNanos) / 1000, 1);
+                    result.mAbandonedCount++;
+                }
+            }
+            long lastCompletionNanos = startNanos;
+            for (Future<WorkerStats> future : workerStats) {
+                WorkerStats stats = getWorkerStats(future);
+                result.mServiceTime.add(stats.mServiceTime);
+                result.mResponseTime.add(stats.mResponseTime);
+                result.mCompletedCount += stats.mCompletedCount;
+                result.mFailedCount += stats.mFailedCount;
+                lastCompletionNanos = Math.max(lastCompletionNanos, stats.mLastCompletionNanos);
+            }
+            result.mCompletionTimeSec = (lastCompletionNanos - startNanos) / 1e9f;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BenchmarkException("Interrupted while generating load");
+        } finally {
+            mStopping = true;
+            mQueue.clear();
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private long nextInterArrivalNanos() {
+        double interArrivalSec;
+        switch (mArrivalProcess) {
+            case POISSON:
+                interArrivalSec = -Math.log(1.0 - mRandom.nextDouble()) / mQps;
+                break;
+            case CONSTANT:
+                interArrivalSec = 1.0 / mQps;
+                break;
+            default:
+                throw new IllegalStateException("Unknown arrival process " + mArrivalProcess);
+        }
+        // At least 1ns so that the schedule always moves forward.
+        return Math.max(1L, (long) (interArrivalSec * 1e9));
+    }
+
+    private WorkerStats serve(NNTestBase worker, boolean warmup, CountDownLatch warmedUp)
+            throws IOException, BenchmarkException, InterruptedException {
+        WorkerStats stats = new WorkerStats();
+        List<InferenceInOutSequence> ios;
+        int flags = worker.getDefaultFlags() | NNTestBase.FLAG_DISCARD_INFERENCE_OUTPUT
+                | NNTestBase.FLAG_IGNORE_GOLDEN_OUTPUT;
+        try {
+            ios = worker.getInputOutputAssets();
+            if (warmup) {
+                worker.runBenchmark(ios.subList(0, 1), 1, REQUEST_TIMEOUT_SEC, flags);
+            }
+        } catch (IOException | BenchmarkException | RuntimeException e) {
+            mWarmupFailure = e;
+            throw e;
+        } finally {
+            warmedUp.countDown();
+        }
+
+        int sequenceIndex = 0;
+        while (!mStopping) {
+            long intendedNanos = mQueue.take();
+            if (intendedNanos == NO_MORE_REQUESTS) {
+                break;
+            }
+            long serviceStartNanos = System.nanoTime();
+            try {
+                worker.runBenchmark(ios.subList(sequenceIndex, sequenceIndex + 1), 1,
+                        REQUEST_TIMEOUT_SEC, flags);
+            } catch (BenchmarkException | IOException e) {
+                Log.w(TAG, "Open-loop request failed", e);
+                stats.mFailedCount++;
+                continue;
+            } finally {
+                sequenceIndex = (sequenceIndex + 1) % ios.size();
+            }
+            long endNanos = System.nanoTime();
+            stats.mServiceTime.recordMicros((endNanos - serviceStartNanos) / 1000, 1);
+            stats.mResponseTime.recordMicros((endNanos - intendedNanos) / 1000, 1);
+            stats.mCompletedCount++;
+            stats.mLastCompletionNanos = endNanos;
+        }
+        return stats;
+    }
+
+    private static WorkerStats getWorkerStats(Future<WorkerStats> stats)
+            throws BenchmarkException, InterruptedException {
+        try {
+            return stats.get();
+        } catch (ExecutionException e) {
+            BenchmarkException failure = new BenchmarkException(
+                    "Open-loop worker failed: " + e.getCause());
+            failure.initCause(e.getCause());
+            throw failure;
+        }
+    }
+}
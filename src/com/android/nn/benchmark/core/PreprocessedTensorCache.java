@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of preprocessed dataset inputs, so that images are decoded and preprocessed
+ * only once per device.
+ *
+ * Each tensor is stored in its own file, named after a hash of everything its content depends
+ * on, and is memory-mapped when read. The cache is best-effort: I/O errors are logged and
+ * treated as misses. When the total size exceeds the budget, the least recently used files
+ * are deleted, using the file modification time as the last access time.
+ */
+public class PreprocessedTensorCache {
+    private static final String TAG = NNTestBase.TAG;
+
+    public static final String DIRECTORY_NAME = "preprocessed_tensors";
+    public static final long DEFAULT_SIZE_BUDGET_BYTES = 1L << 30;
+    /** Fraction of the budget kept after an eviction, so that it doesn't run on every write. */
+    private static final float EVICTION_TARGET_FRACTION = 0.9f;
+    private static final String TENSOR_FILE_SUFFIX = ".tensor";
+    /**
+     * Part of every key, to be incremented when the preprocessing or the file layout change
+     * so that tensors cached by an older version are never read.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    // Shared by all the caches in the process, they may use the same directory.
+    private static final Object sEvictionLock = new Object();
+
+    private final File mDirectory;
+    private final long mSizeBudgetBytes;
+    private long mSizeBytes;
+
+    public PreprocessedTensorCache(File cacheDir, long sizeBudgetBytes) {
+        if (sizeBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size budget " + sizeBudgetBytes);
+        }
+        mDirectory = new File(cacheDir, DIRECTORY_NAME);
+        mSizeBudgetBytes = sizeBudgetBytes;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Failed to create preprocessed tensor cache in " + mDirectory);
+        }
+        for (File file : listTensorFiles()) {
+            mSizeBytes += file.length();
+        }
+    }
+
+    /** Builds a cache key from all the parameters the tensor content depends on. */
+    public static String key(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v").append(FORMAT_VERSION).append(';');
+        for (Object part : parts) {
+            // Length-prefixed, so that different parts never give the same key.
+            String value = String.valueOf(part);
+            sb.append(value.length()).append(':').append(value).append(';');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private File tensorFile(String key) {
+        return new File(mDirectory, key + TENSOR_FILE_SUFFIX);
+    }
+
+    /**
+     * Fills the whole buffer with the cached tensor.
+     *
+     * @return false if the tensor is not cached
+     */
+    public boolean read(String key, ByteBuffer buffer) {
+        File file = tensorFile(key);
+        if (!file.exists()) {
+            return false;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            if (channel.size() != buffer.capacity()) {
+                Log.w(TAG, "Ignoring cached tensor " + file + " of size " + channel.size()
+                        + ", expected " + buffer.capacity());
+                return false;
+            }
+            ByteBuffer destination = buffer.duplicate();
+            destination.clear();
+            destination.put(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read cached tensor " + file, e);
+            return false;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /** Stores the whole buffer, evicting old tensors if the budget is exceeded. */
+    public void write(String key, ByteBuffer buffer) {
+        File file = tensorFile(key);
+        // Written to a temporary file first, so that readers never see a partial tensor. Its
+        // name is unique, other threads and processes may be writing the same tensor.
+        File temporaryFile;
+        try {
+            temporaryFile = File.createTempFile(key, ".tmp", mDirectory);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache tensor " + file, e);
+            return;
+        }
+        try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            FileChannel channel = output.getChannel();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache tensor " + file, e);
+            temporaryFile.delete();
+            return;
+        }
+        // Only the difference is added if the rename replaces a copy of the tensor.
+        long replacedLength = file.length();
+        if (!temporaryFile.renameTo(file)) {
+            Log.w(TAG, "Failed to cache tensor " + file);
+            temporaryFile.delete();
+            return;
+        }
+
+        boolean overBudget;
+        synchronized (this) {
+            mSizeBytes += buffer.capacity() - replacedLength;
+            overBudget = mSizeBytes > mSizeBudgetBytes;
+        }
+        if (overBudget) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        synchronized (sEvictionLock) {
+            File[] files = listTensorFiles();
+            long[] lastAccessTimes = new long[files.length];
+            long sizeBytes = 0;
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastAccessTimes[i] = files[i].lastModified();
+                sizeBytes += files[i].length();
+                order[i] = i;
+            }
+            // Oldest first. Access times are read once, they may change while sorting.
+            Arrays.sort(order, Comparator.comparingLong(i -> lastAccessTimes[i]));
+            long targetSizeBytes = (long) (mSizeBudgetBytes * EVICTION_TARGET_FRACTION);
+            int evictedCount = 0;
+            for (int i = 0; i < files.length && sizeBytes > targetSizeBytes; i++) {
+                File file = files[order[i]];
+                long length = file.length();
+                if (file.delete()) {
+                    sizeBytes -= length;
+                    evictedCount++;
+                }
+            }
+            Log.d(TAG, String.format("Evicted %d preprocessed tensors, %d bytes left",
+                    evictedCount, sizeBytes));
+            synchronized (this) {
+                mSizeBytes = sizeBytes;
+            }
+        }
+    }
+
+    private File[] listTensorFiles() {
+        File[] files = mDirectory.listFiles((dir, name) -> name.endsWith(TENSOR_FILE_SUFFIX));
+        return files != null ? files : new File[0];
+    }
+}
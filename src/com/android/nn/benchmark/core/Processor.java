@@ -19,14 +19,25 @@ package com.android.nn.benchmark.core;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.Log;
 import android.util.Pair;
 
+import com.android.nn.benchmark.util.StatsUtils;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Processor is a helper thread for running the work without blocking the UI thread. */
@@ -48,6 +59,9 @@ public class Processor implements Runnable {
     // You cannot restart a thread, so the completion flag is final
     private final CountDownLatch mCompleted = new CountDownLatch(1);
     private NNTestBase mTest;
+    // Lease of mTest if it comes from mCompiledModelPool.
+    private CompiledModelPool.Lease mTestLease;
+    private TestModels.TestModelEntry mTestModel;
     private int mTestList[];
     private BenchmarkResult mTestResults[];
 
@@ -61,6 +75,17 @@ public class Processor implements Runnable {
     private String mAcceleratorName;
     private boolean mIgnoreUnsupportedModels;
     private boolean mRunModelCompilationOnly;
+    // Keep only a constant-memory summary of the inference results
+    private boolean mStreamResults;
+    private boolean mPipelinedEvaluation;
+    private int mMaterializedDatasetSize;
+    private int mBatchSize = 1;
+    private int[] mSweepBatchSizes;
+    private int mThroughputMaxInstanceCount;
+    private int mSaturationWorkerCount;
+    private float mSaturationP99LimitSec;
+    private float mQuiescenceMaxWaitSeconds = QuiescenceGate.DEFAULT_MAX_WAIT_SEC;
+    private CompiledModelPool mCompiledModelPool;
     // Max number of benchmark iterations to do in run method.
     // Less or equal to 0 means unlimited
     private int mMaxRunIterations;
@@ -70,6 +95,46 @@ public class Processor implements Runnable {
     private float mCompilationBenchmarkRunTimeSeconds;
     private int mCompilationBenchmarkMaxIterations;
 
+    // Duration of each chunk of inferences in adaptive runs.
+    private static final float ADAPTIVE_CHUNK_TIME_SECONDS = 0.25f;
+    // Minimum number of inferences for the normal approximation of the mean to hold.
+    private static final int ADAPTIVE_MIN_INFERENCES = 30;
+    // Minimum number of inferences above a percentile for its interval to be meaningful.
+    private static final int ADAPTIVE_MIN_TAIL_INFERENCES = 10;
+
+    // Offered load of the first saturation step, as a fraction of the closed-loop capacity.
+    private static final float SATURATION_START_LOAD_FRACTION = 0.25f;
+    private static final float SATURATION_LOAD_STEP_FACTOR = 1.25f;
+    private static final int SATURATION_MAX_STEPS = 20;
+    // Each step is held for windows of at least this duration, and long enough for this
+    // number of requests, until two consecutive ones agree.
+    private static final float SATURATION_MIN_WINDOW_SECONDS = 2.0f;
+    private static final int SATURATION_MIN_WINDOW_REQUESTS = 100;
+    private static final int SATURATION_MAX_WINDOWS = 5;
+    private static final float SATURATION_STABLE_QPS_TOLERANCE = 0.05f;
+    private static final float SATURATION_STABLE_P99_TOLERANCE = 0.1f;
+    // Throughput gain below which a step is considered on the plateau.
+    private static final float SATURATION_PLATEAU_MIN_GAIN = 0.05f;
+    private static final long SATURATION_ARRIVAL_SEED = 0x5eedL;
+
+    // Input prefetch threads of each instance added by addInstances, so that the decoders of
+    // concurrent instances don't compete with the inferences being measured.
+    private static final int EXTRA_INSTANCE_PREFETCH_THREAD_COUNT = 1;
+
+    // Maximum wait for the device to be quiet before each model with the "long pause" option.
+    private static final float LONG_PAUSE_MAX_WAIT_SECONDS = 10.0f;
+
+    private boolean mAdaptiveRunLength;
+    private float mAdaptiveTargetRelativeCiWidth;
+    private float mAdaptivePercentile;
+    private float mAdaptiveMaxRunTimeSeconds;
+
+    // Duration of each chunk of inferences in steady-state warmups.
+    private static final float STEADY_STATE_CHUNK_TIME_SECONDS = 0.1f;
+
+    private boolean mSteadyStateWarmup;
+    private float mSteadyStateWarmupMaxTimeSeconds;
+
     public Processor(Context context, Processor.Callback callback, int[] testList) {
         mContext = context;
         mCallback = callback;
@@ -105,6 +170,14 @@ public class Processor implements Runnable {
         mTogglePause = togglePause;
     }
 
+    /**
+     * Maximum time to wait for the device to be quiet before each model, see
+     * {@link QuiescenceGate}. The "long pause" option raises it to 10s.
+     */
+    public void setQuiescenceMaxWaitSeconds(float maxWaitSeconds) {
+        mQuiescenceMaxWaitSeconds = maxWaitSeconds;
+    }
+
     public void setNnApiAcceleratorName(String acceleratorName) {
         mAcceleratorName = acceleratorName;
     }
@@ -117,10 +190,104 @@ public class Processor implements Runnable {
         mRunModelCompilationOnly = value;
     }
 
+    /**
+     * Accumulate the inference statistics natively instead of collecting one result per
+     * inference, for multi-hour runs. Only applies to timed runs of models without evaluator.
+     */
+    public void setStreamResults(boolean value) {
+        mStreamResults = value;
+    }
+
     public void setMmapModel(boolean value) {
         mMmapModel = value;
     }
 
+    /**
+     * Evaluate the accuracy on a low-priority background thread while the inferences run,
+     * instead of between them. Only applies to models with an incremental evaluator.
+     */
+    public void setPipelinedEvaluation(boolean value) {
+        mPipelinedEvaluation = value;
+    }
+
+    /**
+     * Run dataset models on the first datasetSize images only, preprocessed before the run
+     * starts. 0 runs on whole datasets, preprocessing each image before its inference.
+     */
+    public void setMaterializedDatasetSize(int datasetSize) {
+        mMaterializedDatasetSize = datasetSize;
+    }
+
+    /**
+     * Run batchSize inferences per model invocation, see {@link NNTestBase#setBatchSize}.
+     * Latencies are reported per inference, the batch latency is batchSize times larger.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * After each benchmark, run the model again with each of the given batch sizes, with the
+     * same warmup and run times, and report the throughput and batch latency of each in a
+     * {@link BatchSizeSweep}. Batch sizes the model can't run with, see
+     * {@link NNTestBase#setBatchSize}, are skipped. Null disables the sweep.
+     */
+    public void setBatchSizeSweep(int... batchSizes) {
+        if (batchSizes != null) {
+            for (int batchSize : batchSizes) {
+                if (batchSize < 1) {
+                    throw new IllegalArgumentException("Invalid batch size " + batchSize);
+                }
+            }
+        }
+        mSweepBatchSizes = batchSizes;
+    }
+
+    /**
+     * After each benchmark, run 1 to maxInstanceCount independent instances of the model at
+     * the same time, each on its own thread, and report their aggregate throughput and the
+     * latency of each stream in a {@link ThroughputScaling}. The instances share the
+     * inputs/outputs, see {@link InferenceInOutSequenceCache}, and each instance other than
+     * the first creates its inputs on a single prefetch thread, so that the measured
+     * inference threads are not starved by input decoding. 0 disables the measurement.
+     */
+    public void setThroughputScaling(int maxInstanceCount) {
+        if (maxInstanceCount < 0) {
+            throw new IllegalArgumentException("Invalid instance count " + maxInstanceCount);
+        }
+        mThroughputMaxInstanceCount = maxInstanceCount;
+    }
+
+    /**
+     * After each benchmark, search for the load at which the model saturates: requests are
+     * issued at an increasing rate with Poisson arrivals into workerCount instances of the
+     * model, see {@link OpenLoopLoadGenerator}, each step being held until stable. The ramp
+     * stops when the throughput plateaus or the p99 response time goes over p99LimitSec, and
+     * the curve is reported in a {@link SaturationCurve}. 0 workers disables the search.
+     */
+    public void setSaturationSearch(int workerCount, float p99LimitSec) {
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("Invalid worker count " + workerCount);
+        }
+        if (workerCount > 0 && !(p99LimitSec > 0.f)) {
+            throw new IllegalArgumentException("Invalid p99 limit " + p99LimitSec);
+        }
+        mSaturationWorkerCount = workerCount;
+        mSaturationP99LimitSec = p99LimitSec;
+    }
+
+    /**
+     * Lease the models from the pool instead of compiling them each time the model changes,
+     * and return them to the pool afterwards. Not used when running model compilation only.
+     * Null compiles each model every time.
+     */
+    public void setCompiledModelPool(CompiledModelPool pool) {
+        mCompiledModelPool = pool;
+    }
+
     public void setMaxRunIterations(int value) {
         mMaxRunIterations = value;
     }
@@ -133,6 +300,38 @@ public class Processor implements Runnable {
         mCompilationBenchmarkMaxIterations = maxIterations;
     }
 
+    /**
+     * Replace the fixed run time with an adaptive one: inferences are run in chunks until the
+     * 95% confidence interval of the latency mean, or of the given percentile, is narrower than
+     * targetRelativeCiWidth times the estimate, or until maxRunTimeSeconds is reached.
+     *
+     * @param percentile percentile (0..100) to converge on, or ConfidenceInterval.MEAN
+     */
+    public void enableAdaptiveRunLength(
+            float targetRelativeCiWidth, float percentile, float maxRunTimeSeconds) {
+        if (targetRelativeCiWidth <= 0.0f || percentile >= 100.0f || maxRunTimeSeconds <= 0.0f) {
+            throw new IllegalArgumentException("Invalid adaptive run length parameters");
+        }
+        mAdaptiveRunLength = true;
+        mAdaptiveTargetRelativeCiWidth = targetRelativeCiWidth;
+        mAdaptivePercentile = percentile;
+        mAdaptiveMaxRunTimeSeconds = maxRunTimeSeconds;
+    }
+
+    /**
+     * Replace the fixed warmup time with a steady-state detection: warmup inferences are run in
+     * chunks until MSER-5 finds the end of the initial transient of the latency series, or
+     * until maxWarmupTimeSeconds is reached. The warmup time passed to the benchmark methods is
+     * then ignored.
+     */
+    public void enableSteadyStateWarmup(float maxWarmupTimeSeconds) {
+        if (maxWarmupTimeSeconds <= 0.0f) {
+            throw new IllegalArgumentException("Invalid max warmup time " + maxWarmupTimeSeconds);
+        }
+        mSteadyStateWarmup = true;
+        mSteadyStateWarmupMaxTimeSeconds = maxWarmupTimeSeconds;
+    }
+
     public BenchmarkResult getInstrumentationResult(
             TestModels.TestModelEntry t, float warmupTimeSeconds, float runTimeSeconds)
             throws IOException, BenchmarkException {
@@ -145,16 +344,18 @@ public class Processor implements Runnable {
             TestModels.TestModelEntry t, float warmupTimeSeconds, float runTimeSeconds,
             boolean sampleResults)
             throws IOException, BenchmarkException {
-        mTest = changeTest(mTest, t);
+        switchTest(t);
         mTest.setSampleResult(sampleResults);
+        boolean completed = false;
         try {
             BenchmarkResult result = mRunModelCompilationOnly ? null : getBenchmark(
                     warmupTimeSeconds,
                     runTimeSeconds);
+            completed = true;
             return result;
         } finally {
-            mTest.destroy();
-            mTest = null;
+            // A model that failed is not returned to the pool.
+            releaseTest(/*discard=*/!completed);
         }
     }
 
@@ -182,18 +383,64 @@ public class Processor implements Runnable {
         }
     }
 
+    // Replaces mTest with a set up instance of t, leased from mCompiledModelPool if set.
+    private void switchTest(TestModels.TestModelEntry t)
+            throws IOException, UnsupportedModelException, NnApiDelegationFailure {
+        if (mCompiledModelPool == null || mRunModelCompilationOnly) {
+            NNTestBase oldTest = mTest;
+            // Left without a model if the new one can't be set up.
+            mTest = null;
+            mTest = changeTest(oldTest, t);
+            return;
+        }
+        releaseTest(/*discard=*/false);
+        mTestModel = t;
+        mTestLease = mCompiledModelPool.lease(mContext, t, mBackend,
+                mBackend == TfLiteBackend.NNAPI ? mAcceleratorName : null, mMmapModel);
+        if (mTestLease != null) {
+            mTest = mTestLease.get();
+            mTest.setPipelinedEvaluation(mPipelinedEvaluation);
+            mTest.setMaterializedDatasetSize(mMaterializedDatasetSize);
+            if (mTest.setBatchSize(mBatchSize)) {
+                return;
+            }
+            releaseTest(/*discard=*/false);
+        }
+        throw new UnsupportedModelException("Cannot initialise model");
+    }
+
+    // Destroys mTest, or returns it to the pool it was leased from.
+    private void releaseTest(boolean discard) {
+        if (mTestLease != null) {
+            if (discard) {
+                mTestLease.discard();
+            } else {
+                mTestLease.close();
+            }
+            mTestLease = null;
+        } else if (mTest != null) {
+            mTest.destroy();
+        }
+        mTest = null;
+    }
+
     private NNTestBase changeTest(NNTestBase oldTestBase, TestModels.TestModelEntry t)
             throws IOException, UnsupportedModelException, NnApiDelegationFailure {
         if (oldTestBase != null) {
             // Make sure we don't leak memory.
             oldTestBase.destroy();
         }
+        mTestModel = t;
         NNTestBase tb = t.createNNTestBase(mBackend, /*enableIntermediateTensorsDump=*/false,
                 mMmapModel);
         if (mBackend == TfLiteBackend.NNAPI) {
             tb.setNNApiDeviceName(mAcceleratorName);
         }
+        tb.setPipelinedEvaluation(mPipelinedEvaluation);
+        tb.setMaterializedDatasetSize(mMaterializedDatasetSize);
+        tb.setBatchSize(mBatchSize);
         if (!tb.setupModel(mContext)) {
+            tb.destroy();
             throw new UnsupportedModelException("Cannot initialise model");
         }
         return tb;
@@ -204,8 +451,38 @@ public class Processor implements Runnable {
     private BenchmarkResult runBenchmarkLoop(float maxTime, boolean completeInputSet)
             throws IOException {
         try {
+            if (mStreamResults && maxTime > 0.f && !completeInputSet) {
+                if (mTest.getEvaluator() == null) {
+                    Pair<List<InferenceInOutSequence>, StreamingInferenceResult> results =
+                            mTest.runBenchmarkStreaming(maxTime);
+                    return BenchmarkResult.fromStreamingInferenceResult(
+                            mTest.getTestInfo(),
+                            mBackend.toString(),
+                            results.first,
+                            results.second);
+                }
+                Log.w(TAG, "Cannot stream results of a model with evaluator, collecting all");
+            }
+
+            // Evaluate the results while the benchmark runs if possible, so that the inference
+            // outputs are not all kept until the end of the run.
+            IncrementalEvaluatorInterface incrementalEvaluator = getIncrementalEvaluator();
+            if (incrementalEvaluator != null && maxTime > 0.f) {
+                Pair<List<InferenceInOutSequence>, InferenceResultBatch> results =
+                        completeInputSet
+                                ? mTest.runBenchmarkCompleteInputSet(1, maxTime,
+                                        incrementalEvaluator)
+                                : mTest.runBenchmark(maxTime, incrementalEvaluator);
+                return BenchmarkResult.fromIncrementallyEvaluatedInferenceResults(
+                        mTest.getTestInfo(),
+                        mBackend.toString(),
+                        results.first,
+                        results.second,
+                        incrementalEvaluator);
+            }
+
             // Run the kernel
-            Pair<List<InferenceInOutSequence>, List<InferenceResult>> results;
+            Pair<List<InferenceInOutSequence>, InferenceResultBatch> results;
             if (maxTime > 0.f) {
                 if (completeInputSet) {
                     results = mTest.runBenchmarkCompleteInputSet(1, maxTime);
@@ -226,6 +503,141 @@ public class Processor implements Runnable {
         }
     }
 
+    // Returns the evaluator of the test if it can evaluate results as they are produced.
+    private IncrementalEvaluatorInterface getIncrementalEvaluator() {
+        EvaluatorInterface evaluator = mTest.getEvaluator();
+        return evaluator instanceof IncrementalEvaluatorInterface
+                ? (IncrementalEvaluatorInterface) evaluator : null;
+    }
+
+    // Run warmup chunks until the latency series reaches a steady state, or the max warmup
+    // time is reached. Returns the number of warmup inferences.
+    private int runSteadyStateWarmupLoop() throws IOException {
+        try {
+            List<InferenceInOutSequence> inOutList = mTest.getInputOutputAssets();
+            int flags = mTest.getDefaultFlags() | NNTestBase.FLAG_DISCARD_INFERENCE_OUTPUT;
+            float[] latencies = new float[256];
+            int count = 0;
+            int truncationPoint = -1;
+            // Each chunk continues where the previous one stopped, so that the warmup goes
+            // through the inputs instead of repeating the first ones.
+            int nextSequence = 0;
+            long startTimeNanos = SystemClock.elapsedRealtimeNanos();
+            float elapsedSec = 0.0f;
+            do {
+                float chunkTimeSec = Math.min(STEADY_STATE_CHUNK_TIME_SECONDS,
+                        mSteadyStateWarmupMaxTimeSeconds - elapsedSec);
+                InferenceResultBatch chunk = mTest.runBenchmark(inOutList, nextSequence,
+                        0xFFFFFFF, chunkTimeSec, flags).second;
+                nextSequence = chunk.getNextSequenceIndex(inOutList.size(), nextSequence);
+                if (count + chunk.size() > latencies.length) {
+                    latencies = Arrays.copyOf(latencies,
+                            Math.max(2 * latencies.length, count + chunk.size()));
+                }
+                System.arraycopy(chunk.mComputeTimesSec, 0, latencies, count, chunk.size());
+                count += chunk.size();
+                elapsedSec = (SystemClock.elapsedRealtimeNanos() - startTimeNanos) / 1e9f;
+                truncationPoint = StatsUtils.mser5TruncationPoint(latencies, count);
+            } while (mRun.get() && elapsedSec < mSteadyStateWarmupMaxTimeSeconds
+                    && truncationPoint < 0);
+
+            if (truncationPoint < 0) {
+                Log.w(TAG, String.format("No steady state detected after %d warmup inferences",
+                        count));
+            } else {
+                Log.d(TAG, String.format("Steady state after %d warmup inferences, transient of %d",
+                        count, truncationPoint));
+            }
+            return count;
+        } catch (BenchmarkException e) {
+            Log.w(TAG, "Error during warmup: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Run chunks of inferences until the confidence interval of the target statistic is narrow
+    // enough, or the max run time is reached.
+    private BenchmarkResult runAdaptiveBenchmarkLoop() throws IOException {
+        try {
+            List<InferenceInOutSequence> inOutList = mTest.getInputOutputAssets();
+            int flags = mTest.getDefaultFlags();
+            IncrementalEvaluatorInterface incrementalEvaluator = getIncrementalEvaluator();
+            if (incrementalEvaluator != null) {
+                incrementalEvaluator.begin(inOutList);
+            }
+            List<InferenceResultBatch> chunks = new ArrayList<>();
+            int count = 0;
+            LatencyHistogram histogram = new LatencyHistogram();
+            double sum = 0.0;
+            double sumOfSquares = 0.0;
+            ConfidenceInterval confidenceInterval = null;
+            // Each chunk continues where the previous one stopped, so that the statistics
+            // cover the input set rather than its first inputs.
+            int nextSequence = 0;
+            long startTimeNanos = SystemClock.elapsedRealtimeNanos();
+            float elapsedSec = 0.0f;
+            do {
+                float chunkTimeSec = Math.min(ADAPTIVE_CHUNK_TIME_SECONDS,
+                        mAdaptiveMaxRunTimeSeconds - elapsedSec);
+                InferenceResultBatch chunk = incrementalEvaluator != null
+                        ? mTest.runBenchmark(inOutList, nextSequence, 0xFFFFFFF, chunkTimeSec,
+                                flags, incrementalEvaluator).second
+                        : mTest.runBenchmark(inOutList, nextSequence, 0xFFFFFFF, chunkTimeSec,
+                                flags).second;
+                nextSequence = chunk.getNextSequenceIndex(inOutList.size(), nextSequence);
+                // Start times are relative to the start of each chunk.
+                chunk.offsetStartTimes(elapsedSec);
+                for (int i = 0; i < chunk.size(); i++) {
+                    float latency = chunk.mComputeTimesSec[i];
+                    histogram.recordSec(latency);
+                    sum += latency;
+                    sumOfSquares += (double) latency * latency;
+                }
+                chunks.add(chunk);
+                count += chunk.size();
+                elapsedSec = (SystemClock.elapsedRealtimeNanos() - startTimeNanos) / 1e9f;
+
+                confidenceInterval = getAdaptiveConfidenceInterval(
+                        count, sum, sumOfSquares, histogram);
+            } while (mRun.get() && elapsedSec < mAdaptiveMaxRunTimeSeconds
+                    && (confidenceInterval == null || confidenceInterval.getRelativeWidth()
+                            > mAdaptiveTargetRelativeCiWidth));
+
+            BenchmarkResult result = incrementalEvaluator != null
+                    ? BenchmarkResult.fromIncrementallyEvaluatedInferenceResults(
+                            mTest.getTestInfo(),
+                            mBackend.toString(),
+                            inOutList,
+                            InferenceResultBatch.concat(chunks),
+                            incrementalEvaluator)
+                    : BenchmarkResult.fromInferenceResults(
+                            mTest.getTestInfo(),
+                            mBackend.toString(),
+                            inOutList,
+                            InferenceResultBatch.concat(chunks),
+                            mTest.getEvaluator());
+            result.setLatencyConfidenceInterval(confidenceInterval);
+            return result;
+        } catch (BenchmarkException e) {
+            return new BenchmarkResult(e.getMessage());
+        }
+    }
+
+    // Returns null while there are too few inferences for the interval to be meaningful.
+    private ConfidenceInterval getAdaptiveConfidenceInterval(
+            int count, double sum, double sumOfSquares, LatencyHistogram histogram) {
+        if (count < ADAPTIVE_MIN_INFERENCES) {
+            return null;
+        }
+        if (mAdaptivePercentile < 0.0f) {
+            return StatsUtils.meanConfidenceInterval(count, sum, sumOfSquares);
+        }
+        if (count * (1.0f - mAdaptivePercentile / 100.0f) < ADAPTIVE_MIN_TAIL_INFERENCES) {
+            return null;
+        }
+        return StatsUtils.percentileConfidenceInterval(histogram, mAdaptivePercentile);
+    }
+
     // Run one loop of compilations for at least the specified minimum time.
     // The function will set the compilation results into the provided benchmark result object.
     private void runCompilationBenchmarkLoop(float warmupMinTime, float runMinTime,
@@ -258,10 +670,17 @@ public class Processor implements Runnable {
         // this is to let any power management do its job and respond.
         // For NNAPI systrace usage documentation, see
         // frameworks/ml/nn/common/include/Tracing.h.
+        int warmupInferenceCount;
         try {
             final String traceName = "[NN_LA_PWU]runBenchmarkLoop";
             Trace.beginSection(traceName);
-            runBenchmarkLoop(warmupTimeSeconds, false);
+            if (mSteadyStateWarmup) {
+                warmupInferenceCount = runSteadyStateWarmupLoop();
+            } else {
+                BenchmarkResult warmup = runBenchmarkLoop(warmupTimeSeconds, false);
+                warmupInferenceCount = warmup.hasBenchmarkError()
+                        ? 0 : warmup.getInferenceLatency().getIterations();
+            }
         } finally {
             Trace.endSection();
         }
@@ -271,7 +690,11 @@ public class Processor implements Runnable {
         try {
             final String traceName = "[NN_LA_PBM]runBenchmarkLoop";
             Trace.beginSection(traceName);
-            r = runBenchmarkLoop(runTimeSeconds, mCompleteInputSet);
+            if (mAdaptiveRunLength && !mCompleteInputSet && !mStreamResults) {
+                r = runAdaptiveBenchmarkLoop();
+            } else {
+                r = runBenchmarkLoop(runTimeSeconds, mCompleteInputSet);
+            }
         } finally {
             Trace.endSection();
         }
@@ -282,9 +705,250 @@ public class Processor implements Runnable {
                     mCompilationBenchmarkRunTimeSeconds, mCompilationBenchmarkMaxIterations, r);
         }
 
+        r.setWarmupInferenceCount(warmupInferenceCount);
+        r.setBatchSize(mTest.getBatchSize());
+        if (mSweepBatchSizes != null && mSweepBatchSizes.length > 0 && !r.hasBenchmarkError()) {
+            r.setBatchSizeSweep(runBatchSizeSweep(warmupTimeSeconds, runTimeSeconds));
+        }
+        if (mThroughputMaxInstanceCount > 0 && !r.hasBenchmarkError()) {
+            r.setThroughputScaling(runThroughputScaling(warmupTimeSeconds, runTimeSeconds));
+        }
+        if (mSaturationWorkerCount > 0 && !r.hasBenchmarkError()) {
+            r.setSaturationCurve(runSaturationSearch(r.getInferenceLatency()));
+        }
         return r;
     }
 
+    private SaturationCurve runSaturationSearch(LatencyResult closedLoopLatency)
+            throws IOException {
+        SaturationCurve curve = new SaturationCurve(mSaturationWorkerCount,
+                mSaturationP99LimitSec);
+        List<NNTestBase> workers = new ArrayList<>();
+        try {
+            addInstances(workers, mSaturationWorkerCount);
+            // A request runs a whole input sequence.
+            List<InferenceInOutSequence> ios = mTest.getInputOutputAssets();
+            int inferenceCount = 0;
+            for (InferenceInOutSequence sequence : ios) {
+                inferenceCount += sequence.size();
+            }
+            float requestSec = closedLoopLatency.getMeanTimeSec() * inferenceCount / ios.size();
+            float qps = SATURATION_START_LOAD_FRACTION * mSaturationWorkerCount / requestSec;
+
+            for (int step = 0; ; step++) {
+                if (!mRun.get()) {
+                    break;
+                }
+                if (step == SATURATION_MAX_STEPS) {
+                    curve.setStopReason(SaturationCurve.StopReason.MAX_STEPS);
+                    break;
+                }
+                if (!runSaturationStep(workers, qps, curve)) {
+                    break;
+                }
+                int last = curve.size() - 1;
+                if (curve.getResponseP99Sec(last) > mSaturationP99LimitSec) {
+                    curve.setStopReason(SaturationCurve.StopReason.LATENCY_LIMIT);
+                    break;
+                }
+                if (last > 0 && curve.getAchievedQps(last) < curve.getAchievedQps(last - 1)
+                        * (1.0f + SATURATION_PLATEAU_MIN_GAIN)) {
+                    curve.setStopReason(SaturationCurve.StopReason.THROUGHPUT_PLATEAU);
+                    break;
+                }
+                qps *= SATURATION_LOAD_STEP_FACTOR;
+            }
+        } catch (BenchmarkException e) {
+            Log.w(TAG, "Saturation search of " + mTest.getTestInfo() + " stopped", e);
+        } finally {
+            destroyExtraInstances(workers);
+        }
+        Log.i(TAG, String.format("Saturation curve of %s, %d workers:%n%s",
+                mTest.getTestInfo(), mSaturationWorkerCount, curve.toTable()));
+        return curve;
+    }
+
+    // Holds the load until two consecutive windows agree, and adds the last one to the curve.
+    // Returns false if requests failed.
+    private boolean runSaturationStep(List<NNTestBase> workers, float qps,
+            SaturationCurve curve) throws BenchmarkException {
+        // A single generator for all the windows, the workers are only warmed up once.
+        OpenLoopLoadGenerator generator = new OpenLoopLoadGenerator(workers, qps,
+                OpenLoopLoadGenerator.ArrivalProcess.POISSON, SATURATION_ARRIVAL_SEED);
+        // At low loads, a minimum window has too few requests for a stable p99.
+        float windowSeconds = Math.max(SATURATION_MIN_WINDOW_SECONDS,
+                SATURATION_MIN_WINDOW_REQUESTS / qps);
+        OpenLoopLoadGenerator.Result previous = null;
+        OpenLoopLoadGenerator.Result current = null;
+        boolean stable = false;
+        for (int window = 0; window < SATURATION_MAX_WINDOWS && !stable && mRun.get();
+                window++) {
+            previous = current;
+            current = generator.run(windowSeconds);
+            if (current.getFailedCount() > 0) {
+                Log.w(TAG, String.format("%d requests failed at %.1f/s",
+                        current.getFailedCount(), qps));
+                return false;
+            }
+            stable = previous != null
+                    && isClose(current.getAchievedQps(), previous.getAchievedQps(),
+                            SATURATION_STABLE_QPS_TOLERANCE)
+                    && isClose(current.getResponseTime().getValueAtPercentileSec(99.0),
+                            previous.getResponseTime().getValueAtPercentileSec(99.0),
+                            SATURATION_STABLE_P99_TOLERANCE);
+        }
+        if (current == null) {
+            return false;
+        }
+        curve.add(current, stable);
+        return true;
+    }
+
+    private static boolean isClose(float value, float reference, float relativeTolerance) {
+        return Math.abs(value - reference) <= relativeTolerance * Math.abs(reference);
+    }
+
+    private ThroughputScaling runThroughputScaling(float warmupTimeSeconds,
+            float runTimeSeconds) throws IOException {
+        ThroughputScaling scaling = new ThroughputScaling();
+        List<NNTestBase> instances = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(mThroughputMaxInstanceCount);
+        try {
+            for (int instanceCount = 1; instanceCount <= mThroughputMaxInstanceCount;
+                    instanceCount++) {
+                if (!mRun.get()) {
+                    break;
+                }
+                addInstances(instances, instanceCount);
+                runConcurrentInstances(executor, instances, warmupTimeSeconds, runTimeSeconds,
+                        scaling);
+            }
+        } catch (BenchmarkException e) {
+            Log.w(TAG, "Throughput scaling of " + mTest.getTestInfo() + " stopped", e);
+        } finally {
+            executor.shutdownNow();
+            destroyExtraInstances(instances);
+        }
+        Log.i(TAG, String.format("Throughput scaling of %s:%n%s", mTest.getTestInfo(),
+                scaling.toTable()));
+        return scaling;
+    }
+
+    // Grows the list to count instances of the current model. The first instance is always
+    // mTest, the others are set up like it, with EXTRA_INSTANCE_PREFETCH_THREAD_COUNT input
+    // prefetch threads, and must be destroyed with destroyExtraInstances.
+    private void addInstances(List<NNTestBase> instances, int count)
+            throws IOException, BenchmarkException {
+        if (instances.isEmpty()) {
+            instances.add(mTest);
+        }
+        while (instances.size() < count) {
+            NNTestBase instance = changeTest(null, mTestModel);
+            instance.setInputPrefetchThreadCount(EXTRA_INSTANCE_PREFETCH_THREAD_COUNT);
+            instances.add(instance);
+        }
+    }
+
+    // Destroys the instances added by addInstances, mTest is left to the caller.
+    private void destroyExtraInstances(List<NNTestBase> instances) {
+        for (NNTestBase instance : instances) {
+            if (instance != mTest) {
+                instance.destroy();
+            }
+        }
+        instances.clear();
+    }
+
+    // Runs all the instances at the same time, after a warmup, and adds the run to scaling.
+    private void runConcurrentInstances(ExecutorService executor, List<NNTestBase> instances,
+            float warmupTimeSeconds, float runTimeSeconds, ThroughputScaling scaling)
+            throws BenchmarkException {
+        final int instanceCount = instances.size();
+        final CyclicBarrier warmupComplete = new CyclicBarrier(instanceCount);
+        final long[] startTimesNanos = new long[instanceCount];
+        final long[] endTimesNanos = new long[instanceCount];
+        List<Future<LatencyResult>> streams = new ArrayList<>();
+        for (int i = 0; i < instanceCount; i++) {
+            final NNTestBase instance = instances.get(i);
+            final int stream = i;
+            streams.add(executor.submit(() -> {
+                try {
+                    if (warmupTimeSeconds > 0.f) {
+                        instance.runBenchmarkStreaming(warmupTimeSeconds);
+                    }
+                    warmupComplete.await();
+                    startTimesNanos[stream] = System.nanoTime();
+                    Pair<List<InferenceInOutSequence>, StreamingInferenceResult> results =
+                            instance.runBenchmarkStreaming(runTimeSeconds);
+                    endTimesNanos[stream] = System.nanoTime();
+                    return BenchmarkResult.fromStreamingInferenceResult(instance.getTestInfo(),
+                            mBackend.toString(), results.first, results.second)
+                            .getInferenceLatency();
+                } catch (Exception e) {
+                    // Releases the streams waiting for this one.
+                    warmupComplete.reset();
+                    throw e;
+                }
+            }));
+        }
+
+        LatencyResult[] streamLatencies = new LatencyResult[instanceCount];
+        BenchmarkException failure = null;
+        for (int i = 0; i < instanceCount; i++) {
+            try {
+                streamLatencies[i] = streams.get(i).get();
+            } catch (ExecutionException e) {
+                // The first failure is the cause of the broken barrier of the others.
+                if (failure == null || failure.getCause() instanceof BrokenBarrierException) {
+                    failure = new BenchmarkException(String.format(
+                            "Failed to run %d concurrent instances", instanceCount));
+                    failure.initCause(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BenchmarkException("Interrupted while running concurrent instances");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        long firstStartNanos = Long.MAX_VALUE;
+        long lastEndNanos = Long.MIN_VALUE;
+        for (int i = 0; i < instanceCount; i++) {
+            firstStartNanos = Math.min(firstStartNanos, startTimesNanos[i]);
+            lastEndNanos = Math.max(lastEndNanos, endTimesNanos[i]);
+        }
+        scaling.add(streamLatencies, (lastEndNanos - firstStartNanos) / 1.0e9);
+    }
+
+    private BatchSizeSweep runBatchSizeSweep(float warmupTimeSeconds, float runTimeSeconds)
+            throws IOException {
+        BatchSizeSweep sweep = new BatchSizeSweep();
+        try {
+            for (int batchSize : mSweepBatchSizes) {
+                if (!mRun.get()) {
+                    break;
+                }
+                if (!mTest.setBatchSize(batchSize)) {
+                    continue;
+                }
+                runBenchmarkLoop(warmupTimeSeconds, false);
+                BenchmarkResult result = runBenchmarkLoop(runTimeSeconds, false);
+                if (result.hasBenchmarkError()) {
+                    Log.w(TAG, String.format("Batch size %d failed: %s", batchSize,
+                            result.getBenchmarkError()));
+                    continue;
+                }
+                sweep.add(batchSize, result.getInferenceLatency());
+            }
+        } finally {
+            mTest.setBatchSize(mBatchSize);
+        }
+        Log.i(TAG, mTest.getTestInfo() + " " + sweep);
+        return sweep;
+    }
+
     @Override
     public void run() {
         mHasBeenStarted = true;
@@ -311,10 +975,11 @@ public class Processor implements Runnable {
             Log.d(TAG, "Processor completed work");
             mCallback.onBenchmarkFinish(success);
         } finally {
-            if (mTest != null) {
-                // Make sure we don't leak memory.
-                mTest.destroy();
-                mTest = null;
+            // Make sure we don't leak memory.
+            releaseTest(/*discard=*/false);
+            // The compiled models are only reused within a run.
+            if (mCompiledModelPool != null) {
+                mCompiledModelPool.clear();
             }
             mCompleted.countDown();
         }
@@ -327,16 +992,6 @@ public class Processor implements Runnable {
                 Log.v(TAG, String.format("Asked to stop execution at model #%d", ct));
                 break;
             }
-            // For reproducibility we wait a short time for any sporadic work
-            // created by the user touching the screen to launch the test to pass.
-            // Also allows for things to settle after the test changes.
-            try {
-                Thread.sleep(250);
-            } catch (InterruptedException ignored) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-
             TestModels.TestModelEntry testModel =
                     TestModels.modelsList().get(mTestList[ct]);
 
@@ -346,12 +1001,14 @@ public class Processor implements Runnable {
 
             // Select the next test
             try {
-                mTest = changeTest(mTest, testModel);
+                switchTest(testModel);
             } catch (UnsupportedModelException e) {
                 if (mIgnoreUnsupportedModels) {
                     Log.d(TAG, String.format(
                             "Cannot initialise test %d: '%s' on accelerator %s, skipping", ct,
                             testModel.mTestName, mAcceleratorName));
+                    mTestResults[ct] = new BenchmarkResult(e.getMessage());
+                    continue;
                 } else {
                     Log.e(TAG,
                             String.format("Cannot initialise test %d: '%s'  on accelerator %s.", ct,
@@ -360,23 +1017,25 @@ public class Processor implements Runnable {
                 }
             }
 
-            // If the user selected the "long pause" option, wait
-            if (mTogglePause) {
-                for (int i = 0; (i < 100) && mRun.get(); i++) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ignored) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
+            // For reproducibility we wait for any sporadic work created by the user touching
+            // the screen to launch the test to pass, and for things to settle after the test
+            // changes. If the user selected the "long pause" option, wait longer for the device
+            // to cool down.
+            float quiescenceWaitSeconds;
+            try {
+                quiescenceWaitSeconds = new QuiescenceGate(mTogglePause
+                        ? LONG_PAUSE_MAX_WAIT_SECONDS : mQuiescenceMaxWaitSeconds)
+                        .await(mRun::get);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                break;
             }
 
             if (mRunModelCompilationOnly) {
                 mTestResults[ct] = BenchmarkResult.fromInferenceResults(testModel.mTestName,
                         mBackend.toString(),
                         Collections.emptyList(),
-                        Collections.emptyList(), null);
+                        new InferenceResultBatch(), null);
             } else {
                 // Run the test
                 float warmupTime = 0.3f;
@@ -387,6 +1046,7 @@ public class Processor implements Runnable {
                 }
                 mTestResults[ct] = getBenchmark(warmupTime, runTime);
             }
+            mTestResults[ct].setQuiescenceWaitSec(quiescenceWaitSeconds);
         }
     }
 
@@ -416,9 +1076,6 @@ public class Processor implements Runnable {
 
         Log.d(TAG, "Done, cleaning up");
 
-        if (mTest != null) {
-            mTest.destroy();
-            mTest = null;
-        }
+        releaseTest(/*discard=*/false);
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Waits for the device to be quiet before a benchmark starts.
+ *
+ * The CPU load (from /proc/stat), the hottest thermal zone and the sum of the CPU frequencies
+ * are sampled periodically. The gate opens once, for two consecutive intervals, the load is
+ * low and neither the temperature nor the frequencies are still moving, or once the maximum
+ * wait is over. Sources that can't be read, e.g. because of SELinux restrictions, are
+ * ignored. If none can be read, the gate waits for {@link #FALLBACK_WAIT_SEC}.
+ */
+public class QuiescenceGate {
+    private static final String TAG = NNTestBase.TAG;
+
+    public static final float DEFAULT_MAX_WAIT_SEC = 2.0f;
+    /** Wait when nothing can be sampled, the fixed delay used before the gate existed. */
+    public static final float FALLBACK_WAIT_SEC = 0.25f;
+
+    // A quiet device is let through after REQUIRED_QUIET_SAMPLES intervals, no later than with
+    // the former fixed delay of FALLBACK_WAIT_SEC.
+    private static final long SAMPLE_INTERVAL_MILLIS = 125;
+    private static final int REQUIRED_QUIET_SAMPLES = 2;
+    private static final float MAX_CPU_LOAD = 0.15f;
+    // Temperature change between two samples, in milli-degrees Celsius.
+    private static final long MAX_TEMPERATURE_DELTA = 100;
+    private static final float MAX_RELATIVE_FREQUENCY_DELTA = 0.1f;
+
+    private static final String PROC_STAT = "/proc/stat";
+    private static final File THERMAL_DIR = new File("/sys/class/thermal");
+    private static final File CPU_DIR = new File("/sys/devices/system/cpu");
+
+    private final float mMaxWaitSec;
+
+    // Last sampled values, -1 if not available.
+    private long mCpuTotalTicks = -1;
+    private long mCpuIdleTicks = -1;
+    private long mTemperature = -1;
+    private long mFrequencySumKhz = -1;
+
+    public QuiescenceGate(float maxWaitSec) {
+        mMaxWaitSec = maxWaitSec;
+    }
+
+    /**
+     * Blocks until the device is quiet, the maximum wait is over, or keepWaiting returns false.
+     *
+     * @return the time waited, in seconds
+     */
+    public float await(BooleanSupplier keepWaiting) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        long maxWaitNanos = (long) (mMaxWaitSec * 1e9);
+        sample();
+        boolean anySource = mCpuTotalTicks != -1 || mTemperature != -1 || mFrequencySumKhz != -1;
+        if (!anySource) {
+            Thread.sleep((long) (Math.min(FALLBACK_WAIT_SEC, mMaxWaitSec) * 1000));
+            return (System.nanoTime() - startNanos) / 1e9f;
+        }
+
+        int quietSamples = 0;
+        // Samples on a fixed schedule, the time spent sampling doesn't add up.
+        long sampleNanos = startNanos;
+        while (quietSamples < REQUIRED_QUIET_SAMPLES && keepWaiting.getAsBoolean()
+                && System.nanoTime() - startNanos < maxWaitNanos) {
+            sampleNanos += SAMPLE_INTERVAL_MILLIS * 1000000L;
+            long sleepNanos = sampleNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            }
+            quietSamples = sample() ? quietSamples + 1 : 0;
+        }
+        float waitSec = (System.nanoTime() - startNanos) / 1e9f;
+        if (quietSamples < REQUIRED_QUIET_SAMPLES && keepWaiting.getAsBoolean()) {
+            Log.w(TAG, String.format("Device not quiet after %.1fs, starting anyway", waitSec));
+        }
+        return waitSec;
+    }
+
+    // Reads all the sources, returns true if they are all quiet since the previous sample.
+    private boolean sample() {
+        boolean quiet = true;
+
+        long[] cpuTicks = readCpuTicks();
+        if (cpuTicks != null && mCpuTotalTicks != -1) {
+            long totalDelta = cpuTicks[0] - mCpuTotalTicks;
+            long idleDelta = cpuTicks[1] - mCpuIdleTicks;
+            quiet &= totalDelta > 0 && 1.0f - (float) idleDelta / totalDelta <= MAX_CPU_LOAD;
+        }
+        mCpuTotalTicks = cpuTicks != null ? cpuTicks[0] : -1;
+        mCpuIdleTicks = cpuTicks != null ? cpuTicks[1] : -1;
+
+        long temperature = readMaxTemperature();
+        if (temperature != -1 && mTemperature != -1) {
+            quiet &= Math.abs(temperature - mTemperature) <= MAX_TEMPERATURE_DELTA;
+        }
+        mTemperature = temperature;
+
+        long frequencySumKhz = readFrequencySumKhz();
+        if (frequencySumKhz != -1 && mFrequencySumKhz > 0) {
+            quiet &= Math.abs(frequencySumKhz - mFrequencySumKhz)
+                    <= MAX_RELATIVE_FREQUENCY_DELTA * mFrequencySumKhz;
+        }
+        mFrequencySumKhz = frequencySumKhz;
+
+        return quiet;
+    }
+
+    // Returns {total, idle} ticks of all the CPUs, or null if not readable.
+    private static long[] readCpuTicks() {
+        String line = readFirstLine(new File(PROC_STAT));
+        if (line == null || !line.startsWith("cpu ")) {
+            return null;
+        }
+        // cpu user nice system idle iowait irq softirq steal [guest guest_nice]
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length < 9) {
+            return null;
+        }
+        try {
+            long total = 0;
+            for (int i = 1; i <= 8; i++) {
+                total += Long.parseLong(fields[i]);
+            }
+            long idle = Long.parseLong(fields[4]) + Long.parseLong(fields[5]);
+            return new long[] {total, idle};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Hottest thermal zone in milli-degrees Celsius, or -1 if none is readable.
+    private static long readMaxTemperature() {
+        File[] zones = THERMAL_DIR.listFiles((dir, name) -> name.startsWith("thermal_zone"));
+        long result = -1;
+        if (zones != null) {
+            for (File zone : zones) {
+                long temperature = readLong(new File(zone, "temp"));
+                // Some zones report invalid negative values.
+                if (temperature > 0) {
+                    result = Math.max(result, temperature);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Sum of the current frequencies of the online CPUs, or -1 if none is readable.
+    private static long readFrequencySumKhz() {
+        File[] cpus = CPU_DIR.listFiles((dir, name) -> name.matches("cpu[0-9]+"));
+        long result = -1;
+        if (cpus != null) {
+            for (File cpu : cpus) {
+                long frequencyKhz = readLong(new File(cpu, "cpufreq/scaling_cur_freq"));
+                if (frequencyKhz > 0) {
+                    result = Math.max(result, 0) + frequencyKhz;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long readLong(File file) {
+        String line = readFirstLine(file);
+        if (line == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(line.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readFirstLine(File file) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return reader.readLine();
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Throughput and latency of a model under increasing open-loop load, see
+ * {@link OpenLoopLoadGenerator}.
+ *
+ * Below saturation the achieved throughput follows the offered load and the response time
+ * stays close to the service time. Past it, the throughput plateaus while the requests queue
+ * up and the response time grows without bound. The knee is the highest load that is still
+ * sustained: served at the offered rate, within the p99 response time limit.
+ */
+public class SaturationCurve {
+    /** Fraction of the offered load a step must achieve to be sustained. */
+    public static final float SUSTAINED_THROUGHPUT_FRACTION = 0.95f;
+
+    /** Why the load stopped increasing. */
+    public enum StopReason {
+        /** The achieved throughput stopped increasing with the offered load. */
+        THROUGHPUT_PLATEAU,
+        /** The p99 response time went over the limit. */
+        LATENCY_LIMIT,
+        /** The maximum number of steps was reached before saturation. */
+        MAX_STEPS,
+        /** A step failed or the benchmark was stopped. */
+        ABORTED,
+    }
+
+    private final int mWorkerCount;
+    private final float mP99LimitSec;
+    private StopReason mStopReason = StopReason.ABORTED;
+    private int mCount;
+    private float[] mOfferedQps = new float[0];
+    private float[] mAchievedQps = new float[0];
+    private float[] mServiceP50Sec = new float[0];
+    private float[] mResponseP50Sec = new float[0];
+    private float[] mResponseP99Sec = new float[0];
+    private boolean[] mStable = new boolean[0];
+
+    public SaturationCurve(int workerCount, float p99LimitSec) {
+        mWorkerCount = workerCount;
+        mP99LimitSec = p99LimitSec;
+    }
+
+    /**
+     * Adds a step of the ramp.
+     *
+     * @param stable whether the step reached a steady state before its result was taken
+     */
+    public void add(OpenLoopLoadGenerator.Result result, boolean stable) {
+        if (mCount == mOfferedQps.length) {
+            int capacity = Math.max(8, 2 * mCount);
+            mOfferedQps = Arrays.copyOf(mOfferedQps, capacity);
+            mAchievedQps = Arrays.copyOf(mAchievedQps, capacity);
+            mServiceP50Sec = Arrays.copyOf(mServiceP50Sec, capacity);
+            mResponseP50Sec = Arrays.copyOf(mResponseP50Sec, capacity);
+            mResponseP99Sec = Arrays.copyOf(mResponseP99Sec, capacity);
+            mStable = Arrays.copyOf(mStable, capacity);
+        }
+        mOfferedQps[mCount] = result.getOfferedQps();
+        mAchievedQps[mCount] = result.getAchievedQps();
+        mServiceP50Sec[mCount] = result.getServiceTime().getValueAtPercentileSec(50.0);
+        mResponseP50Sec[mCount] = result.getResponseTime().getValueAtPercentileSec(50.0);
+        mResponseP99Sec[mCount] = result.getResponseTime().getValueAtPercentileSec(99.0);
+        mStable[mCount] = stable;
+        mCount++;
+    }
+
+    public void setStopReason(StopReason stopReason) {
+        mStopReason = stopReason;
+    }
+
+    public StopReason getStopReason() { return mStopReason; }
+
+    public int getWorkerCount() { return mWorkerCount; }
+
+    public float getP99LimitSec() { return mP99LimitSec; }
+
+    public int size() { return mCount; }
+
+    public float getOfferedQps(int index) { return mOfferedQps[index]; }
+
+    public float getAchievedQps(int index) { return mAchievedQps[index]; }
+
+    public float getServiceP50Sec(int index) { return mServiceP50Sec[index]; }
+
+    public float getResponseP50Sec(int index) { return mResponseP50Sec[index]; }
+
+    public float getResponseP99Sec(int index) { return mResponseP99Sec[index]; }
+
+    public boolean isStable(int index) { return mStable[index]; }
+
+    public boolean isSustained(int index) {
+        return mAchievedQps[index] >= SUSTAINED_THROUGHPUT_FRACTION * mOfferedQps[index]
+                && mResponseP99Sec[index] <= mP99LimitSec;
+    }
+
+    /** Returns the index of the sustained step with the highest throughput, or -1 if none. */
+    public int getKneeIndex() {
+        int knee = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (isSustained(i) && (knee == -1 || mAchievedQps[i] > mAchievedQps[knee])) {
+                knee = i;
+            }
+        }
+        return knee;
+    }
+
+    /** Highest sustained throughput, or 0 if no step was sustained. */
+    public float getKneeQps() {
+        int knee = getKneeIndex();
+        return knee != -1 ? mAchievedQps[knee] : 0.0f;
+    }
+
+    /** Formats the steps as a table, the knee marked with a '*'. */
+    public String toTable() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "%1s %10s %10s %14s %15s %15s %6s%n", "", "offered/s", "achieved/s",
+                "service p50 ms", "response p50 ms", "response p99 ms", "stable"));
+        int knee = getKneeIndex();
+        for (int i = 0; i < mCount; i++) {
+            sb.append(String.format(Locale.US, "%1s %10.1f %10.1f %14.3f %15.3f %15.3f %6s%n",
+                    i == knee ? "*" : "", mOfferedQps[i], mAchievedQps[i],
+                    mServiceP50Sec[i] * 1000.0f, mResponseP50Sec[i] * 1000.0f,
+                    mResponseP99Sec[i] * 1000.0f, mStable[i]));
+        }
+        sb.append("Stopped on ").append(mStopReason);
+        return sb.toString();
+    }
+
+    public void putToBundle(Bundle results, String prefix) {
+        // Latencies reported in ms
+        for (int i = 0; i < mCount; i++) {
+            String stepPrefix = prefix + "_saturation_step_" + i;
+            results.putFloat(stepPrefix + "_offered_qps", mOfferedQps[i]);
+            results.putFloat(stepPrefix + "_achieved_qps", mAchievedQps[i]);
+            results.putFloat(stepPrefix + "_service_p50", mServiceP50Sec[i] * 1000.0f);
+            results.putFloat(stepPrefix + "_response_p50", mResponseP50Sec[i] * 1000.0f);
+            results.putFloat(stepPrefix + "_response_p99", mResponseP99Sec[i] * 1000.0f);
+        }
+        results.putFloat(prefix + "_saturation_knee_qps", getKneeQps());
+        results.putString(prefix + "_saturation_stop_reason", mStopReason.name());
+    }
+
+    public void writeToParcel(Parcel dest) {
+        dest.writeInt(mWorkerCount);
+        dest.writeFloat(mP99LimitSec);
+        dest.writeString(mStopReason.name());
+        dest.writeInt(mCount);
+        dest.writeFloatArray(Arrays.copyOf(mOfferedQps, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mAchievedQps, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mServiceP50Sec, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mResponseP50Sec, mCount));
+        dest.writeFloatArray(Arrays.copyOf(mResponseP99Sec, mCount));
+        dest.writeBooleanArray(Arrays.copyOf(mStable, mCount));
+    }
+
+    public static SaturationCurve readFromParcel(Parcel in) {
+        SaturationCurve result = new SaturationCurve(in.readInt(), in.readFloat());
+        result.mStopReason = StopReason.valueOf(in.readString());
+        result.mCount = in.readInt();
+        result.mOfferedQps = new float[result.mCount];
+        in.readFloatArray(result.mOfferedQps);
+        result.mAchievedQps = new float[result.mCount];
+        in.readFloatArray(result.mAchievedQps);
+        result.mServiceP50Sec = new float[result.mCount];
+        in.readFloatArray(result.mServiceP50Sec);
+        result.mResponseP50Sec = new float[result.mCount];
+        in.readFloatArray(result.mResponseP50Sec);
+        result.mResponseP99Sec = new float[result.mCount];
+        in.readFloatArray(result.mResponseP99Sec);
+        result.mStable = new boolean[result.mCount];
+        in.readBooleanArray(result.mStable);
+        return result;
+    }
+
+    /**
+     * Appends workerCount,p99LimitSec,stopReason,count, then for each step
+     * offeredQps,achievedQps,serviceP50Sec,responseP50Sec,responseP99Sec,stable to a CSV line.
+     */
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(mWorkerCount)
+                .append(',').append(mP99LimitSec)
+                .append(',').append(mStopReason.name())
+                .append(',').append(mCount);
+        for (int i = 0; i < mCount; i++) {
+            sb.append(',').append(mOfferedQps[i])
+                    .append(',').append(mAchievedQps[i])
+                    .append(',').append(mServiceP50Sec[i])
+                    .append(',').append(mResponseP50Sec[i])
+                    .append(',').append(mResponseP99Sec[i])
+                    .append(',').append(mStable[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SaturationCurve{");
+        for (int i = 0; i < mCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mOfferedQps[i]).append("/s: ").append(mAchievedQps[i]).append("/s p99 ")
+                    .append(mResponseP99Sec[i]).append("s");
+        }
+        sb.append(", getKneeQps()=").append(getKneeQps())
+                .append(", mStopReason=").append(mStopReason).append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+/**
+ * Summary of a benchmark run accumulated in constant memory by the native
+ * benchmark loop, returned instead of one InferenceResult per inference.
+ */
+public class StreamingInferenceResult {
+    public long mInferenceCount;
+    public double mTotalTimeSec;
+    public double mMeanTimeSec;
+    /** Sum of squared deviations from the mean, as accumulated by Welford's algorithm. */
+    public double mSumOfSquaredDeviations;
+    public long mMinTimeMicros;
+    public long mMaxTimeMicros;
+    /** Latency counts, with the bucket layout of LatencyHistogram. */
+    public long[] mHistogramCounts;
+    public float mSumOfMSEs;
+    public float mMaxSingleError;
+    /** Per window aggregates, see LatencyTimeSeries. */
+    public float mWindowSec;
+    public long[] mWindowCounts;
+    public double[] mWindowSumsSec;
+    public float[] mWindowMaxesSec;
+    /** Total and max time of each phase, see InferencePhaseBreakdown. */
+    public double[] mPhaseTotalsSec;
+    public float[] mPhaseMaxesSec;
+
+    public StreamingInferenceResult(long inferenceCount, double totalTimeSec,
+            double meanTimeSec, double sumOfSquaredDeviations, long minTimeMicros,
+            long maxTimeMicros, long[] histogramCounts, float sumOfMSEs, float maxSingleError,
+            float windowSec, long[] windowCounts, double[] windowSumsSec,
+            float[] windowMaxesSec, double[] phaseTotalsSec, float[] phaseMaxesSec) {
+        mInferenceCount = inferenceCount;
+        mTotalTimeSec = totalTimeSec;
+        mMeanTimeSec = meanTimeSec;
+        mSumOfSquaredDeviations = sumOfSquaredDeviations;
+        mMinTimeMicros = minTimeMicros;
+        mMaxTimeMicros = maxTimeMicros;
+        mHistogramCounts = histogramCounts;
+        mSumOfMSEs = sumOfMSEs;
+        mMaxSingleError = maxSingleError;
+        mWindowSec = windowSec;
+        mWindowCounts = windowCounts;
+        mWindowSumsSec = windowSumsSec;
+        mWindowMaxesSec = windowMaxesSec;
+        mPhaseTotalsSec = phaseTotalsSec;
+        mPhaseMaxesSec = phaseMaxesSec;
+    }
+
+    /** Population standard deviation, same as LatencyResult computes it. */
+    public float getStdDeviationSec() {
+        if (mInferenceCount == 0) {
+            return 0.0f;
+        }
+        return (float) Math.sqrt(mSumOfSquaredDeviations / mInferenceCount);
+    }
+
+    public LatencyHistogram getHistogram() {
+        return new LatencyHistogram(mHistogramCounts, mMinTimeMicros, mMaxTimeMicros);
+    }
+
+    public LatencyTimeSeries getTimeSeries() {
+        return new LatencyTimeSeries(mWindowSec, mWindowCounts, mWindowSumsSec, mWindowMaxesSec);
+    }
+
+    public InferencePhaseBreakdown getPhaseBreakdown() {
+        return new InferencePhaseBreakdown(mInferenceCount, mPhaseTotalsSec, mPhaseMaxesSec);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.core;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Aggregate throughput of increasing numbers of independent instances of a model, each run
+ * by its own thread at the same time.
+ *
+ * The scaling efficiency of K instances is their throughput divided by K times the throughput
+ * of a single instance: 1 means perfect scaling, lower values show contention for the cores,
+ * the memory bandwidth or the accelerator.
+ */
+public class ThroughputScaling {
+    private static class Run {
+        final int mInstanceCount;
+        final float mInferencesPerSec;
+        final LatencyResult[] mStreamLatencies;
+
+        Run(int instanceCount, float inferencesPerSec, LatencyResult[] streamLatencies) {
+            mInstanceCount = instanceCount;
+            mInferencesPerSec = inferencesPerSec;
+            mStreamLatencies = streamLatencies;
+        }
+    }
+
+    private final List<Run> mRuns = new ArrayList<>();
+
+    public ThroughputScaling() {}
+
+    /**
+     * Adds a run of streamLatencies.length instances.
+     *
+     * @param wallTimeSec time from the start of the first stream to the end of the last one
+     */
+    public void add(LatencyResult[] streamLatencies, double wallTimeSec) {
+        long inferenceCount = 0;
+        for (LatencyResult latency : streamLatencies) {
+            inferenceCount += latency.getIterations();
+        }
+        float inferencesPerSec = wallTimeSec > 0.0 ? (float) (inferenceCount / wallTimeSec) : 0.0f;
+        mRuns.add(new Run(streamLatencies.length, inferencesPerSec, streamLatencies.clone()));
+    }
+
+    public int size() { return mRuns.size(); }
+
+    public int getInstanceCount(int index) { return mRuns.get(index).mInstanceCount; }
+
+    /** Inferences completed per second by all the instances together. */
+    public float getInferencesPerSec(int index) { return mRuns.get(index).mInferencesPerSec; }
+
+    public LatencyResult getStreamLatency(int index, int stream) {
+        return mRuns.get(index).mStreamLatencies[stream];
+    }
+
+    /**
+     * Throughput of the run relative to instance count times the single instance throughput,
+     * or 0 if no single instance run was added.
+     */
+    public float getScalingEfficiency(int index) {
+        float singleInstancePerSec = getSingleInstanceInferencesPerSec();
+        Run run = mRuns.get(index);
+        return singleInstancePerSec > 0.0f
+                ? run.mInferencesPerSec / (run.mInstanceCount * singleInstancePerSec) : 0.0f;
+    }
+
+    private float getSingleInstanceInferencesPerSec() {
+        for (Run run : mRuns) {
+            if (run.mInstanceCount == 1) {
+                return run.mInferencesPerSec;
+            }
+        }
+        return 0.0f;
+    }
+
+    /** Formats the runs as a table, one line per instance count. */
+    public String toTable() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "%9s %12s %10s %14s %14s%n",
+                "instances", "inferences/s", "efficiency", "worst mean ms", "worst p90 ms"));
+        for (int i = 0; i < mRuns.size(); i++) {
+            Run run = mRuns.get(i);
+            float worstMeanSec = 0.0f;
+            float worstP90Sec = 0.0f;
+            for (LatencyResult latency : run.mStreamLatencies) {
+                worstMeanSec = Math.max(worstMeanSec, latency.getMeanTimeSec());
+                worstP90Sec = Math.max(worstP90Sec, latency.getPercentileTimeSec(90.0));
+            }
+            sb.append(String.format(Locale.US, "%9d %12.1f %10.2f %14.3f %14.3f%n",
+                    run.mInstanceCount, run.mInferencesPerSec, getScalingEfficiency(i),
+                    worstMeanSec * 1000.0f, worstP90Sec * 1000.0f));
+        }
+        return sb.toString();
+    }
+
+    public void putToBundle(Bundle results, String prefix) {
+        for (int i = 0; i < mRuns.size(); i++) {
+            Run run = mRuns.get(i);
+            String runPrefix = prefix + "_instances_" + run.mInstanceCount;
+            results.putFloat(runPrefix + "_inferences_per_sec", run.mInferencesPerSec);
+            results.putFloat(runPrefix + "_scaling_efficiency", getScalingEfficiency(i));
+            for (int stream = 0; stream < run.mStreamLatencies.length; stream++) {
+                run.mStreamLatencies[stream].putToBundle(results,
+                        runPrefix + "_stream_" + stream);
+            }
+        }
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mRuns.size());
+        for (Run run : mRuns) {
+            dest.writeInt(run.mInstanceCount);
+            dest.writeFloat(run.mInferencesPerSec);
+            for (LatencyResult latency : run.mStreamLatencies) {
+                dest.writeParcelable(latency, flags);
+            }
+        }
+    }
+
+    public static ThroughputScaling readFromParcel(Parcel in) {
+        ThroughputScaling result = new ThroughputScaling();
+        int runCount = in.readInt();
+        for (int i = 0; i < runCount; i++) {
+            int instanceCount = in.readInt();
+            float inferencesPerSec = in.readFloat();
+            LatencyResult[] streamLatencies = new LatencyResult[instanceCount];
+            for (int stream = 0; stream < instanceCount; stream++) {
+                streamLatencies[stream] =
+                        in.readParcelable(LatencyResult.class.getClassLoader());
+            }
+            result.mRuns.add(new Run(instanceCount, inferencesPerSec, streamLatencies));
+        }
+        return result;
+    }
+
+    /**
+     * Appends runCount, then for each run instanceCount,inferencesPerSec followed by the
+     * latency of each stream, to a CSV line.
+     */
+    public void appendToCsvLine(StringBuilder sb) {
+        sb.append(',').append(mRuns.size());
+        for (Run run : mRuns) {
+            sb.append(',').append(run.mInstanceCount).append(',').append(run.mInferencesPerSec);
+            for (LatencyResult latency : run.mStreamLatencies) {
+                latency.appendToCsvLine(sb);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ThroughputScaling{");
+        for (int i = 0; i < mRuns.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mRuns.get(i).mInstanceCount).append(": ")
+                    .append(mRuns.get(i).mInferencesPerSec).append("/s ")
+                    .append(getScalingEfficiency(i));
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -1,83 +1,118 @@
 package com.android.nn.benchmark.evaluators;
 
 import com.android.nn.benchmark.core.EvaluatorInterface;
+import com.android.nn.benchmark.core.IncrementalEvaluatorInterface;
 import com.android.nn.benchmark.core.InferenceInOut;
 import com.android.nn.benchmark.core.InferenceInOutSequence;
-import com.android.nn.benchmark.core.InferenceResult;
+import com.android.nn.benchmark.core.InferenceResultBatch;
 import com.android.nn.benchmark.core.OutputMeanStdDev;
 import com.android.nn.benchmark.util.IOUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Base class for (input/output)sequence-by-sequence evaluation.
+ *
+ * Only the outputs of the sequence being evaluated are kept when results are accepted one at
+ * a time.
  */
-public abstract class BaseSequenceEvaluator implements EvaluatorInterface {
+public abstract class BaseSequenceEvaluator
+        implements EvaluatorInterface, IncrementalEvaluatorInterface {
     private OutputMeanStdDev mOutputMeanStdDev = null;
     protected int targetOutputIndex = 0;
 
+    private List<InferenceInOutSequence> mInferenceInOuts;
+    private List<String> mValidationErrors;
+    private float[][] mSequenceOutputs;
+    private float[][] mSequenceExpectedOutputs;
+    private int mSequenceInferenceCount;
+
     public void setOutputMeanStdDev(OutputMeanStdDev outputMeanStdDev) {
         mOutputMeanStdDev = outputMeanStdDev;
     }
 
     @Override
     public void EvaluateAccuracy(
-            List<InferenceInOutSequence> inferenceInOuts, List<InferenceResult> inferenceResults,
+            List<InferenceInOutSequence> inferenceInOuts, InferenceResultBatch inferenceResults,
             List<String> outKeys, List<Float> outValues,
             List<String> outValidationErrors) {
+        begin(inferenceInOuts);
+        for (int i = 0; i < inferenceResults.size(); i++) {
+            accept(inferenceResults, i);
+        }
+        finish(outKeys, outValues, outValidationErrors);
+    }
+
+    @Override
+    public void begin(List<InferenceInOutSequence> inferenceInOuts) {
         if (inferenceInOuts.isEmpty()) {
             throw new IllegalArgumentException("Empty inputs/outputs");
         }
+        mInferenceInOuts = inferenceInOuts;
+        mValidationErrors = new ArrayList<>();
+        mSequenceOutputs = null;
+        mSequenceExpectedOutputs = null;
+        mSequenceInferenceCount = 0;
+        ResetValidationResult();
+    }
 
-        int dataSize = inferenceInOuts.get(0).mDatasize;
-        int outputSize = inferenceInOuts.get(0).get(0).mExpectedOutputs[targetOutputIndex].length
-                / dataSize;
-        int sequenceIndex = 0;
-        int inferenceIndex = 0;
-        while (inferenceIndex < inferenceResults.size()) {
-            int sequenceLength = inferenceInOuts.get(sequenceIndex % inferenceInOuts.size()).size();
-            float[][] outputs = new float[sequenceLength][outputSize];
-            float[][] expectedOutputs = new float[sequenceLength][outputSize];
-            for (int i = 0; i < sequenceLength; ++i, ++inferenceIndex) {
-                InferenceResult result = inferenceResults.get(inferenceIndex);
-                if (mOutputMeanStdDev != null) {
-                    System.arraycopy(
-                            mOutputMeanStdDev.denormalize(
-                                    IOUtils.readFloats(result.mInferenceOutput[targetOutputIndex],
-                                            dataSize)), 0,
-                            outputs[i], 0, outputSize);
-                } else {
-                    System.arraycopy(
-                            IOUtils.readFloats(result.mInferenceOutput[targetOutputIndex],
-                                    dataSize), 0,
-                            outputs[i], 0, outputSize);
-                }
+    @Override
+    public void accept(InferenceResultBatch inferenceResults, int inferenceIndex) {
+        InferenceInOutSequence sequence = mInferenceInOuts.get(
+                inferenceResults.mInputOutputSequenceIndices[inferenceIndex]);
+        int dataSize = sequence.mDatasize;
+        if (inferenceResults.mInputOutputIndices[inferenceIndex] == 0) {
+            int outputSize =
+                    sequence.get(0).mExpectedOutputs[targetOutputIndex].capacity() / dataSize;
+            mSequenceOutputs = new float[sequence.size()][outputSize];
+            mSequenceExpectedOutputs = new float[sequence.size()][outputSize];
+            mSequenceInferenceCount = 0;
+        }
+        if (mSequenceOutputs == null) {
+            // Sequence started before the evaluation, e.g. in a warmup.
+            return;
+        }
 
-                InferenceInOut inOut = inferenceInOuts.get(result.mInputOutputSequenceIndex)
-                        .get(result.mInputOutputIndex);
-                if (mOutputMeanStdDev != null) {
-                    System.arraycopy(
-                            mOutputMeanStdDev.denormalize(
-                                    IOUtils.readFloats(inOut.mExpectedOutputs[targetOutputIndex],
-                                            dataSize)), 0,
-                            expectedOutputs[i], 0, outputSize);
-                } else {
-                    System.arraycopy(
-                            IOUtils.readFloats(inOut.mExpectedOutputs[targetOutputIndex], dataSize),
-                            0,
-                            expectedOutputs[i], 0, outputSize);
-                }
-            }
+        int i = mSequenceInferenceCount++;
+        int outputSize = mSequenceOutputs[i].length;
+        float[] output = IOUtils.readFloats(
+                inferenceResults.getOutput(inferenceIndex, targetOutputIndex), dataSize);
+        InferenceInOut inOut =
+                sequence.get(inferenceResults.mInputOutputIndices[inferenceIndex]);
+        float[] expectedOutput =
+                IOUtils.readFloats(inOut.mExpectedOutputs[targetOutputIndex], dataSize);
+        if (mOutputMeanStdDev != null) {
+            output = mOutputMeanStdDev.denormalize(output);
+            expectedOutput = mOutputMeanStdDev.denormalize(expectedOutput);
+        }
+        System.arraycopy(output, 0, mSequenceOutputs[i], 0, outputSize);
+        System.arraycopy(expectedOutput, 0, mSequenceExpectedOutputs[i], 0, outputSize);
 
-            EvaluateSequenceAccuracy(outputs, expectedOutputs, outValidationErrors);
-            ++sequenceIndex;
+        if (mSequenceInferenceCount == sequence.size()) {
+            EvaluateSequenceAccuracy(mSequenceOutputs, mSequenceExpectedOutputs,
+                    mValidationErrors);
+            mSequenceOutputs = null;
+            mSequenceExpectedOutputs = null;
         }
-        AddValidationResult(outKeys, outValues);
     }
 
+    @Override
+    public void finish(List<String> outKeys, List<Float> outValues,
+            List<String> outValidationErrors) {
+        outValidationErrors.addAll(mValidationErrors);
+        AddValidationResult(outKeys, outValues);
+        mInferenceInOuts = null;
+        mValidationErrors = null;
+        mSequenceOutputs = null;
+        mSequenceExpectedOutputs = null;
+    }
 
     protected abstract void EvaluateSequenceAccuracy(float[][] outputs, float[][] expectedOutputs,
             List<String> outValidationErrors);
 
     protected abstract void AddValidationResult(List<String> keys, List<Float> values);
+
+    /** Resets the validation results at the beginning of an evaluation. */
+    protected abstract void ResetValidationResult();
 }
@@ -69,6 +69,12 @@ public class MelCepLogF0 extends BaseSequenceEvaluator {
         values.add(mMaxLogF0Error);
     }
 
+    @Override
+    protected void ResetValidationResult() {
+        mMaxMelCepDistortion = 0f;
+        mMaxLogF0Error = 0f;
+    }
+
     private static float calculateMelCepDistortion(float[][] outputs, float[][] expectedOutputs) {
         int inferenceCount = outputs.length;
         float squared_error = 0;
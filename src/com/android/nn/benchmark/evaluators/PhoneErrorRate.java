@@ -30,6 +30,11 @@ public class PhoneErrorRate extends BaseSequenceEvaluator {
         values.add(mMaxPER);
     }
 
+    @Override
+    protected void ResetValidationResult() {
+        mMaxPER = 0f;
+    }
+
     /** Calculates Phone Error Rate in percent. */
     private static float calculatePER(float[][] outputs, float[][] expectedOutputs) {
         int inferenceCount = outputs.length;
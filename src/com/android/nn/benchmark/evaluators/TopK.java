@@ -19,11 +19,13 @@ package com.android.nn.benchmark.evaluators;
 import android.util.Pair;
 
 import com.android.nn.benchmark.core.EvaluatorInterface;
+import com.android.nn.benchmark.core.IncrementalEvaluatorInterface;
 import com.android.nn.benchmark.core.InferenceInOut;
 import com.android.nn.benchmark.core.InferenceInOutSequence;
-import com.android.nn.benchmark.core.InferenceResult;
+import com.android.nn.benchmark.core.InferenceResultBatch;
 import com.android.nn.benchmark.util.IOUtils;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
@@ -32,72 +34,94 @@ import java.util.PriorityQueue;
  * Accuracy evaluator for classifiers - top-k accuracy (with k=5).
  */
 
-public class TopK implements EvaluatorInterface {
+public class TopK implements EvaluatorInterface, IncrementalEvaluatorInterface {
 
     public static final int K_TOP = 5;
     public static final float VALIDATION_TOP1_THRESHOLD = 0.05f;
     public float expectedTop1 = 0.0f;
     public int targetOutputIndex = 0;
 
+    private List<InferenceInOutSequence> mInferenceInOuts;
+    private int mTotal;
+    private final int[] mTopk = new int[K_TOP];
+
     public void EvaluateAccuracy(
             List<InferenceInOutSequence> inferenceInOuts,
-            List<InferenceResult> inferenceResults,
+            InferenceResultBatch inferenceResults,
             List<String> outKeys,
             List<Float> outValues,
             List<String> outValidationErrors) {
-
-        int total = 0;
-        int[] topk = new int[K_TOP];
+        begin(inferenceInOuts);
         for (int i = 0; i < inferenceResults.size(); i++) {
-            InferenceResult result = inferenceResults.get(i);
-            if (result.mInferenceOutput == null) {
-                throw new IllegalArgumentException("Needs mInferenceOutput for TopK");
-            }
-            InferenceInOutSequence sequence = inferenceInOuts.get(result.mInputOutputSequenceIndex);
-            if (sequence.size() != 1) {
-                throw new IllegalArgumentException("Only one item in InferenceInOutSequenece " +
-                        "supported by TopK evaluator");
-            }
-            if (result.mInputOutputIndex != 0) {
-                throw new IllegalArgumentException("Unexpected non-zero InputOutputIndex");
-            }
-            InferenceInOut io = sequence.get(0);
-            final int expectedClass = io.mExpectedClass;
-            if (expectedClass < 0) {
-                throw new IllegalArgumentException("expected class not set");
-            }
-            PriorityQueue<Pair<Integer, Float>> sorted = new PriorityQueue<Pair<Integer, Float>>(
-                    new Comparator<Pair<Integer, Float>>() {
-                        @Override
-                        public int compare(Pair<Integer, Float> o1, Pair<Integer, Float> o2) {
-                            // Note reverse order to get highest probability first
-                            return o2.second.compareTo(o1.second);
-                        }
-                    });
-            float[] probabilities = IOUtils.readFloats(result.mInferenceOutput[targetOutputIndex],
-                    sequence.mDatasize);
-            for (int index = 0; index < probabilities.length; index++) {
-                sorted.add(new Pair<>(index, probabilities[index]));
+            accept(inferenceResults, i);
+        }
+        finish(outKeys, outValues, outValidationErrors);
+    }
+
+    @Override
+    public void begin(List<InferenceInOutSequence> inferenceInOuts) {
+        mInferenceInOuts = inferenceInOuts;
+        mTotal = 0;
+        Arrays.fill(mTopk, 0);
+    }
+
+    @Override
+    public void accept(InferenceResultBatch inferenceResults, int i) {
+        if (inferenceResults.mInferenceOutputs == null) {
+            throw new IllegalArgumentException("Needs mInferenceOutputs for TopK");
+        }
+        InferenceInOutSequence sequence =
+                mInferenceInOuts.get(inferenceResults.mInputOutputSequenceIndices[i]);
+        if (sequence.size() != 1) {
+            throw new IllegalArgumentException("Only one item in InferenceInOutSequenece " +
+                    "supported by TopK evaluator");
+        }
+        if (inferenceResults.mInputOutputIndices[i] != 0) {
+            throw new IllegalArgumentException("Unexpected non-zero InputOutputIndex");
+        }
+        InferenceInOut io = sequence.get(0);
+        final int expectedClass = io.mExpectedClass;
+        if (expectedClass < 0) {
+            throw new IllegalArgumentException("expected class not set");
+        }
+        PriorityQueue<Pair<Integer, Float>> sorted = new PriorityQueue<Pair<Integer, Float>>(
+                new Comparator<Pair<Integer, Float>>() {
+                    @Override
+                    public int compare(Pair<Integer, Float> o1, Pair<Integer, Float> o2) {
+                        // Note reverse order to get highest probability first
+                        return o2.second.compareTo(o1.second);
+                    }
+                });
+        float[] probabilities = IOUtils.readFloats(
+                inferenceResults.getOutput(i, targetOutputIndex), sequence.mDatasize);
+        for (int index = 0; index < probabilities.length; index++) {
+            sorted.add(new Pair<>(index, probabilities[index]));
+        }
+        mTotal++;
+        boolean seen = false;
+        for (int k = 0; k < K_TOP; k++) {
+            Pair<Integer, Float> top = sorted.remove();
+            if (top.first.intValue() == expectedClass) {
+                seen = true;
             }
-            total++;
-            boolean seen = false;
-            for (int k = 0; k < K_TOP; k++) {
-                Pair<Integer, Float> top = sorted.remove();
-                if (top.first.intValue() == expectedClass) {
-                    seen = true;
-                }
-                if (seen) {
-                    topk[k]++;
-                }
+            if (seen) {
+                mTopk[k]++;
             }
         }
+    }
+
+    @Override
+    public void finish(
+            List<String> outKeys,
+            List<Float> outValues,
+            List<String> outValidationErrors) {
         for (int i = 0; i < K_TOP; i++) {
             outKeys.add("top_" + (i + 1));
-            outValues.add(new Float((float) topk[i] / (float) total));
+            outValues.add(new Float((float) mTopk[i] / (float) mTotal));
         }
 
         if (expectedTop1 > 0.0) {
-            float top1 = ((float) topk[0] / (float) total);
+            float top1 = ((float) mTopk[0] / (float) mTotal);
             float lowestTop1 = expectedTop1 - VALIDATION_TOP1_THRESHOLD;
             if (top1 < lowestTop1) {
                 outValidationErrors.add(
@@ -105,5 +129,6 @@ public class TopK implements EvaluatorInterface {
                                 String.format("%.2f%%", expectedTop1 * 100.0));
             }
         }
+        mInferenceInOuts = null;
     }
 }
@@ -40,23 +40,43 @@ public class CSVWriter implements AutoCloseable {
 
     static final String RESULT_FORMAT_COMMENT = "#testInfo,backendType"
             + ",inferenceIterations,inferenceTotalTimeSec"
-            + ",inferenceTimeFreqStartSec,inferenceTimeFreqStepSec"
-            + ",inferenceTimeFreqBucketCount,inferenceTimeFreqBucket1,..."
+            + ",inferenceP50Sec,inferenceP90Sec,inferenceP95Sec,inferenceP99Sec,inferenceP99_9Sec"
+            + ",inferenceMaxSec,inferenceHistogramSubBucketBits"
+            + ",inferenceHistogramBucketCount,inferenceHistogramBucketIndex1,inferenceHistogramBucketCount1,..."
             + ",maxSingleError,testSetSize,evaluatorsCount,validationErrorsCount,evaluatorKey1,..."
             + ",evaluatorResult1,...,validationError1,..."
             + ",hasCompileWithoutCacheResults"
             + ",compileWithoutCacheIterations,compileWithoutCacheTotalTimeSec"
-            + ",compileWithoutCacheTimeFreqStartSec,compileWithoutCacheTimeFreqStepSec"
-            + ",compileWithoutCacheTimeFreqBucketCount,compileWithoutCacheTimeFreqBucket1,..."
+            + ",compileWithoutCacheP50Sec,compileWithoutCacheP90Sec,compileWithoutCacheP95Sec,compileWithoutCacheP99Sec,compileWithoutCacheP99_9Sec"
+            + ",compileWithoutCacheMaxSec,compileWithoutCacheHistogramSubBucketBits"
+            + ",compileWithoutCacheHistogramBucketCount,compileWithoutCacheHistogramBucketIndex1,compileWithoutCacheHistogramBucketCount1,..."
             + ",hasSaveToCacheResults"
             + ",saveToCacheIterations,saveToCacheTotalTimeSec"
-            + ",saveToCacheTimeFreqStartSec,saveToCacheTimeFreqStepSec"
-            + ",saveToCacheTimeFreqBucketCount,saveToCacheTimeFreqBucket1,..."
+            + ",saveToCacheP50Sec,saveToCacheP90Sec,saveToCacheP95Sec,saveToCacheP99Sec,saveToCacheP99_9Sec"
+            + ",saveToCacheMaxSec,saveToCacheHistogramSubBucketBits"
+            + ",saveToCacheHistogramBucketCount,saveToCacheHistogramBucketIndex1,saveToCacheHistogramBucketCount1,..."
             + ",hasPrepareFromCacheResults"
             + ",prepareFromCacheIterations,prepareFromCacheTotalTimeSec"
-            + ",prepareFromCacheTimeFreqStartSec,prepareFromCacheTimeFreqStepSec"
-            + ",prepareFromCacheTimeFreqBucketCount,prepareFromCacheTimeFreqBucket1,..."
-            + ",compilationCacheSizeBytes";
+            + ",prepareFromCacheP50Sec,prepareFromCacheP90Sec,prepareFromCacheP95Sec,prepareFromCacheP99Sec,prepareFromCacheP99_9Sec"
+            + ",prepareFromCacheMaxSec,prepareFromCacheHistogramSubBucketBits"
+            + ",prepareFromCacheHistogramBucketCount,prepareFromCacheHistogramBucketIndex1,prepareFromCacheHistogramBucketCount1,..."
+            + ",compilationCacheSizeBytes"
+            + ",hasLatencyTimeSeries,timeToThrottleSec,steadyStateLatencySec,degradationRatio"
+            + ",timeSeriesWindowSec,timeSeriesWindowCount"
+            + ",window1Count,window1MeanSec,window1MaxSec,..."
+            + ",hasConfidenceInterval,ciPercentile,ciConfidence,ciEstimateSec,ciLowerSec"
+            + ",ciUpperSec,warmupIterations"
+            + ",hasPhaseBreakdown,phaseCount,inputMeanSec,inputMaxSec,invokeMeanSec,invokeMaxSec"
+            + ",outputErrorMeanSec,outputErrorMaxSec,outputSaveMeanSec,outputSaveMaxSec"
+            + ",jniConversionMeanSec,jniConversionMaxSec"
+            + ",batchSize,hasBatchSizeSweep,sweepCount"
+            + ",sweep1BatchSize,sweep1ItemsPerSec,sweep1MeanBatchLatencySec,sweep1P90BatchLatencySec,..."
+            + ",hasThroughputScaling,runCount,run1InstanceCount,run1InferencesPerSec"
+            + ",run1Stream1Iterations,run1Stream1TotalTimeSec,...,run1Stream2Iterations,..."
+            + ",hasSaturationCurve,workerCount,p99LimitSec,stopReason,stepCount"
+            + ",step1OfferedQps,step1AchievedQps,step1ServiceP50Sec,step1ResponseP50Sec"
+            + ",step1ResponseP99Sec,step1Stable,..."
+            + ",quiescenceWaitSec";
 
     String deviceInfoCsvLine() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss");
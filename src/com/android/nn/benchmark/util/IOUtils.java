@@ -16,13 +16,19 @@
 
 package com.android.nn.benchmark.util;
 
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 
 /**
  * Input/Output utilities.
@@ -32,9 +38,18 @@ public final class IOUtils {
 
     /** Reads float values from a byte array. */
     public static float[] readFloats(byte[] bytes, int dataSize) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return readFloats(ByteBuffer.wrap(bytes), dataSize);
+    }
+
+    /**
+     * Reads float values from the whole capacity of a buffer, regardless of its position.
+     * The buffer itself is not modified.
+     */
+    public static float[] readFloats(ByteBuffer bytes, int dataSize) {
+        ByteBuffer buffer = bytes.duplicate();
+        buffer.clear();
         buffer.order(ByteOrder.LITTLE_ENDIAN);
-        int size = bytes.length / dataSize;
+        int size = buffer.capacity() / dataSize;
         float[] result = new float[size];
         for (int i = 0; i < size; ++i) {
             if (dataSize == 4) {
@@ -46,32 +61,155 @@ public final class IOUtils {
         return result;
     }
 
+    /**
+     * Allocates a direct buffer in native byte order. Direct buffers are at least 8 bytes
+     * aligned on Android, which covers the alignment of all tensor element types.
+     */
+    public static ByteBuffer allocateDirect(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /** Copies a range of an array into a new direct buffer. */
+    public static ByteBuffer toDirectBuffer(byte[] data, int offset, int length) {
+        ByteBuffer buffer = allocateDirect(length);
+        buffer.put(data, offset, length);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Copies an array into a new direct buffer, returns null for a null array. */
+    public static ByteBuffer toDirectBuffer(byte[] data) {
+        return data == null ? null : toDirectBuffer(data, 0, data.length);
+    }
+
+    /** Copies arrays into new direct buffers, returns null for a null array. */
+    public static ByteBuffer[] toDirectBuffers(byte[][] data) {
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer[] result = new ByteBuffer[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = toDirectBuffer(data[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a view on a range of a buffer, without copying. The view shares the content of
+     * the buffer, and its whole capacity is the range.
+     */
+    public static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer view = data.duplicate();
+        view.clear();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(data.order());
+    }
+
+    /** Copies a range of a buffer into a new direct buffer. */
+    public static ByteBuffer toDirectBuffer(ByteBuffer data, int offset, int length) {
+        ByteBuffer buffer = allocateDirect(length);
+        buffer.put(slice(data, offset, length));
+        buffer.clear();
+        return buffer;
+    }
+
     /** Reads data in native byte order */
     public static byte[] readAsset(AssetManager assetManager, String assetFilename,
                                    int dataBytesSize)
             throws IOException {
         try (InputStream in = assetManager.open(assetFilename)) {
-            byte[] buffer = new byte[8192];
+            // Asset streams know their remaining length, read directly into an array of the
+            // right size instead of copying through intermediate buffers.
+            byte[] result = new byte[Math.max(in.available(), 0)];
+            int size = 0;
             int bytesRead;
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            while ((bytesRead = in.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
+            while (true) {
+                if (size == result.length) {
+                    int next = in.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    result = Arrays.copyOf(result, Math.max(2 * result.length, 8192));
+                    result[size++] = (byte) next;
+                }
+                bytesRead = in.read(result, size, result.length - size);
+                if (bytesRead == -1) {
+                    break;
+                }
+                size += bytesRead;
+            }
+            if (size != result.length) {
+                result = Arrays.copyOf(result, size);
             }
+            swapToNativeOrder(result, dataBytesSize);
+            return result;
+        }
+    }
 
-            byte[] result = output.toByteArray();
-            // Do we need to swap data endianess?
-            if (dataBytesSize > 1 && ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
-                if (dataBytesSize == 4) {
-                    invertOrder4(result);
-                } if (dataBytesSize == 2) {
-                    invertOrder2(result);
-                } else {
-                    throw new IllegalArgumentException(
-                            "Byte order swapping for " + dataBytesSize
-                                    + " bytes is not implmemented (yet)");
+    /**
+     * Returns a read-only direct buffer with the content of an asset, in native byte order.
+     *
+     * Uncompressed assets are memory-mapped from the APK, so the data stays out of the Java
+     * heap and is paged in on demand. Compressed assets can't be mapped, they are streamed
+     * into a direct buffer instead.
+     */
+    public static ByteBuffer mapAsset(AssetManager assetManager, String assetFilename,
+                                      int dataBytesSize)
+            throws IOException {
+        if (dataBytesSize > 1 && ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            // Needs a writable copy to swap the byte order.
+            return toDirectBuffer(readAsset(assetManager, assetFilename, dataBytesSize))
+                    .asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+        AssetFileDescriptor fd;
+        try {
+            fd = assetManager.openFd(assetFilename);
+        } catch (FileNotFoundException e) {
+            // openFd fails on compressed assets.
+            return streamAsset(assetManager, assetFilename);
+        }
+        try (AssetFileDescriptor assetFd = fd;
+             FileInputStream input = new FileInputStream(assetFd.getFileDescriptor());
+             FileChannel channel = input.getChannel()) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, assetFd.getStartOffset(),
+                    assetFd.getLength()).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static ByteBuffer streamAsset(AssetManager assetManager, String assetFilename)
+            throws IOException {
+        try (InputStream in = assetManager.open(assetFilename);
+             ReadableByteChannel channel = Channels.newChannel(in)) {
+            // One spare byte, so that reaching the end doesn't need a larger buffer.
+            ByteBuffer buffer = allocateDirect(Math.max(in.available() + 1, 8192));
+            while (channel.read(buffer) != -1) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = allocateDirect(2 * buffer.capacity());
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
                 }
             }
-            return result;
+            buffer.flip();
+            // Direct buffers are used as a whole, the slice covers the asset data only.
+            return buffer.slice().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static void swapToNativeOrder(byte[] data, int dataBytesSize) {
+        // Do we need to swap data endianess?
+        if (dataBytesSize > 1 && ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            if (dataBytesSize == 4) {
+                invertOrder4(data);
+            } else if (dataBytesSize == 2) {
+                invertOrder2(data);
+            } else {
+                throw new IllegalArgumentException(
+                        "Byte order swapping for " + dataBytesSize
+                                + " bytes is not implmemented (yet)");
+            }
         }
     }
 
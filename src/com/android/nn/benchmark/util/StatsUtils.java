@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.benchmark.util;
+
+import com.android.nn.benchmark.core.ConfidenceInterval;
+import com.android.nn.benchmark.core.LatencyHistogram;
+
+/** Statistics utilities for latency measurements. */
+public final class StatsUtils {
+    private StatsUtils() {}
+
+    public static final float CONFIDENCE_95 = 0.95f;
+    /** Two-sided standard normal quantile for 95% confidence. */
+    public static final double Z_95 = 1.959964;
+
+    /** Standard normal cumulative distribution function. */
+    public static double normalCdf(double x) {
+        return 0.5 * (1.0 + erf(x / Math.sqrt(2.0)));
+    }
+
+    /** Error function, Abramowitz and Stegun 7.1.26 approximation (error < 1.5e-7). */
+    public static double erf(double x) {
+        double t = 1.0 / (1.0 + 0.3275911 * Math.abs(x));
+        double y = 1.0 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741
+                + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return x >= 0 ? y : -y;
+    }
+
+    /** Two-sided p-value of a standard normal z score. */
+    public static double twoSidedNormalPValue(double z) {
+        return Math.min(1.0, 2.0 * (1.0 - normalCdf(Math.abs(z))));
+    }
+
+    /**
+     * Asymptotic p-value of the two-sample Kolmogorov-Smirnov statistic d, for samples of
+     * sizes n1 and n2 (Numerical Recipes, probks).
+     */
+    public static double kolmogorovSmirnovPValue(double d, long n1, long n2) {
+        double en = Math.sqrt((double) n1 * n2 / (n1 + n2));
+        double lambda = (en + 0.12 + 0.11 / en) * d;
+        double sum = 0.0;
+        double sign = 2.0;
+        double previousTerm = 0.0;
+        for (int j = 1; j <= 100; j++) {
+            double term = sign * Math.exp(-2.0 * j * j * lambda * lambda);
+            sum += term;
+            if (Math.abs(term) <= 0.001 * previousTerm || Math.abs(term) <= 1e-8 * sum) {
+                return Math.max(0.0, Math.min(1.0, sum));
+            }
+            sign = -sign;
+            previousTerm = Math.abs(term);
+        }
+        // Series did not converge, happens for lambda close to 0.
+        return 1.0;
+    }
+
+    /** Batch size of the MSER-5 steady state detection. */
+    public static final int MSER_BATCH_SIZE = 5;
+    /** Minimum number of batches for MSER-5 to report a steady state. */
+    public static final int MSER_MIN_BATCHES = 10;
+
+    /**
+     * Detects the end of the initial transient of a series with MSER-5 (White, 1997).
+     *
+     * The series is split in batches of MSER_BATCH_SIZE values, and the truncation point d
+     * minimising the marginal standard error of the remaining batch means is searched in the
+     * first half of the series. If the minimum lies at the end of that half, the series is
+     * still in its transient.
+     *
+     * @return index of the first steady-state value, or -1 if no steady state was detected
+     */
+    public static int mser5TruncationPoint(float[] values, int count) {
+        int batches = count / MSER_BATCH_SIZE;
+        if (batches < MSER_MIN_BATCHES) {
+            return -1;
+        }
+        double[] batchMeans = new double[batches];
+        for (int i = 0; i < batches; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < MSER_BATCH_SIZE; j++) {
+                sum += values[i * MSER_BATCH_SIZE + j];
+            }
+            batchMeans[i] = sum / MSER_BATCH_SIZE;
+        }
+
+        // Suffix sums, so that each candidate truncation point is evaluated in O(1).
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        double bestStatistic = Double.MAX_VALUE;
+        int bestTruncation = -1;
+        for (int d = batches - 1; d >= 0; d--) {
+            sum += batchMeans[d];
+            sumOfSquares += batchMeans[d] * batchMeans[d];
+            if (d > batches / 2) {
+                continue;
+            }
+            double remaining = batches - d;
+            double sumOfSquaredDeviations = Math.max(0.0, sumOfSquares - sum * sum / remaining);
+            double statistic = sumOfSquaredDeviations / (remaining * remaining);
+            if (statistic <= bestStatistic) {
+                bestStatistic = statistic;
+                bestTruncation = d;
+            }
+        }
+        if (bestTruncation >= batches / 2) {
+            return -1;
+        }
+        return bestTruncation * MSER_BATCH_SIZE;
+    }
+
+    /**
+     * Confidence interval of the mean, using the normal approximation.
+     *
+     * @param count number of samples, at least 2
+     * @param sum sum of the samples
+     * @param sumOfSquares sum of the squared samples
+     */
+    public static ConfidenceInterval meanConfidenceInterval(
+            long count, double sum, double sumOfSquares) {
+        if (count < 2) {
+            throw new IllegalArgumentException("At least 2 samples needed, got " + count);
+        }
+        double mean = sum / count;
+        double variance = Math.max(0.0, (sumOfSquares - sum * mean) / (count - 1));
+        double halfWidth = Z_95 * Math.sqrt(variance / count);
+        return new ConfidenceInterval(ConfidenceInterval.MEAN, CONFIDENCE_95, (float) mean,
+                (float) (mean - halfWidth), (float) (mean + halfWidth));
+    }
+
+    /**
+     * Distribution-free confidence interval of a percentile (0..100), from the order
+     * statistics around its rank. Resolution is limited by the histogram buckets.
+     */
+    public static ConfidenceInterval percentileConfidenceInterval(
+            LatencyHistogram histogram, float percentile) {
+        long n = histogram.getTotalCount();
+        if (n == 0) {
+            throw new IllegalArgumentException("Empty histogram");
+        }
+        double p = percentile / 100.0;
+        double halfWidthRanks = Z_95 * Math.sqrt(n * p * (1.0 - p));
+        long lowerRank = Math.max(1, (long) Math.floor(n * p - halfWidthRanks));
+        long upperRank = Math.min(n, (long) Math.ceil(n * p + halfWidthRanks) + 1);
+        return new ConfidenceInterval(percentile, CONFIDENCE_95,
+                histogram.getValueAtPercentileSec(percentile),
+                histogram.getValueAtRankSec(lowerRank),
+                histogram.getValueAtRankSec(upperRank));
+    }
+}
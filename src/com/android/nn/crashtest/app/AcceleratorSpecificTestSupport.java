@@ -23,6 +23,7 @@ import androidx.test.InstrumentationRegistry;
 
 import com.android.nn.benchmark.core.BenchmarkException;
 import com.android.nn.benchmark.core.BenchmarkResult;
+import com.android.nn.benchmark.core.CompiledModelPool;
 import com.android.nn.benchmark.core.NNTestBase;
 import com.android.nn.benchmark.core.NnApiDelegationFailure;
 import com.android.nn.benchmark.core.Processor;
@@ -126,6 +127,8 @@ public interface AcceleratorSpecificTestSupport {
             mProcessor.setTfLiteBackend(TfLiteBackend.NNAPI);
             mProcessor.setCompleteInputSet(false);
             mProcessor.setNnApiAcceleratorName(acceleratorName);
+            // Only checks that inferences keep running, no need to recompile every time.
+            mProcessor.setCompiledModelPool(CompiledModelPool.getInstance());
             mTestModelEntry = testModelEntry;
         }
 
@@ -135,22 +138,28 @@ public interface AcceleratorSpecificTestSupport {
 
         @Override
         public Boolean call() throws Exception {
-            while (mRun.get()) {
-                try {
-                    BenchmarkResult modelExecutionResult = mProcessor.getInstrumentationResult(
-                            mTestModelEntry, 0, 3);
-                    if (modelExecutionResult.hasBenchmarkError()) {
-                        Log.e(TAG, String.format("Benchmark failed with message %s",
-                                modelExecutionResult.getBenchmarkError()));
+            try {
+                while (mRun.get()) {
+                    try {
+                        BenchmarkResult modelExecutionResult =
+                                mProcessor.getInstrumentationResult(mTestModelEntry, 0, 3);
+                        if (modelExecutionResult.hasBenchmarkError()) {
+                            Log.e(TAG, String.format("Benchmark failed with message %s",
+                                    modelExecutionResult.getBenchmarkError()));
+                            return false;
+                        }
+                    } catch (IOException | BenchmarkException e) {
+                        Log.e(TAG, String.format("Error running model %s",
+                                mTestModelEntry.mModelName));
                         return false;
                     }
-                } catch (IOException | BenchmarkException e) {
-                    Log.e(TAG, String.format("Error running model %s", mTestModelEntry.mModelName));
-                    return false;
                 }
-            }
 
-            return true;
+                return true;
+            } finally {
+                // Don't keep the compiled model once the check is over.
+                CompiledModelPool.getInstance().clear();
+            }
         }
     }
 }
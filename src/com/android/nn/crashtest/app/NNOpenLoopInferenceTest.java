@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.crashtest.app;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.UiThreadTest;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.android.nn.benchmark.app.BenchmarkTestBase;
+import com.android.nn.benchmark.core.NnApiDelegationFailure;
+import com.android.nn.benchmark.core.OpenLoopLoadGenerator.ArrivalProcess;
+import com.android.nn.benchmark.core.TestModels;
+import com.android.nn.benchmark.core.TfLiteBackend;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+
+/** Runs a model supported by each accelerator under open-loop load, see RunModelsOpenLoop. */
+@RunWith(Parameterized.class)
+public class NNOpenLoopInferenceTest
+        extends ActivityInstrumentationTestCase2<NNParallelTestActivity>
+        implements AcceleratorSpecificTestSupport {
+    static final String TAG = "NNOpenLoopInferenceTest";
+
+    @Rule
+    public TestName mTestName = new TestName();
+
+    private final int mWorkerCount;
+    private final float mQps;
+    private final Duration mTestDuration;
+    private final String mAcceleratorName;
+
+    public NNOpenLoopInferenceTest(int workerCount, float qps, Duration testDuration,
+            String acceleratorName) {
+        super(NNParallelTestActivity.class);
+        mWorkerCount = workerCount;
+        mQps = qps;
+        mTestDuration = testDuration;
+        mAcceleratorName = acceleratorName;
+    }
+
+    @Before
+    @Override
+    public void setUp() {
+        injectInstrumentation(InstrumentationRegistry.getInstrumentation());
+        BenchmarkTestBase.waitUntilCharged(getInstrumentation().getTargetContext(), 90);
+        try {
+            setActivityIntent(runSupportedModelOpenLoopOnAccelerator(mWorkerCount, mQps,
+                    mTestDuration, mAcceleratorName));
+        } catch (NnApiDelegationFailure nnApiDelegationFailure) {
+            throw new RuntimeException(
+                    "Cannot initialize test, failure looking for supported models, please check "
+                            + "the driver status",
+                    nnApiDelegationFailure);
+        }
+    }
+
+    @Test
+    @LargeTest
+    @UiThreadTest
+    public void shouldNotFailUnderOpenLoopLoad() {
+        Bundle testData = new Bundle();
+        testData.putString("Test name", mTestName.getMethodName());
+        testData.putString("Test status", "Started");
+        getInstrumentation().sendStatus(Activity.RESULT_FIRST_USER, testData);
+
+        CrashTestStatus.TestResult testResult = getActivity().testResult();
+        assertEquals("Test didn't complete successfully", CrashTestStatus.TestResult.SUCCESS,
+                testResult);
+
+        testData.putString("Test status", "Completed");
+        getInstrumentation().sendStatus(Activity.RESULT_OK, testData);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        Log.i(TAG, "Tearing down test");
+        super.tearDown();
+    }
+
+    @Parameters(name = "{0} workers at {1} QPS for {2} on accelerator {3}")
+    public static Iterable<Object[]> loadValues() {
+        return AcceleratorSpecificTestSupport.perAcceleratorTestConfig(
+                Arrays.asList(
+                        new Object[]{2, 20.0f, Duration.ofMinutes(1)},
+                        new Object[]{4, 50.0f, Duration.ofMinutes(1)}));
+    }
+
+    private Intent runSupportedModelOpenLoopOnAccelerator(int workerCount, float qps,
+            Duration testDuration, String acceleratorName) throws NnApiDelegationFailure {
+        Optional<TestModels.TestModelEntry> model =
+                AcceleratorSpecificTestSupport.findTestModelRunningOnAccelerator(
+                        getInstrumentation().getTargetContext(), acceleratorName);
+        assertTrue("No model available to be run on accelerator " + acceleratorName,
+                model.isPresent());
+
+        Intent intent = new Intent();
+        intent.putExtra(NNParallelTestActivity.EXTRA_TEST_LIST,
+                new int[]{TestModels.modelsList().indexOf(model.get())});
+        intent.putExtra(NNParallelTestActivity.EXTRA_THREAD_COUNT, workerCount);
+        intent.putExtra(NNParallelTestActivity.EXTRA_OPEN_LOOP_QPS, qps);
+        intent.putExtra(NNParallelTestActivity.EXTRA_ARRIVAL_PROCESS,
+                ArrivalProcess.POISSON.name());
+        intent.putExtra(NNParallelTestActivity.EXTRA_TFLITE_BACKEND, TfLiteBackend.NNAPI.name());
+        intent.putExtra(NNParallelTestActivity.EXTRA_TEST_DURATION_MILLIS, testDuration.toMillis());
+        intent.putExtra(NNParallelTestActivity.EXTRA_RUN_IN_SEPARATE_PROCESS, true);
+        intent.putExtra(NNParallelTestActivity.EXTRA_TEST_NAME, mTestName.getMethodName());
+        intent.putExtra(NNParallelTestActivity.EXTRA_ACCELERATOR_NAME, acceleratorName);
+        return intent;
+    }
+}
@@ -55,6 +55,12 @@ abstract class NNParallelInferenceTest
 
     protected abstract boolean runTestsInSeparateProcess();
 
+    // Relative share of the work of each model, null to run all the models in order on each
+    // thread.
+    protected int[] modelWeights(int modelsCount) {
+        return null;
+    }
+
     protected NNParallelInferenceTest(int threadCount, Duration testDuration,
             String acceleratorName) {
         super(NNParallelTestActivity.class);
@@ -120,6 +126,10 @@ abstract class NNParallelInferenceTest
         intent.putExtra(
                 NNParallelTestActivity.EXTRA_TEST_LIST, IntStream.range(0, modelsCount).toArray());
         intent.putExtra(NNParallelTestActivity.EXTRA_THREAD_COUNT, threadCount);
+        int[] modelWeights = modelWeights(modelsCount);
+        if (modelWeights != null) {
+            intent.putExtra(NNParallelTestActivity.EXTRA_MODEL_WEIGHTS, modelWeights);
+        }
         intent.putExtra(NNParallelTestActivity.EXTRA_TEST_DURATION_MILLIS, testDuration.toMillis());
         intent.putExtra(NNParallelTestActivity.EXTRA_RUN_IN_SEPARATE_PROCESS,
                 runTestsInSeparateProcess());
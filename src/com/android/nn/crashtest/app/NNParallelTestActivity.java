@@ -33,8 +33,11 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import com.android.nn.benchmark.app.R;
+import com.android.nn.benchmark.core.OpenLoopLoadGenerator.ArrivalProcess;
+import com.android.nn.benchmark.core.TfLiteBackend;
 import com.android.nn.crashtest.core.CrashTestCoordinator;
 import com.android.nn.crashtest.core.test.RunModelsInParallel;
+import com.android.nn.crashtest.core.test.RunModelsOpenLoop;
 
 import java.time.Duration;
 
@@ -53,6 +56,16 @@ public class NNParallelTestActivity extends Activity {
     public static final String EXTRA_IGNORE_UNSUPPORTED_MODELS = "ignore_unsupported_models";
     public static final String EXTRA_RUN_MODEL_COMPILATION_ONLY = "run_model_compilation_only";
     public static final String EXTRA_MEMORY_MAP_MODEL = "memory_map_model";
+    // Relative share of the work of each model of the test list, the threads run all the
+    // models in order if not set.
+    public static final String EXTRA_MODEL_WEIGHTS = "model_weights";
+    // If set, the models are run one after the other with requests issued at this rate into
+    // thread_count instances of the model, instead of in a closed loop on each thread.
+    public static final String EXTRA_OPEN_LOOP_QPS = "open_loop_qps";
+    // Name of an OpenLoopLoadGenerator.ArrivalProcess, Poisson arrivals if not set.
+    public static final String EXTRA_ARRIVAL_PROCESS = "arrival_process";
+    // Name of the TfLiteBackend of open-loop tests, NNAPI if not set.
+    public static final String EXTRA_TFLITE_BACKEND = "tflite_backend";
 
     // Not using AtomicBoolean to have the concept of unset status
     private CrashTestCoordinator mCoordinator;
@@ -113,10 +126,33 @@ public class NNParallelTestActivity extends Activity {
         final boolean runModelCompilationOnly = intent.getBooleanExtra(
                 EXTRA_RUN_MODEL_COMPILATION_ONLY, false);
 
+        final int[] modelWeights = intent.getIntArrayExtra(EXTRA_MODEL_WEIGHTS);
+
+        final float openLoopQps = intent.getFloatExtra(EXTRA_OPEN_LOOP_QPS, 0.0f);
+        if (openLoopQps > 0.0f) {
+            String arrivalProcess = intent.getStringExtra(EXTRA_ARRIVAL_PROCESS);
+            String backend = intent.getStringExtra(EXTRA_TFLITE_BACKEND);
+            mCoordinator.startTest(RunModelsOpenLoop.class,
+                RunModelsOpenLoop.intentInitializer(testList, openLoopQps,
+                    arrivalProcess != null
+                        ? ArrivalProcess.valueOf(arrivalProcess) : ArrivalProcess.POISSON,
+                    threadCount,
+                    backend != null ? TfLiteBackend.valueOf(backend) : TfLiteBackend.NNAPI,
+                    Duration.ofMillis(testDurationMillis), mTestName, acceleratorName,
+                    ignoreUnsupportedModels, mmapModel),
+                mTestStatus, runInSeparateProcess, mTestName);
+            mStopTestButton.setEnabled(true);
+            return;
+        }
+
         mCoordinator.startTest(RunModelsInParallel.class,
-            RunModelsInParallel.intentInitializer(testList, threadCount,
-                Duration.ofMillis(testDurationMillis), mTestName, acceleratorName,
-                ignoreUnsupportedModels, runModelCompilationOnly, mmapModel),
+            modelWeights != null
+                ? RunModelsInParallel.intentInitializer(testList, modelWeights, threadCount,
+                    Duration.ofMillis(testDurationMillis), mTestName, acceleratorName,
+                    ignoreUnsupportedModels, runModelCompilationOnly, mmapModel)
+                : RunModelsInParallel.intentInitializer(testList, threadCount,
+                    Duration.ofMillis(testDurationMillis), mTestName, acceleratorName,
+                    ignoreUnsupportedModels, runModelCompilationOnly, mmapModel),
             mTestStatus, runInSeparateProcess, mTestName);
 
         mStopTestButton.setEnabled(true);
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.crashtest.app;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.time.Duration;
+import java.util.stream.IntStream;
+
+@RunWith(Parameterized.class)
+public class NNParallelWeightedInferenceTest extends NNParallelInferenceTest {
+    public NNParallelWeightedInferenceTest(int threadCount, Duration testDuration,
+            String acceleratorName) {
+        super(threadCount, testDuration, acceleratorName);
+    }
+
+    @Override
+    protected boolean runTestsInSeparateProcess() {
+        return true;
+    }
+
+    // Uneven mix, so that the threads have to steal work from the heavier models.
+    @Override
+    protected int[] modelWeights(int modelsCount) {
+        return IntStream.range(0, modelsCount).map(i -> i % 3 + 1).toArray();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.crashtest.core.test;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.nn.benchmark.core.BenchmarkException;
+import com.android.nn.benchmark.core.CompiledModelPool;
+import com.android.nn.benchmark.core.InferenceInOutSequence;
+import com.android.nn.benchmark.core.NNTestBase;
+import com.android.nn.benchmark.core.TestModels.TestModelEntry;
+import com.android.nn.benchmark.core.TfLiteBackend;
+import com.android.nn.crashtest.core.CrashTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a weighted mix of models on a pool of threads.
+ *
+ * The work is split in units of a few inference sequences, kept in a shared queue per model.
+ * The queues are refilled in rounds, each model getting as many units per round as its
+ * weight, so that the models run in the given proportions whatever their inference time.
+ * Every thread starts on a different model and keeps taking units of the model it has loaded;
+ * once that queue is empty it steals from the model with the most units left. Models are
+ * leased from the {@link CompiledModelPool}, so that switching back to a model doesn't
+ * recompile it, except when only compiling models.
+ */
+public class ModelWorkScheduler {
+    private static final String TAG = CrashTest.TAG;
+
+    public static final int DEFAULT_SEQUENCES_PER_UNIT = 10;
+    private static final float MAX_UNIT_TIME_SEC = 60.0f;
+
+    private final Context mContext;
+    private final List<TestModelEntry> mModels;
+    private final int[] mWeights;
+    private final int mThreadCount;
+    private final String mAcceleratorName;
+    private final boolean mIgnoreUnsupportedModels;
+    private final boolean mRunModelCompilationOnly;
+    private final boolean mMmapModel;
+    private int mSequencesPerUnit = DEFAULT_SEQUENCES_PER_UNIT;
+
+    // Guarded by this.
+    private final int[] mPendingUnits;
+    private final boolean[] mUnsupported;
+    private long mDeadlineNanos;
+    private volatile boolean mStopped;
+
+    // Row per thread, each written only by its thread.
+    private final long[][] mCompletedInferences;
+    private final long[] mSteals;
+    private final long[] mFailures;
+
+    public ModelWorkScheduler(Context context, List<TestModelEntry> models, int[] weights,
+            int threadCount, String acceleratorName, boolean ignoreUnsupportedModels,
+            boolean runModelCompilationOnly, boolean mmapModel) {
+        if (weights.length != models.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "%d weights for %d models", weights.length, models.size()));
+        }
+        int totalWeight = 0;
+        for (int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Invalid model weight " + weight);
+            }
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("No model with a positive weight");
+        }
+        mContext = context;
+        mModels = new ArrayList<>(models);
+        mWeights = weights.clone();
+        mThreadCount = threadCount;
+        mAcceleratorName = acceleratorName;
+        mIgnoreUnsupportedModels = ignoreUnsupportedModels;
+        mRunModelCompilationOnly = runModelCompilationOnly;
+        mMmapModel = mmapModel;
+        mPendingUnits = new int[models.size()];
+        mUnsupported = new boolean[models.size()];
+        mCompletedInferences = new long[threadCount][models.size()];
+        mSteals = new long[threadCount];
+        mFailures = new long[threadCount];
+    }
+
+    /**
+     * Number of input sequences run by a unit of work. A unit is a single compilation if only
+     * compiling models.
+     */
+    public void setSequencesPerUnit(int sequencesPerUnit) {
+        if (sequencesPerUnit < 1) {
+            throw new IllegalArgumentException("Invalid unit size " + sequencesPerUnit);
+        }
+        mSequencesPerUnit = sequencesPerUnit;
+    }
+
+    /**
+     * Runs the mix on the executor, which must have at least threadCount threads, for
+     * durationMillis or until {@link #stop()}, and waits for the threads to complete their
+     * last unit.
+     *
+     * @return true if no unit failed
+     */
+    public boolean run(ExecutorService executor, long durationMillis) {
+        synchronized (this) {
+            mDeadlineNanos = System.nanoTime() + durationMillis * 1000000L;
+            refill();
+        }
+        List<Future<?>> threads = new ArrayList<>();
+        for (int i = 0; i < mThreadCount; i++) {
+            final int thread = i;
+            threads.add(executor.submit(() -> work(thread)));
+        }
+        boolean success = true;
+        for (Future<?> thread : threads) {
+            try {
+                thread.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Scheduler thread failed", e.getCause());
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+                return false;
+            }
+        }
+        for (long failures : mFailures) {
+            success &= failures == 0;
+        }
+        return success;
+    }
+
+    /** Makes the threads stop after their current unit. */
+    public void stop() {
+        mStopped = true;
+    }
+
+    private void work(int thread) {
+        CompiledModelPool.Lease lease = null;
+        int loadedModel = -1;
+        // Threads start on different models, in the order of the list.
+        int model = firstModel(thread);
+        try {
+            while ((model = takeUnit(thread, model)) != -1) {
+                if (mRunModelCompilationOnly) {
+                    try (NNTestBase compiled = createTest(model)) {
+                        if (compiled != null) {
+                            mCompletedInferences[thread][model]++;
+                        } else {
+                            model = -1;
+                        }
+                    }
+                    continue;
+                }
+                if (model != loadedModel) {
+                    // Returned to the pool, the thread that steals it next skips compiling.
+                    if (lease != null) {
+                        lease.close();
+                        lease = null;
+                    }
+                    lease = leaseTest(model);
+                    if (lease == null) {
+                        // Moving on from an unsupported model is not a steal.
+                        loadedModel = -1;
+                        model = -1;
+                        continue;
+                    }
+                    loadedModel = model;
+                }
+                runUnit(thread, model, lease.get());
+            }
+        } catch (IOException | BenchmarkException e) {
+            Log.e(TAG, String.format("Thread %d failed running %s", thread,
+                    model != -1 ? mModels.get(model).mModelName : "models"), e);
+            mFailures[thread]++;
+            if (lease != null) {
+                lease.discard();
+            }
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    private int firstModel(int thread) {
+        int candidate = thread % mModels.size();
+        for (int i = 0; i < mModels.size(); i++) {
+            int model = (candidate + i) % mModels.size();
+            if (mWeights[model] > 0) {
+                return model;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the model of the next unit, the current one if it has work left, or -1 once the
+    // time is up.
+    private synchronized int takeUnit(int thread, int currentModel) {
+        if (mStopped || System.nanoTime() >= mDeadlineNanos) {
+            return -1;
+        }
+        if (largestBacklog() == -1) {
+            refill();
+        }
+        if (currentModel != -1 && mPendingUnits[currentModel] > 0) {
+            mPendingUnits[currentModel]--;
+            return currentModel;
+        }
+        int stolenModel = largestBacklog();
+        if (stolenModel == -1) {
+            // All the models are unsupported.
+            return -1;
+        }
+        if (currentModel != -1) {
+            mSteals[thread]++;
+        }
+        mPendingUnits[stolenModel]--;
+        return stolenModel;
+    }
+
+    // Lowest index on ties, for reproducible schedules.
+    private int largestBacklog() {
+        int result = -1;
+        for (int model = 0; model < mModels.size(); model++) {
+            if (mPendingUnits[model] > 0
+                    && (result == -1 || mPendingUnits[model] > mPendingUnits[result])) {
+                result = model;
+            }
+        }
+        return result;
+    }
+
+    private void refill() {
+        for (int model = 0; model < mModels.size(); model++) {
+            mPendingUnits[model] = mUnsupported[model] ? 0 : mWeights[model];
+        }
+    }
+
+    private synchronized void markUnsupported(int model) {
+        mUnsupported[model] = true;
+        mPendingUnits[model] = 0;
+    }
+
+    // Returns null if the model is not supported and unsupported models are ignored.
+    private NNTestBase createTest(int model) throws IOException, BenchmarkException {
+        TestModelEntry entry = mModels.get(model);
+        NNTestBase test = entry.createNNTestBase(TfLiteBackend.NNAPI,
+                /*enableIntermediateTensorsDump=*/false, mMmapModel);
+        test.setNNApiDeviceName(mAcceleratorName);
+        boolean supported;
+        try {
+            supported = test.setupModel(mContext);
+        } catch (IOException | BenchmarkException e) {
+            test.destroy();
+            throw e;
+        }
+        if (!supported) {
+            test.destroy();
+            skipUnsupported(model);
+            return null;
+        }
+        return test;
+    }
+
+    // Returns null if the model is not supported and unsupported models are ignored.
+    private CompiledModelPool.Lease leaseTest(int model) throws IOException, BenchmarkException {
+        CompiledModelPool.Lease lease = CompiledModelPool.getInstance().lease(mContext,
+                mModels.get(model), TfLiteBackend.NNAPI, mAcceleratorName, mMmapModel);
+        if (lease == null) {
+            skipUnsupported(model);
+        }
+        return lease;
+    }
+
+    private void skipUnsupported(int model) throws BenchmarkException {
+        String modelName = mModels.get(model).mModelName;
+        if (!mIgnoreUnsupportedModels) {
+            throw new BenchmarkException("Cannot initialise model " + modelName);
+        }
+        Log.i(TAG, "Skipping unsupported model " + modelName);
+        markUnsupported(model);
+    }
+
+    private void runUnit(int thread, int model, NNTestBase test)
+            throws IOException, BenchmarkException {
+        List<InferenceInOutSequence> ios = test.getInputOutputAssets();
+        float remainingSec;
+        synchronized (this) {
+            remainingSec = Math.max(0, mDeadlineNanos - System.nanoTime()) / 1e9f;
+        }
+        int flags = test.getDefaultFlags() | NNTestBase.FLAG_DISCARD_INFERENCE_OUTPUT
+                | NNTestBase.FLAG_IGNORE_GOLDEN_OUTPUT;
+        mCompletedInferences[thread][model] += test.runBenchmark(ios, mSequencesPerUnit,
+                Math.min(remainingSec, MAX_UNIT_TIME_SEC), flags).second.size();
+    }
+
+    public int getModelCount() {
+        return mModels.size();
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** Inferences completed for the model by all the threads, compilations if only compiling. */
+    public long getModelCompletedInferences(int model) {
+        long result = 0;
+        for (long[] threadCounts : mCompletedInferences) {
+            result += threadCounts[model];
+        }
+        return result;
+    }
+
+    /** Inferences completed by the thread for all the models. */
+    public long getThreadCompletedInferences(int thread) {
+        long result = 0;
+        for (long count : mCompletedInferences[thread]) {
+            result += count;
+        }
+        return result;
+    }
+
+    /** Times the thread switched model because the queue of its model was empty. */
+    public long getThreadSteals(int thread) {
+        return mSteals[thread];
+    }
+
+    /** Formats the completed inference counts per model and per thread. */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (int model = 0; model < mModels.size(); model++) {
+            sb.append(String.format("%s (weight %d): %d inferences%n",
+                    mModels.get(model).mModelName, mWeights[model],
+                    getModelCompletedInferences(model)));
+        }
+        for (int thread = 0; thread < mThreadCount; thread++) {
+            sb.append(String.format("Thread %d: %d inferences, %d steals%n", thread,
+                    getThreadCompletedInferences(thread), mSteals[thread]));
+        }
+        return sb.toString();
+    }
+}
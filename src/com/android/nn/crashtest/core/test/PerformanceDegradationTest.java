@@ -23,6 +23,7 @@ import android.util.Log;
 
 import com.android.nn.benchmark.core.BenchmarkException;
 import com.android.nn.benchmark.core.BenchmarkResult;
+import com.android.nn.benchmark.core.LatencyComparison;
 import com.android.nn.benchmark.core.Processor;
 import com.android.nn.benchmark.core.TestModels;
 import com.android.nn.benchmark.core.TfLiteBackend;
@@ -64,6 +65,9 @@ public class PerformanceDegradationTest implements CrashTest {
     public static final int DEFAULT_THREAD_COUNT = 5;
     public static final String MAX_PERFORMANCE_DEGRADATION = "max_performance_degradation";
     public static final int DEFAULT_MAX_PERFORMANCE_DEGRADATION_PERCENTAGE = 100;
+    public static final String SIGNIFICANCE_LEVEL = "significance_level";
+    public static final float DEFAULT_SIGNIFICANCE_LEVEL =
+            LatencyComparison.DEFAULT_SIGNIFICANCE_LEVEL;
     public static final String TEST_NAME = "test_name";
     private static final long INTERVAL_BETWEEN_PERFORMANCE_MEASUREMENTS_MS = 500;
 
@@ -80,6 +84,16 @@ public class PerformanceDegradationTest implements CrashTest {
         };
     }
 
+    static public CrashTestCoordinator.CrashTestIntentInitializer intentInitializer(
+            float warmupTimeSeconds, float runTimeSeconds, String acceleratorName, int threadCount,
+            int maxPerformanceDegradationPercent, float significanceLevel, String testName) {
+        return intent -> {
+            intentInitializer(warmupTimeSeconds, runTimeSeconds, acceleratorName, threadCount,
+                    maxPerformanceDegradationPercent, testName).addIntentParams(intent);
+            intent.putExtra(SIGNIFICANCE_LEVEL, significanceLevel);
+        };
+    }
+
     static public CrashTestCoordinator.CrashTestIntentInitializer intentInitializer(
             Intent copyFrom) {
         return intentInitializer(
@@ -89,6 +103,7 @@ public class PerformanceDegradationTest implements CrashTest {
                 copyFrom.getIntExtra(THREAD_COUNT, DEFAULT_THREAD_COUNT),
                 copyFrom.getIntExtra(MAX_PERFORMANCE_DEGRADATION,
                         DEFAULT_MAX_PERFORMANCE_DEGRADATION_PERCENTAGE),
+                copyFrom.getFloatExtra(SIGNIFICANCE_LEVEL, DEFAULT_SIGNIFICANCE_LEVEL),
                 copyFrom.getStringExtra(TEST_NAME));
     }
 
@@ -98,6 +113,7 @@ public class PerformanceDegradationTest implements CrashTest {
     private String mAcceleratorName;
     private int mThreadCount;
     private int mMaxPerformanceDegradationPercent;
+    private float mSignificanceLevel;
     private String mTestName;
 
     @Override
@@ -111,6 +127,8 @@ public class PerformanceDegradationTest implements CrashTest {
         mThreadCount = configParams.getIntExtra(THREAD_COUNT, DEFAULT_THREAD_COUNT);
         mMaxPerformanceDegradationPercent = configParams.getIntExtra(MAX_PERFORMANCE_DEGRADATION,
                 DEFAULT_MAX_PERFORMANCE_DEGRADATION_PERCENTAGE);
+        mSignificanceLevel = configParams.getFloatExtra(SIGNIFICANCE_LEVEL,
+                DEFAULT_SIGNIFICANCE_LEVEL);
         mTestName = configParams.getStringExtra(TEST_NAME);
     }
 
@@ -214,9 +232,21 @@ public class PerformanceDegradationTest implements CrashTest {
                 mTestName, mAcceleratorName, mThreadCount, performanceDegradation,
                 mMaxPerformanceDegradationPercent));
 
-        if (performanceDegradation > mMaxPerformanceDegradationPercent) {
-            return failure(String.format("Performance degradation is %d%%. Max acceptable is %d%%",
-                    performanceDegradation, mMaxPerformanceDegradationPercent));
+        // Only fail when the slowdown is statistically significant and the whole confidence
+        // interval of the median ratio is above the threshold, so that normal device noise
+        // doesn't make the test flaky.
+        LatencyComparison comparison = benchmarkWithOtherCompilingThread.compareLatencyTo(
+                baseline);
+        Log.i(TAG, String.format("%s: %s", mTestName, comparison));
+        double maxRatio = 1.0 + mMaxPerformanceDegradationPercent / 100.0;
+        if (comparison.isSlowerBy(maxRatio, mSignificanceLevel)) {
+            return failure(String.format(
+                    "Performance degradation of the median is %d%% (95%% CI %d%%..%d%%, "
+                            + "Mann-Whitney p=%.4f). Max acceptable is %d%%",
+                    (int) ((comparison.mMedianRatio - 1.0) * 100),
+                    (int) ((comparison.mMedianRatioLower - 1.0) * 100),
+                    (int) ((comparison.mMedianRatioUpper - 1.0) * 100),
+                    comparison.mMannWhitneyPValue, mMaxPerformanceDegradationPercent));
         }
 
         return success();
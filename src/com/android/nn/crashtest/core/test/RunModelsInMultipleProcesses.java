@@ -180,7 +180,7 @@ public class RunModelsInMultipleProcesses implements CrashTest {
     try (FileOutputStream inputDataWriter = new FileOutputStream(targetInputFile)) {
       for (InferenceInOutSequence inferenceInOutSequence : inputOutputAssets) {
         for (int i = 0; i < inferenceInOutSequence.size(); i++) {
-          byte[] input = inferenceInOutSequence.get(i).mInput;
+          ByteBuffer input = inferenceInOutSequence.get(i).mInput;
           final InferenceInOut.InputCreatorInterface creator =
               inferenceInOutSequence.get(i).mInputCreator;
           if (input == null && creator != null) {
@@ -188,13 +188,17 @@ public class RunModelsInMultipleProcesses implements CrashTest {
             for (int dimensionSize : inputShape) {
               byteSize *= dimensionSize;
             }
-            input = new byte[byteSize];
-            ByteBuffer buffer = ByteBuffer.wrap(input);
-            creator.createInput(buffer);
+            input = ByteBuffer.allocate(byteSize);
+            creator.createInput(input);
           }
           if (input != null) {
             hasContent = true;
-            inputDataWriter.write(input);
+            // The whole buffer is the input, independently of its position.
+            ByteBuffer data = input.duplicate();
+            data.clear();
+            while (data.hasRemaining()) {
+              inputDataWriter.getChannel().write(data);
+            }
           }
         }
       }
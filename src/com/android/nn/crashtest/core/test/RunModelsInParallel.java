@@ -23,7 +23,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.android.nn.benchmark.core.CompiledModelPool;
 import com.android.nn.benchmark.core.Processor;
+import com.android.nn.benchmark.core.TestModels;
 import com.android.nn.crashtest.core.CrashTest;
 import com.android.nn.crashtest.core.CrashTestCoordinator.CrashTestIntentInitializer;
 import com.android.nn.benchmark.core.TfLiteBackend;
@@ -51,6 +53,7 @@ public class RunModelsInParallel implements CrashTest {
     private static final String IGNORE_UNSUPPORTED_MODELS = "ignore_unsupported_models";
     private static final String RUN_MODEL_COMPILATION_ONLY = "run_model_compilation_only";
     private static final String MEMORY_MAP_MODEL = "memory_map_model";
+    private static final String MODEL_WEIGHTS = "model_weights";
 
     private final Set<Processor> activeTests = new HashSet<>();
     private final List<Boolean> mTestCompletionResults = Collections.synchronizedList(
@@ -67,6 +70,7 @@ public class RunModelsInParallel implements CrashTest {
     private CountDownLatch mParallelTestComplete;
     private ProgressListener mProgressListener;
     private boolean mMmapModel;
+    private int[] mModelWeights;
 
     static public CrashTestIntentInitializer intentInitializer(int[] models, int threadCount,
             Duration duration, String testName, String acceleratorName,
@@ -84,6 +88,24 @@ public class RunModelsInParallel implements CrashTest {
         };
     }
 
+    /**
+     * Same as {@link #intentInitializer(int[], int, Duration, String, String, boolean, boolean,
+     * boolean)}, the threads share the models through a {@link ModelWorkScheduler}, each model
+     * getting work in proportion to its weight, instead of each running all the models in order.
+     */
+    static public CrashTestIntentInitializer intentInitializer(int[] models, int[] modelWeights,
+            int threadCount, Duration duration, String testName, String acceleratorName,
+            boolean ignoreUnsupportedModels,
+            boolean runModelCompilationOnly, boolean mmapModel) {
+        CrashTestIntentInitializer initializer = intentInitializer(models, threadCount, duration,
+                testName, acceleratorName, ignoreUnsupportedModels, runModelCompilationOnly,
+                mmapModel);
+        return intent -> {
+            initializer.addIntentParams(intent);
+            intent.putExtra(MODEL_WEIGHTS, modelWeights);
+        };
+    }
+
     @Override
     public void init(Context context, Intent configParams,
             Optional<ProgressListener> progressListener) {
@@ -96,6 +118,7 @@ public class RunModelsInParallel implements CrashTest {
                 IGNORE_UNSUPPORTED_MODELS, false);
         mRunModelCompilationOnly = configParams.getBooleanExtra(RUN_MODEL_COMPILATION_ONLY, false);
         mMmapModel = configParams.getBooleanExtra(MEMORY_MAP_MODEL, false);
+        mModelWeights = configParams.getIntArrayExtra(MODEL_WEIGHTS);
         mContext = context;
         mProgressListener = progressListener.orElseGet(() -> (Optional<String> message) -> {
             Log.v(CrashTest.TAG, message.orElse("."));
@@ -106,6 +129,9 @@ public class RunModelsInParallel implements CrashTest {
 
     @Override
     public Optional<String> call() {
+        if (mModelWeights != null) {
+            return runScheduledModels();
+        }
         mParallelTestComplete = new CountDownLatch(mThreadCount);
         for (int i = 0; i < mThreadCount; i++) {
             Processor testProcessor = createSubTestRunner(mTestList, i);
@@ -117,6 +143,30 @@ public class RunModelsInParallel implements CrashTest {
         return completedSuccessfully();
     }
 
+    @SuppressLint("DefaultLocale")
+    private Optional<String> runScheduledModels() {
+        List<TestModels.TestModelEntry> models = new ArrayList<>();
+        for (int testIndex : mTestList) {
+            models.add(TestModels.modelsList().get(testIndex));
+        }
+        ModelWorkScheduler scheduler = new ModelWorkScheduler(mContext, models, mModelWeights,
+                mThreadCount, mAcceleratorName, mIgnoreUnsupportedModels,
+                mRunModelCompilationOnly, mMmapModel);
+        boolean success = scheduler.run(mExecutorService, mTestDurationMillis);
+        mExecutorService.shutdown();
+        // The models the threads returned to the pool are not used after the test.
+        CompiledModelPool.getInstance().clear();
+        notifyProgress("Test '%s': Completed work per model and thread:%n%s", mTestName,
+                scheduler.summary());
+        if (!success) {
+            String failureMsg = String.format("Test '%s': Scheduled models failed", mTestName);
+            Log.w(CrashTest.TAG, failureMsg);
+            return failure(failureMsg);
+        }
+        Log.i(CrashTest.TAG, String.format("Test '%s': Test completed successfully", mTestName));
+        return success();
+    }
+
     private Processor createSubTestRunner(final int[] testList, final int testIndex) {
         final Processor result = new Processor(mContext, new Processor.Callback() {
             @SuppressLint("DefaultLocale")
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nn.crashtest.core.test;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.android.nn.benchmark.core.BenchmarkException;
+import com.android.nn.benchmark.core.NNTestBase;
+import com.android.nn.benchmark.core.OpenLoopLoadGenerator;
+import com.android.nn.benchmark.core.OpenLoopLoadGenerator.ArrivalProcess;
+import com.android.nn.benchmark.core.TestModels;
+import com.android.nn.benchmark.core.TfLiteBackend;
+import com.android.nn.crashtest.core.CrashTest;
+import com.android.nn.crashtest.core.CrashTestCoordinator.CrashTestIntentInitializer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Open-loop counterpart of {@link RunModelsInParallel}: requests are issued at a fixed rate
+ * into a pool of instances of each model, whatever the time taken to serve them, and the
+ * service and response time distributions are reported.
+ */
+public class RunModelsOpenLoop implements CrashTest {
+
+    private static final String MODELS = "models";
+    private static final String QPS = "qps";
+    private static final String ARRIVAL_PROCESS = "arrival_process";
+    private static final String WORKERS = "worker_count";
+    private static final String BACKEND = "backend";
+    private static final String DURATION = "duration";
+    private static final String TEST_NAME = "test_name";
+    private static final String ACCELERATOR_NAME = "accelerator_name";
+    private static final String IGNORE_UNSUPPORTED_MODELS = "ignore_unsupported_models";
+    private static final String MEMORY_MAP_MODEL = "memory_map_model";
+
+    private static final long ARRIVAL_SEED = 0x5eedL;
+
+    private int[] mTestList = new int[0];
+    private float mQps;
+    private ArrivalProcess mArrivalProcess;
+    private int mWorkerCount;
+    private TfLiteBackend mBackend;
+    private long mTestDurationMillis;
+    private String mTestName;
+    private String mAcceleratorName;
+    private boolean mIgnoreUnsupportedModels;
+    private boolean mMmapModel;
+    private Context mContext;
+    private ProgressListener mProgressListener;
+
+    static public CrashTestIntentInitializer intentInitializer(int[] models, float qps,
+            ArrivalProcess arrivalProcess, int workerCount, TfLiteBackend backend,
+            Duration duration, String testName, String acceleratorName,
+            boolean ignoreUnsupportedModels, boolean mmapModel) {
+        return intent -> {
+            intent.putExtra(MODELS, models);
+            intent.putExtra(QPS, qps);
+            intent.putExtra(ARRIVAL_PROCESS, arrivalProcess.name());
+            intent.putExtra(WORKERS, workerCount);
+            intent.putExtra(BACKEND, backend.name());
+            intent.putExtra(DURATION, duration.toMillis());
+            intent.putExtra(TEST_NAME, testName);
+            intent.putExtra(ACCELERATOR_NAME, acceleratorName);
+            intent.putExtra(IGNORE_UNSUPPORTED_MODELS, ignoreUnsupportedModels);
+            intent.putExtra(MEMORY_MAP_MODEL, mmapModel);
+        };
+    }
+
+    @Override
+    public void init(Context context, Intent configParams,
+            Optional<ProgressListener> progressListener) {
+        mTestList = configParams.getIntArrayExtra(MODELS);
+        mQps = configParams.getFloatExtra(QPS, 10.0f);
+        String arrivalProcess = configParams.getStringExtra(ARRIVAL_PROCESS);
+        mArrivalProcess = arrivalProcess != null
+                ? ArrivalProcess.valueOf(arrivalProcess) : ArrivalProcess.POISSON;
+        mWorkerCount = configParams.getIntExtra(WORKERS, 1);
+        String backend = configParams.getStringExtra(BACKEND);
+        mBackend = backend != null ? TfLiteBackend.valueOf(backend) : TfLiteBackend.NNAPI;
+        mTestDurationMillis = configParams.getLongExtra(DURATION, 1000 * 60);
+        mTestName = configParams.getStringExtra(TEST_NAME);
+        mAcceleratorName = configParams.getStringExtra(ACCELERATOR_NAME);
+        mIgnoreUnsupportedModels = mAcceleratorName != null && configParams.getBooleanExtra(
+                IGNORE_UNSUPPORTED_MODELS, false);
+        mMmapModel = configParams.getBooleanExtra(MEMORY_MAP_MODEL, false);
+        mContext = context;
+        mProgressListener = progressListener.orElseGet(() -> (Optional<String> message) -> {
+            Log.v(CrashTest.TAG, message.orElse("."));
+        });
+    }
+
+    @Override
+    public Optional<String> call() {
+        for (int testIndex : mTestList) {
+            TestModels.TestModelEntry testModel = TestModels.modelsList().get(testIndex);
+            List<NNTestBase> workers = new ArrayList<>();
+            try {
+                for (int i = 0; i < mWorkerCount; i++) {
+                    NNTestBase worker = testModel.createNNTestBase(mBackend,
+                            /*enableIntermediateTensorsDump=*/false, mMmapModel);
+                    workers.add(worker);
+                    if (mBackend == TfLiteBackend.NNAPI) {
+                        worker.setNNApiDeviceName(mAcceleratorName);
+                    }
+                    if (!worker.setupModel(mContext)) {
+                        if (mIgnoreUnsupportedModels) {
+                            notifyProgress("Test '%s': Model %s not supported, skipping",
+                                    mTestName, testModel.mModelName);
+                            break;
+                        }
+                        return failure(String.format("Test '%s': Cannot initialise model %s",
+                                mTestName, testModel.mModelName));
+                    }
+                }
+                if (workers.size() < mWorkerCount) {
+                    continue;
+                }
+
+                OpenLoopLoadGenerator.Result result = new OpenLoopLoadGenerator(workers, mQps,
+                        mArrivalProcess, ARRIVAL_SEED).run(mTestDurationMillis / 1000.0f);
+                notifyProgress("Test '%s': Model %s on %s, %d workers, %s", mTestName,
+                        testModel.mModelName, mBackend, mWorkerCount, result);
+                if (result.getFailedCount() > 0) {
+                    return failure(String.format("Test '%s': %d out of %d requests failed",
+                            mTestName, result.getFailedCount(), result.getIssuedCount()));
+                }
+            } catch (IOException | BenchmarkException e) {
+                Log.e(CrashTest.TAG, String.format("Test '%s': Error running model %s",
+                        mTestName, testModel.mModelName), e);
+                return failure(String.format("Test '%s': Error running model %s: %s",
+                        mTestName, testModel.mModelName, e.getMessage()));
+            } finally {
+                for (NNTestBase worker : workers) {
+                    worker.destroy();
+                }
+            }
+        }
+
+        Log.i(CrashTest.TAG, String.format("Test '%s': Test completed successfully", mTestName));
+        return success();
+    }
+
+    @SuppressLint("DefaultLocale")
+    void notifyProgress(String messageFormat, Object... args) {
+        mProgressListener.testProgress(Optional.of(String.format(messageFormat, args)));
+    }
+}